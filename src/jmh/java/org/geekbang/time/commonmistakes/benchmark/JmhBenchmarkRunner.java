@@ -0,0 +1,79 @@
+package org.geekbang.time.commonmistakes.benchmark;
+
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.io.filebufferperformance.FileBufferPerformanceBenchmark;
+import org.geekbang.time.commonmistakes.lock.lockgranularity.LockGranularityBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 统一的JMH入口，取代各个案例里StopWatch跑一次的冷启动测试：
+ *
+ * mvn -Pjmh compile exec:exec
+ * mvn -Pjmh compile exec:exec -Djmh.include=CopyOnWriteListMisuseBenchmark -Djmh.threads=1,4,16
+ *
+ * jmh.include：要运行的基准测试正则；
+ * jmh.threads：逗号分隔的线程数，每个线程数单独跑一轮，为空则使用各基准测试上@Threads的配置；
+ * SINGLE_THREADED里的基准测试不是线程安全的（共用同一对文件、每次调用前重置共享的State），
+ * 指定jmh.threads时不参与这些轮次，而是按自己的@Threads(1)单独跑一轮；
+ * 每一轮的结果以JSON格式写入jmh.resultDir，方便在不同版本之间对比。
+ */
+@Slf4j
+public class JmhBenchmarkRunner {
+
+    private static final List<Class<?>> SINGLE_THREADED = Arrays.asList(
+            FileBufferPerformanceBenchmark.class,
+            LockGranularityBenchmark.class);
+
+    public static void main(String[] args) throws RunnerException {
+        String include = System.getProperty("jmh.include", ".*Benchmark.*");
+        String resultDir = System.getProperty("jmh.resultDir", "target/jmh");
+        List<Integer> threads = Arrays.stream(System.getProperty("jmh.threads", "").split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .map(Integer::valueOf)
+                .collect(Collectors.toList());
+        new File(resultDir).mkdirs();
+
+        if (threads.isEmpty()) {
+            run(include, new File(resultDir, "jmh-result.json"), null);
+        } else {
+            for (int threadCount : threads) {
+                run(include, new File(resultDir, "jmh-result-t" + threadCount + ".json"), threadCount);
+            }
+            //不能多线程跑的基准测试只要有方法被include命中，就单独用@Threads的配置跑一轮
+            Pattern pattern = Pattern.compile(include);
+            List<String> singleThreaded = SINGLE_THREADED.stream()
+                    .filter(clazz -> Arrays.stream(clazz.getMethods())
+                            .filter(method -> method.isAnnotationPresent(Benchmark.class))
+                            .anyMatch(method -> pattern.matcher(clazz.getName() + "." + method.getName()).find()))
+                    .map(clazz -> Pattern.quote(clazz.getName() + ".") + ".*")
+                    .collect(Collectors.toList());
+            if (!singleThreaded.isEmpty())
+                run(String.join("|", singleThreaded), new File(resultDir, "jmh-result-single.json"), null);
+        }
+    }
+
+    private static void run(String include, File result, Integer threadCount) throws RunnerException {
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getAbsolutePath());
+        if (threadCount != null) {
+            builder.threads(threadCount);
+            SINGLE_THREADED.forEach(clazz -> builder.exclude(Pattern.quote(clazz.getName() + ".")));
+        }
+        new Runner(builder.build()).run();
+        log.info("jmh result written to {}", result.getAbsolutePath());
+    }
+}
@@ -0,0 +1,44 @@
+package org.geekbang.time.commonmistakes.collection.linkedlist;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复用LinkedListApplication的四个方法，对比LinkedList和ArrayList的随机访问和随机插入
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class LinkedListBenchmark {
+
+    @Param({"10000", "100000"})
+    private int elementCount;
+
+    @Param({"10000"})
+    private int loopCount;
+
+    @Benchmark
+    public void linkedListGet() {
+        LinkedListApplication.linkedListGet(elementCount, loopCount);
+    }
+
+    @Benchmark
+    public void arrayListGet() {
+        LinkedListApplication.arrayListGet(elementCount, loopCount);
+    }
+
+    @Benchmark
+    public void linkedListAdd() {
+        LinkedListApplication.linkedListAdd(elementCount, loopCount);
+    }
+
+    @Benchmark
+    public void arrayListAdd() {
+        LinkedListApplication.arrayListAdd(elementCount, loopCount);
+    }
+}
@@ -0,0 +1,34 @@
+package org.geekbang.time.commonmistakes.collection.listvsmap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复用ListVsMapApplication的listSearch/mapSearch，包含构建集合和loopCount次随机查找
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class ListVsMapBenchmark {
+
+    @Param({"10000", "1000000"})
+    private int elementCount;
+
+    @Param({"1000"})
+    private int loopCount;
+
+    @Benchmark
+    public Object listSearch() {
+        return ListVsMapApplication.listSearch(elementCount, loopCount);
+    }
+
+    @Benchmark
+    public Object mapSearch() {
+        return ListVsMapApplication.mapSearch(elementCount, loopCount);
+    }
+}
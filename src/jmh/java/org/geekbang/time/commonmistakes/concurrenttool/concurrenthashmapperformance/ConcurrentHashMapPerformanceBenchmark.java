@@ -0,0 +1,48 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 直接复用ConcurrentHashMapPerformanceController里normaluse/gooduse/stripeduse的代码路径，
+ * 每次调用内部用threadCount个线程的ForkJoinPool完成loopCount次累加
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class ConcurrentHashMapPerformanceBenchmark {
+
+    @Param({"10", "50", "200"})
+    private int threadCount;
+
+    @Param({"1000000"})
+    private int loopCount;
+
+    private ConcurrentHashMapPerformanceController controller;
+
+    @Setup
+    public void setup() {
+        controller = new ConcurrentHashMapPerformanceController();
+    }
+
+    @Benchmark
+    public Map<String, Long> normaluse() throws InterruptedException {
+        return controller.normaluse(threadCount, loopCount);
+    }
+
+    @Benchmark
+    public Map<String, Long> gooduse() throws InterruptedException {
+        return controller.gooduse(threadCount, loopCount);
+    }
+
+    @Benchmark
+    public Map<String, Long> stripeduse() throws InterruptedException {
+        return controller.stripeduse(threadCount, loopCount);
+    }
+}
@@ -0,0 +1,70 @@
+package org.geekbang.time.commonmistakes.concurrenttool.copyonwritelistmisuse;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 直接复用CopyOnWriteListMisuseController里testWrite/testRead的代码路径：
+ * 写测试和testWrite一样每次从空的List开始并行add loopCount次；
+ * 读测试和testRead一样先填充listSize个元素，再并行随机get loopCount次
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class CopyOnWriteListMisuseBenchmark {
+
+    @Param({"100000"})
+    private int writeLoopCount;
+
+    @Param({"1000000"})
+    private int listSize;
+
+    @Param({"1000000"})
+    private int readLoopCount;
+
+    private CopyOnWriteListMisuseController controller;
+    private List<Integer> copyOnWriteArrayList;
+    private List<Integer> synchronizedList;
+
+    @Setup
+    public void setup() {
+        controller = new CopyOnWriteListMisuseController();
+        copyOnWriteArrayList = new CopyOnWriteArrayList<>();
+        synchronizedList = Collections.synchronizedList(new ArrayList<>());
+        controller.addAll(copyOnWriteArrayList, listSize);
+        controller.addAll(synchronizedList, listSize);
+    }
+
+    @Benchmark
+    public int writeCopyOnWriteArrayList() {
+        List<Integer> list = new CopyOnWriteArrayList<>();
+        controller.write(list, writeLoopCount);
+        return list.size();
+    }
+
+    @Benchmark
+    public int writeSynchronizedList() {
+        List<Integer> list = Collections.synchronizedList(new ArrayList<>());
+        controller.write(list, writeLoopCount);
+        return list.size();
+    }
+
+    @Benchmark
+    public void readCopyOnWriteArrayList() {
+        controller.read(copyOnWriteArrayList, readLoopCount);
+    }
+
+    @Benchmark
+    public void readSynchronizedList() {
+        controller.read(synchronizedList, readLoopCount);
+    }
+}
@@ -0,0 +1,66 @@
+package org.geekbang.time.commonmistakes.io.filebufferperformance;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复用filebufferperformance.CommonMistakesApplication中的六种文件复制方式，
+ * lineCount控制src.txt的行数（每行一个UUID）。所有方法都读写当前目录下同一对文件，因此固定单线程
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class FileBufferPerformanceBenchmark {
+
+    @Param({"10000", "100000"})
+    private int lineCount;
+
+    @Setup
+    public void setup() throws IOException {
+        CommonMistakesApplication.init(lineCount);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get("src.txt"));
+        Files.deleteIfExists(Paths.get("dest.txt"));
+    }
+
+    @Benchmark
+    public void perByteOperation() throws IOException {
+        CommonMistakesApplication.perByteOperation();
+    }
+
+    @Benchmark
+    public void bufferOperationWith100Buffer() throws IOException {
+        CommonMistakesApplication.bufferOperationWith100Buffer();
+    }
+
+    @Benchmark
+    public void bufferedStreamByteOperation() throws IOException {
+        CommonMistakesApplication.bufferedStreamByteOperation();
+    }
+
+    @Benchmark
+    public void bufferedStreamBufferOperation() throws IOException {
+        CommonMistakesApplication.bufferedStreamBufferOperation();
+    }
+
+    @Benchmark
+    public void largerBufferOperation() throws IOException {
+        CommonMistakesApplication.largerBufferOperation();
+    }
+
+    @Benchmark
+    public void fileChannelOperation() throws IOException {
+        CommonMistakesApplication.fileChannelOperation();
+    }
+}
@@ -0,0 +1,42 @@
+package org.geekbang.time.commonmistakes.lock.lockgranularity;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复用LockGranularityController的wrong/right，count为并行处理的元素个数，每个元素包含一次10ms的慢方法。
+ * 单次调用耗时在秒级，所以用SingleShotTime模式
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(1)
+public class LockGranularityBenchmark {
+
+    @Param({"100", "1000"})
+    private int count;
+
+    private LockGranularityController controller;
+
+    /**
+     * 每次调用都会往data里追加元素，所以每次都换一个新的Controller
+     */
+    @Setup(Level.Invocation)
+    public void setup() {
+        controller = new LockGranularityController();
+    }
+
+    @Benchmark
+    public int wrong() {
+        return controller.wrong(count);
+    }
+
+    @Benchmark
+    public int right() {
+        return controller.right(count);
+    }
+}
@@ -0,0 +1,86 @@
+package org.geekbang.time.commonmistakes.logging.placeholder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import org.apache.logging.log4j.LogManager;
+import org.geekbang.time.commonmistakes.common.LazyLogger;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DEBUG级别关闭时，对比SLF4J、Log4j2 API直接调用和LazyLogger的开销，
+ * 以及INFO级别开启时LazyLogger采样/限流后的开销（根日志不挂Appender，只比较日志框架本身）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class LazyLoggerBenchmark {
+
+    private Logger slf4jLogger;
+    private org.apache.logging.log4j.Logger log4j2Logger;
+    private LazyLogger lazyLogger;
+    private LazyLogger sampledLogger;
+    private LazyLogger rateLimitedLogger;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+        loggerContext.reset();
+        loggerContext.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME).setLevel(Level.INFO);
+        slf4jLogger = LoggerFactory.getLogger(LazyLoggerBenchmark.class);
+        log4j2Logger = LogManager.getLogger(LazyLoggerBenchmark.class);
+        lazyLogger = LazyLogger.getLogger(LazyLoggerBenchmark.class);
+        sampledLogger = lazyLogger.sampleOneIn(1000);
+        rateLimitedLogger = lazyLogger.atMostPerSecond(100);
+    }
+
+    @Benchmark
+    public void slf4jConcat() {
+        slf4jLogger.debug("value:" + counter++);
+    }
+
+    @Benchmark
+    public void slf4jPlaceholderBoxed() {
+        slf4jLogger.debug("value:{}", counter++);
+    }
+
+    @Benchmark
+    public void log4j2Supplier() {
+        int value = counter++;
+        log4j2Logger.debug("value:{}", () -> value);
+    }
+
+    @Benchmark
+    public void lazyLoggerPrimitive() {
+        lazyLogger.debug("value:{}", counter++);
+    }
+
+    @Benchmark
+    public void lazyLoggerSupplier() {
+        int value = counter++;
+        lazyLogger.debug("value:{}", () -> value);
+    }
+
+    @Benchmark
+    public void slf4jInfoEnabled() {
+        slf4jLogger.info("value:{}", counter++);
+    }
+
+    @Benchmark
+    public void lazyLoggerInfoSampled() {
+        sampledLogger.info("value:{}", counter++);
+    }
+
+    @Benchmark
+    public void lazyLoggerInfoRateLimited() {
+        rateLimitedLogger.info("value:{}", counter++);
+    }
+}
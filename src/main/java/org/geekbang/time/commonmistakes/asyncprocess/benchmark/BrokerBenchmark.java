@@ -0,0 +1,150 @@
+package org.geekbang.time.commonmistakes.asyncprocess.benchmark;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.asyncprocess.fanoutvswork.FanoutQueueRight;
+import org.geekbang.time.commonmistakes.asyncprocess.fanoutvswork.WorkQueueRight;
+import org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.RetryStats;
+import org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.TieredRetryListener;
+import org.geekbang.time.commonmistakes.common.embeddedbroker.EmbeddedBroker;
+import org.geekbang.time.commonmistakes.common.embeddedbroker.EmbeddedBrokerConfiguration;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.amqp.RabbitAutoConfiguration;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 基于进程内Broker的消息吞吐压测，不需要启动RabbitMQ：
+ *
+ * 1、每个场景单独启动一个只包含Rabbit自动配置和例子里相关组件的Spring上下文，例子代码本身不做任何修改；
+ * 2、通过RabbitTemplate发送一批消息，等待Broker上所有队列都没有待投递和未确认的消息（或者超时），
+ * 输出发送速度、每秒投递和确认的消息数、确认耗时（从投递到确认）、重新投递次数、死信和过期的消息数；
+ * 3、例子里每条消息都会打印日志，压测时把例子的日志级别调到WARN，避免测的是日志的速度。
+ *
+ * 运行参数可以指定要执行的场景名字，比如fanout workqueue，不指定时执行所有场景。
+ */
+@Slf4j
+public class BrokerBenchmark {
+
+    @Configuration
+    @ImportAutoConfiguration({PropertyPlaceholderAutoConfiguration.class, RabbitAutoConfiguration.class})
+    @Import(EmbeddedBrokerConfiguration.class)
+    static class EmbeddedRabbit {
+    }
+
+    @AllArgsConstructor
+    static class Scenario {
+        private final String name;
+        private final List<Class<?>> components;
+        private final String[] properties;
+        private final String exchange;
+        private final String routingKey;
+        private final int messages;
+        private final long timeoutSeconds;
+        //消息会长时间停留的队列（比如5分钟的延迟队列），不参与是否处理完的判断
+        private final Set<String> terminalQueues;
+    }
+
+    private static final List<Scenario> SCENARIOS = Arrays.asList(
+            new Scenario("fanout", Arrays.asList(FanoutQueueRight.class), new String[0],
+                    "newuser", "", 100000, 60, Collections.emptySet()),
+            new Scenario("workqueue", Arrays.asList(WorkQueueRight.class), new String[0],
+                    "newuserExchange", "test", 100000, 60, Collections.emptySet()),
+            //每条消息在监听线程里重试5次，退避1s、2s、4s、8s，消息数不宜多
+            new Scenario("deadletter", Arrays.asList(
+                    org.geekbang.time.commonmistakes.asyncprocess.deadletter.RabbitConfiguration.class,
+                    org.geekbang.time.commonmistakes.asyncprocess.deadletter.MQListener.class), new String[0],
+                    org.geekbang.time.commonmistakes.asyncprocess.deadletter.Consts.EXCHANGE,
+                    org.geekbang.time.commonmistakes.asyncprocess.deadletter.Consts.ROUTING_KEY, 20, 120, Collections.emptySet()),
+            //所有消息都会失败，重试2次后进入dead队列
+            new Scenario("rabbitmqdlx", Arrays.asList(
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.RabbitConfiguration.class,
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.MQListener.class,
+                    TieredRetryListener.class, RetryStats.class), new String[]{"rabbitmqdlx.tiered=false"},
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.EXCHANGE,
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.ROUTING_KEY, 100000, 60, Collections.emptySet()),
+            //最后一级延迟是5分钟，消息都进入retry.300000队列等待就算处理完，不等到最终进入dead队列
+            new Scenario("rabbitmqdlx-tiered", Arrays.asList(
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.RabbitConfiguration.class,
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.MQListener.class,
+                    TieredRetryListener.class, RetryStats.class), new String[]{"rabbitmqdlx.tiered=true"},
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.EXCHANGE,
+                    org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.ROUTING_KEY, 100000, 60,
+                    Collections.singleton(org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.RETRY_QUEUE_PREFIX
+                            + org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.RETRY_DELAYS[
+                            org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx.Consts.RETRY_DELAYS.length - 1])));
+
+    public static void main(String[] args) throws InterruptedException {
+        List<String> names = Arrays.asList(args);
+        Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+        for (Scenario scenario : SCENARIOS) {
+            if (names.isEmpty() || names.contains(scenario.name))
+                results.put(scenario.name, run(scenario));
+        }
+        results.forEach((name, result) -> log.info("{}: {}", name, result));
+    }
+
+    private static Map<String, Object> run(Scenario scenario) throws InterruptedException {
+        Class<?>[] sources = Stream.concat(Stream.of(EmbeddedRabbit.class), scenario.components.stream()).toArray(Class<?>[]::new);
+        String[] properties = Stream.concat(Stream.of(
+                "embeddedbroker.enabled=true",
+                "spring.main.web-application-type=none",
+                "spring.main.banner-mode=off",
+                "logging.level.org.geekbang.time.commonmistakes.asyncprocess.fanoutvswork=WARN",
+                "logging.level.org.geekbang.time.commonmistakes.asyncprocess.deadletter=WARN",
+                "logging.level.org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx=WARN"),
+                Arrays.stream(scenario.properties)).toArray(String[]::new);
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(sources).properties(properties).run()) {
+            EmbeddedBroker broker = context.getBean(EmbeddedBroker.class);
+            RabbitTemplate rabbitTemplate = context.getBean(RabbitTemplate.class);
+            broker.resetStats();
+            long begin = System.nanoTime();
+            for (int i = 0; i < scenario.messages; i++) {
+                rabbitTemplate.convertAndSend(scenario.exchange, scenario.routingKey, "msg" + i);
+            }
+            long publishNanos = System.nanoTime() - begin;
+            boolean completed = awaitIdle(broker, scenario.terminalQueues, scenario.timeoutSeconds);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("messages", scenario.messages);
+            result.put("completed", completed);
+            result.put("publishedPerSecond", scenario.messages * 1_000_000_000L / Math.max(1, publishNanos));
+            result.putAll(broker.stats());
+            //只保留还有消息的队列
+            @SuppressWarnings("unchecked")
+            Map<String, Long> queues = (Map<String, Long>) result.get("queues");
+            result.put("queues", queues.entrySet().stream().filter(entry -> entry.getValue() > 0)
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+            log.info("{}: {}", scenario.name, result);
+            return result;
+        }
+    }
+
+    /**
+     * 连续3次检查都空闲才算处理完，避免碰到消息正好在两个队列之间转移的瞬间
+     */
+    private static boolean awaitIdle(EmbeddedBroker broker, Set<String> terminalQueues, long timeoutSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        int idleChecks = 0;
+        while (System.nanoTime() < deadline) {
+            idleChecks = broker.isIdle(terminalQueues) ? idleChecks + 1 : 0;
+            if (idleChecks >= 3)
+                return true;
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        return false;
+    }
+}
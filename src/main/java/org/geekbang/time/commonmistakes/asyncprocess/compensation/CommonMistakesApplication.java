@@ -1,10 +1,14 @@
 package org.geekbang.time.commonmistakes.asyncprocess.compensation;
 
+import org.geekbang.time.commonmistakes.common.embeddedbroker.EmbeddedBrokerConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Import;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+//embeddedbroker.enabled=true时使用进程内的RabbitMQ替身
+@Import(EmbeddedBrokerConfiguration.class)
 @EnableScheduling
 public class CommonMistakesApplication {
     public static void main(String[] args) {
@@ -0,0 +1,55 @@
+package org.geekbang.time.commonmistakes.asyncprocess.compensation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录某个id是否处理过的并发位图，替代ConcurrentHashMap<Long, Boolean>：
+ *
+ * 1、用户id是连续递增的，每个id只占1位，按每页65536个id分页，页在第一次用到时创建，
+ * 1000万个id只需要约1.2MB，而ConcurrentHashMap每个Entry要几十字节，还有Long和Boolean的装箱对象；
+ * 2、页内用AtomicLongArray通过CAS置位，add不需要加锁，多个线程同时add同一个id只有一个返回true。
+ */
+public class IdBitSet {
+
+    private static final int PAGE_BITS = 16;
+    private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) / 64;
+
+    private final ConcurrentHashMap<Long, AtomicLongArray> pages = new ConcurrentHashMap<>();
+
+    /**
+     * 标记id，之前没标记过返回true
+     */
+    public boolean add(long id) {
+        if (id < 0)
+            throw new IllegalArgumentException("id must not be negative");
+        AtomicLongArray page = pages.computeIfAbsent(id >>> PAGE_BITS, key -> new AtomicLongArray(WORDS_PER_PAGE));
+        int word = (int) (id & ((1 << PAGE_BITS) - 1)) >>> 6;
+        long mask = 1L << id;
+        while (true) {
+            long current = page.get(word);
+            if ((current & mask) != 0)
+                return false;
+            if (page.compareAndSet(word, current, current | mask))
+                return true;
+        }
+    }
+
+    public boolean contains(long id) {
+        AtomicLongArray page = pages.get(id >>> PAGE_BITS);
+        if (page == null)
+            return false;
+        int word = (int) (id & ((1 << PAGE_BITS) - 1)) >>> 6;
+        return (page.get(word) & (1L << id)) != 0;
+    }
+
+    public long cardinality() {
+        long count = 0;
+        for (AtomicLongArray page : pages.values()) {
+            for (int i = 0; i < page.length(); i++) {
+                count += Long.bitCount(page.get(i));
+            }
+        }
+        return count;
+    }
+}
@@ -4,14 +4,13 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 @Component
 @Slf4j
 public class MemberService {
-    private Map<Long, Boolean> welcomeStatus = new ConcurrentHashMap<>();
+    //private Map<Long, Boolean> welcomeStatus = new ConcurrentHashMap<>();
+    private IdBitSet welcomeStatus = new IdBitSet();
 
     @RabbitListener(queues = RabbitConfiguration.QUEUE)
     public void listen(User user) {
@@ -20,7 +19,7 @@ public class MemberService {
     }
 
     public void welcome(User user) {
-        if (welcomeStatus.putIfAbsent(user.getId(), true) == null) {
+        if (welcomeStatus.add(user.getId())) {
             try {
                 TimeUnit.SECONDS.sleep(2);
             } catch (InterruptedException e) {
@@ -0,0 +1,141 @@
+package org.geekbang.time.commonmistakes.asyncprocess.compensation;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于Outbox和持久化游标的补偿任务，替代CompensationJob：
+ *
+ * 1、CompensationJob每5秒只补偿5个用户，游标offset只在内存里、也不是线程安全的，重启后从头开始，
+ * 而且在任务提交到线程池时就推进了游标，任务还没执行完宕机就会漏补偿；
+ * 2、这里从Outbox按游标批量读取注册事件，批次大小随积压量（Outbox里最大id减去游标）在minBatchSize和maxBatchSize之间伸缩，
+ * 积压多时一次读更多，一批处理完马上开始下一批，没有积压时按fixedDelay等待；
+ * 3、一批用户在线程池里并行调用welcome，用信号量限制同时在途的任务数，不会把一整批都堆进队列；
+ * 4、整批处理完后，游标推进到第一个失败用户之前的最后一个id并持久化，失败的用户下一轮重试，
+ * welcome本身是幂等的，所以重启后重复补偿一小部分没有问题；
+ * 5、积压量、补偿成功和失败次数以compensation.*发布。
+ */
+@Component
+@Slf4j
+public class OutboxCompensationJob {
+
+    @Autowired
+    private UserOutbox userOutbox;
+    @Autowired
+    private MemberService memberService;
+    @Value("${compensation.minBatchSize:100}")
+    private int minBatchSize;
+    @Value("${compensation.maxBatchSize:10000}")
+    private int maxBatchSize;
+    @Value("${compensation.maxInFlight:100}")
+    private int maxInFlight;
+
+    private ThreadPoolExecutor compensationThreadPool;
+    private Semaphore inFlight;
+    private volatile long cursor;
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void init() throws IOException {
+        compensationThreadPool = ThreadPoolRegistry.newThreadPool("outbox-compensation-%d", maxInFlight, maxInFlight,
+                1, TimeUnit.MINUTES, new ArrayBlockingQueue<>(maxInFlight),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        inFlight = new Semaphore(maxInFlight);
+        cursor = userOutbox.readCursor();
+        Gauge.builder("compensation.lag", this, OutboxCompensationJob::lag).register(Metrics.globalRegistry);
+        FunctionCounter.builder("compensation.succeeded", succeeded, LongAdder::sum).register(Metrics.globalRegistry);
+        FunctionCounter.builder("compensation.failed", failed, LongAdder::sum).register(Metrics.globalRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compensationThreadPool.shutdown();
+    }
+
+    @Scheduled(initialDelay = 10_000, fixedDelay = 5_000)
+    public void compensationJob() throws IOException, InterruptedException {
+        while (lag() > 0) {
+            int batchSize = batchSize(lag());
+            List<User> users = userOutbox.readAfter(cursor, batchSize);
+            if (users.isEmpty())
+                return;
+            log.info("开始从用户ID {} 补偿，积压 {}，批次大小 {}", cursor, lag(), users.size());
+            int firstFailure = dispatch(users);
+            if (firstFailure > 0 || firstFailure == -1) {
+                cursor = users.get(firstFailure == -1 ? users.size() - 1 : firstFailure - 1).getId();
+                userOutbox.saveCursor(cursor);
+            }
+            //有失败的等下一次调度再重试，避免一直重试同一批
+            if (firstFailure != -1)
+                return;
+        }
+    }
+
+    public long lag() {
+        return Math.max(0, userOutbox.getLastId() - cursor);
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * 积压量的四分之一作为批次大小，不低于minBatchSize也不超过maxBatchSize
+     */
+    int batchSize(long lag) {
+        return (int) Math.max(minBatchSize, Math.min(maxBatchSize, lag / 4));
+    }
+
+    /**
+     * 并行补偿一批用户并等待全部完成，返回第一个失败用户在批次里的下标，全部成功返回-1
+     */
+    private int dispatch(List<User> users) throws InterruptedException {
+        //每个位置0表示未完成，1表示成功，2表示失败
+        AtomicIntegerArray results = new AtomicIntegerArray(users.size());
+        Semaphore done = new Semaphore(0);
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            int index = i;
+            inFlight.acquire();
+            compensationThreadPool.execute(() -> {
+                try {
+                    memberService.welcome(user);
+                    results.set(index, 1);
+                    succeeded.increment();
+                } catch (Exception ex) {
+                    log.warn("compensation for user {} failed", user.getId(), ex);
+                    results.set(index, 2);
+                    failed.increment();
+                } finally {
+                    inFlight.release();
+                    done.release();
+                }
+            });
+        }
+        done.acquire(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            if (results.get(i) != 1)
+                return i;
+        }
+        return -1;
+    }
+}
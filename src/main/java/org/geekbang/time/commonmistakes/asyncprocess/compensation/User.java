@@ -10,7 +10,23 @@ import java.util.concurrent.atomic.AtomicLong;
 @Data
 public class User implements Serializable {
     private static AtomicLong atomicLonng = new AtomicLong();
-    private Long id = atomicLonng.incrementAndGet();
-    private String name = UUID.randomUUID().toString();
-    private LocalDateTime registerTime = LocalDateTime.now();
+    private Long id;
+    private String name;
+    private LocalDateTime registerTime;
+
+    public User() {
+        this(atomicLonng.incrementAndGet(), UUID.randomUUID().toString(), LocalDateTime.now());
+    }
+
+    //从Outbox恢复用户时使用，不占用新的id
+    User(Long id, String name, LocalDateTime registerTime) {
+        this.id = id;
+        this.name = name;
+        this.registerTime = registerTime;
+    }
+
+    //重启后id从Outbox里最大的id之后继续分配
+    static void advanceIdTo(long id) {
+        atomicLonng.accumulateAndGet(id, Math::max);
+    }
 }
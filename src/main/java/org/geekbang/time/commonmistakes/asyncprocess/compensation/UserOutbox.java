@@ -0,0 +1,181 @@
+package org.geekbang.time.commonmistakes.asyncprocess.compensation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * 用户注册事件的持久化Outbox，补偿任务不再依赖内存里的用户列表：
+ *
+ * 1、users.journal是只追加的文件，每条记录固定64字节（id、注册时间、名字），按id递增写入并force到磁盘，
+ * 所以可以直接按记录号二分查找某个id之后的位置，一次读出一大批；
+ * 2、消费者的游标（已经补偿完成的最大id）保存在单独的cursor文件里，先写临时文件再原子替换，重启后从游标继续；
+ * 3、启动时会校验并截掉文件末尾不完整的记录（比如写到一半宕机）。
+ */
+@Component
+@Slf4j
+public class UserOutbox {
+
+    static final int RECORD_SIZE = 64;
+    private static final int MAX_NAME_BYTES = RECORD_SIZE - 8 - 8 - 4 - 2;
+
+    @Value("${compensation.outbox.dir:outbox}")
+    private String dir;
+    private FileChannel journal;
+    private Path cursorFile;
+    private volatile long recordCount;
+    private volatile long lastId;
+
+    @PostConstruct
+    public void open() throws IOException {
+        Path directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        journal = FileChannel.open(directory.resolve("users.journal"), CREATE, READ, WRITE);
+        long size = journal.size();
+        if (size % RECORD_SIZE != 0) {
+            log.warn("outbox journal has {} trailing bytes of an incomplete record, truncating", size % RECORD_SIZE);
+            journal.truncate(size - size % RECORD_SIZE);
+        }
+        recordCount = journal.size() / RECORD_SIZE;
+        lastId = recordCount == 0 ? 0 : readRecord(recordCount - 1).getId();
+        cursorFile = directory.resolve("compensation.cursor");
+        log.info("outbox opened with {} records, last id {}, cursor {}", recordCount, lastId, readCursor());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * 追加一条注册事件，id必须比之前的都大
+     */
+    public synchronized void append(User user) {
+        if (user.getId() <= lastId)
+            throw new IllegalArgumentException("User id " + user.getId() + " is not greater than last id " + lastId);
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES)
+            throw new IllegalArgumentException("User name is longer than " + MAX_NAME_BYTES + " bytes");
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(user.getId());
+        record.putLong(user.getRegisterTime().toEpochSecond(ZoneOffset.UTC));
+        record.putInt(user.getRegisterTime().getNano());
+        record.putShort((short) name.length);
+        record.put(name);
+        record.clear();
+        try {
+            long position = recordCount * RECORD_SIZE;
+            while (record.hasRemaining()) {
+                position += journal.write(record, position);
+            }
+            journal.force(false);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        recordCount++;
+        lastId = user.getId();
+    }
+
+    /**
+     * 读取id大于afterId的最多limit条记录
+     */
+    public List<User> readAfter(long afterId, int limit) throws IOException {
+        long count = recordCount;
+        long index = firstIndexAfter(afterId, count);
+        int records = (int) Math.min(limit, count - index);
+        List<User> users = new ArrayList<>(Math.max(0, records));
+        if (records <= 0)
+            return users;
+        ByteBuffer buffer = ByteBuffer.allocate(records * RECORD_SIZE);
+        long position = index * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = journal.read(buffer, position + buffer.position());
+            if (read < 0)
+                break;
+        }
+        buffer.flip();
+        while (buffer.remaining() >= RECORD_SIZE) {
+            users.add(decode(buffer));
+        }
+        return users;
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long readCursor() throws IOException {
+        if (!Files.exists(cursorFile))
+            return 0;
+        return Long.parseLong(new String(Files.readAllBytes(cursorFile), StandardCharsets.UTF_8).trim());
+    }
+
+    public void saveCursor(long cursor) throws IOException {
+        Path temp = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(String.valueOf(cursor).getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 二分查找第一条id大于afterId的记录号
+     */
+    private long firstIndexAfter(long afterId, long count) throws IOException {
+        long low = 0;
+        long high = count;
+        ByteBuffer idBuffer = ByteBuffer.allocate(8);
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            idBuffer.clear();
+            while (idBuffer.hasRemaining() && journal.read(idBuffer, mid * RECORD_SIZE + idBuffer.position()) > 0) {
+            }
+            if (idBuffer.getLong(0) <= afterId)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private User readRecord(long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        while (buffer.hasRemaining() && journal.read(buffer, index * RECORD_SIZE + buffer.position()) > 0) {
+        }
+        buffer.flip();
+        return decode(buffer);
+    }
+
+    private static User decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        long id = buffer.getLong();
+        LocalDateTime registerTime = LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+        byte[] name = new byte[buffer.getShort()];
+        buffer.get(name);
+        buffer.position(start + RECORD_SIZE);
+        return new User(id, new String(name, StandardCharsets.UTF_8), registerTime);
+    }
+}
@@ -1,7 +1,9 @@
 package org.geekbang.time.commonmistakes.asyncprocess.compensation;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -9,14 +11,23 @@ import java.util.stream.Collectors;
 @Service
 public class UserService {
     private List<User> users = new ArrayList<>();
+    @Autowired
+    private UserOutbox userOutbox;
 
-    public User register() {
+    @PostConstruct
+    public void init() {
+        User.advanceIdTo(userOutbox.getLastId());
+    }
+
+    //生成id和写Outbox放在一个锁里，保证Outbox里的id是递增的
+    public synchronized User register() {
         User user = new User();
+        userOutbox.append(user);
         users.add(user);
         return user;
     }
 
-    public List<User> getUsersAfterIdWithLimit(long id, int limit) {
+    public synchronized List<User> getUsersAfterIdWithLimit(long id, int limit) {
         return users.stream()
                 .filter(user -> user.getId() >= id)
                 .limit(limit)
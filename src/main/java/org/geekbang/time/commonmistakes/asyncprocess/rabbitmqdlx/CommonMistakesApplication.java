@@ -1,9 +1,13 @@
 package org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx;
 
+import org.geekbang.time.commonmistakes.common.embeddedbroker.EmbeddedBrokerConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Import;
 
 @SpringBootApplication
+//embeddedbroker.enabled=true时使用进程内的RabbitMQ替身
+@Import(EmbeddedBrokerConfiguration.class)
 public class CommonMistakesApplication {
     public static void main(String[] args) {
         SpringApplication.run(CommonMistakesApplication.class, args);
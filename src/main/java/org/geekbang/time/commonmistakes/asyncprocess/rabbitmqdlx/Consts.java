@@ -16,4 +16,11 @@ public class Consts {
     public static final String DEAD_EXCHANGE = "dead";
     public static final String DEAD_QUEUE = "dead";
     public static final String DEAD_ROUTING_KEY = "dead";
+
+    //分级延迟重试：第n次重试进入第n个延迟队列，重试次数用完后进入死信队列
+    public static final int[] RETRY_DELAYS = {1000, 5000, 30000, 300000};
+    public static final String RETRY_EXCHANGE = "retry";
+    //延迟队列名带上延迟时间，调整延迟时不会和已经存在的同名队列参数冲突
+    public static final String RETRY_QUEUE_PREFIX = "retry.";
+    public static final String RETRY_COUNT_HEADER = "x-retry-count";
 }
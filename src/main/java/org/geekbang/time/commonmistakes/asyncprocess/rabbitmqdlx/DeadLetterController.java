@@ -1,13 +1,27 @@
 package org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.rabbitmq.client.AMQP;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 @RequestMapping("deadletter")
 @Slf4j
@@ -17,6 +31,18 @@ public class DeadLetterController {
     AtomicLong atomicLong = new AtomicLong();
     @Autowired
     private RabbitTemplate rabbitTemplate;
+    @Autowired
+    private RetryStats retryStats;
+    @Autowired
+    private AmqpAdmin amqpAdmin;
+    @Autowired
+    private RestTemplateBuilder restTemplateBuilder;
+    @Value("${rabbitmqdlx.managementUrl:http://localhost:15672}")
+    private String managementUrl;
+    @Value("${spring.rabbitmq.username}")
+    private String username;
+    @Value("${spring.rabbitmq.password}")
+    private String password;
 
     @GetMapping("send")
     public void send() {
@@ -24,4 +50,47 @@ public class DeadLetterController {
         log.info("Client 发送消息 {}", message);
         rabbitTemplate.convertAndSend(Consts.EXCHANGE, Consts.QUEUE, message);
     }
+
+    //批量发送count条一定会处理失败的消息，每1000条等待一次Publisher Confirm，并重置统计
+    @GetMapping("benchmark")
+    public long benchmark(@RequestParam(value = "count", defaultValue = "1000000") int count) {
+        retryStats.reset();
+        long begin = System.currentTimeMillis();
+        rabbitTemplate.execute(channel -> {
+            channel.confirmSelect();
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                    .contentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN).deliveryMode(2).build();
+            for (int i = 1; i <= count; i++) {
+                channel.basicPublish(Consts.EXCHANGE, Consts.ROUTING_KEY, properties,
+                        ("msg" + atomicLong.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+                if (i % 1000 == 0 || i == count)
+                    channel.waitForConfirmsOrDie(10_000);
+            }
+            return null;
+        });
+        long took = System.currentTimeMillis() - begin;
+        log.info("Client 发送 {} 条消息耗时 {} ms", count, took);
+        return took;
+    }
+
+    //重投递吞吐、各队列堆积的消息数和Broker内存占用（通过管理插件的接口获取）
+    @GetMapping("stats")
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>(retryStats.snapshot());
+        Stream.concat(Stream.of(Consts.QUEUE, Consts.BUFFER_QUEUE, Consts.DEAD_QUEUE),
+                IntStream.of(Consts.RETRY_DELAYS).mapToObj(delay -> Consts.RETRY_QUEUE_PREFIX + delay))
+                .forEach(queue -> {
+                    Properties properties = amqpAdmin.getQueueProperties(queue);
+                    stats.put("queue." + queue, properties == null ? null : properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT));
+                });
+        try {
+            JsonNode nodes = restTemplateBuilder.basicAuthentication(username, password).build()
+                    .getForObject(managementUrl + "/api/nodes", JsonNode.class);
+            if (nodes != null && nodes.size() > 0)
+                stats.put("brokerMemoryMB", nodes.get(0).path("mem_used").asLong() / 1024 / 1024);
+        } catch (Exception ex) {
+            log.warn("failed to query broker memory from {}: {}", managementUrl, ex.getMessage());
+        }
+        return stats;
+    }
 }
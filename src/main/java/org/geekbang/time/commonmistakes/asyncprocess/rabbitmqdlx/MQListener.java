@@ -19,12 +19,16 @@ import java.util.Map;
 public class MQListener {
     @Autowired
     private MessagePropertiesConverter messagePropertiesConverter;
+    @Autowired
+    private RetryStats retryStats;
 
-    @RabbitListener(queues = Consts.QUEUE)
+    //rabbitmqdlx.tiered=false时使用这个单一延迟的重试方式，和TieredRetryListener对比
+    @RabbitListener(queues = Consts.QUEUE, autoStartup = "#{!${rabbitmqdlx.tiered:true}}")
     public void handler(@Payload Message message, Channel channel) throws IOException {
         String m = new String(message.getBody());
         try {
             log.info("Handler 收到消息：{}", m);
+            retryStats.getReceived().increment();
             throw new RuntimeException("处理消息失败");
         } catch (Exception e) {
             Map<String, Object> headers = message.getMessageProperties().getHeaders();
@@ -36,6 +40,7 @@ public class MQListener {
                         messagePropertiesConverter.fromMessageProperties(message.getMessageProperties(), "UTF-8");
                 rabbitMQProperties.builder().headers(headers);
                 channel.basicPublish(Consts.BUFFER_EXCHANGE, Consts.BUFFER_ROUTING_KEY, rabbitMQProperties, message.getBody());
+                retryStats.getRetried().increment();
             } else {
                 log.info("Handler 消费消息：{} 异常，已重试 {} 次，发送到死信队列处理！", m, Consts.RETRY_COUNT);
                 channel.basicPublish(Consts.DEAD_EXCHANGE, Consts.DEAD_ROUTING_KEY, null, message.getBody());
@@ -59,6 +64,7 @@ public class MQListener {
 
     @RabbitListener(queues = Consts.DEAD_QUEUE)
     public void deadHandler(@Payload Message message) {
+        retryStats.getDead().increment();
         log.error("DeadHandler 收到死信消息： {}", new String(message.getBody()));
     }
 }
@@ -3,15 +3,21 @@ package org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.annotation.RabbitListenerConfigurer;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistrar;
 import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
 import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.converter.MappingJackson2MessageConverter;
 import org.springframework.messaging.handler.annotation.support.DefaultMessageHandlerMethodFactory;
 import org.springframework.messaging.handler.annotation.support.MessageHandlerMethodFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @Slf4j
 public class RabbitConfiguration implements RabbitListenerConfigurer {
@@ -57,6 +63,39 @@ public class RabbitConfiguration implements RabbitListenerConfigurer {
                 BindingBuilder.bind(queue).to(directExchange).with(Consts.BUFFER_ROUTING_KEY));
     }
 
+    //每个延迟级别一个TTL队列，过期后回到worker队列
+    @Bean
+    public Declarables declarablesForRetry() {
+        DirectExchange directExchange = new DirectExchange(Consts.RETRY_EXCHANGE);
+        List<Declarable> declarables = new ArrayList<>();
+        declarables.add(directExchange);
+        for (int delay : Consts.RETRY_DELAYS) {
+            Queue queue = QueueBuilder.durable(Consts.RETRY_QUEUE_PREFIX + delay)
+                    .withArgument("x-dead-letter-exchange", Consts.EXCHANGE)
+                    .withArgument("x-dead-letter-routing-key", Consts.ROUTING_KEY)
+                    .withArgument("x-message-ttl", delay)
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(directExchange).with(queue.getName()));
+        }
+        return new Declarables(declarables);
+    }
+
+    //批量消费，一批最多batchSize条，整批处理完后一次确认
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(ConnectionFactory connectionFactory,
+                                                                      @Value("${rabbitmqdlx.batchSize:100}") int batchSize) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(100L);
+        factory.setPrefetchCount(batchSize * 2);
+        factory.setConcurrentConsumers(4);
+        return factory;
+    }
+
     @Bean
     public Declarables declarablesForDead() {
         Queue queue = new Queue(Consts.DEAD_QUEUE);
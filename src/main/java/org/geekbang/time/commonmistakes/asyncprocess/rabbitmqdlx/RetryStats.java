@@ -0,0 +1,47 @@
+package org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Getter;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+//收到、重试和进入死信队列的消息数，两种重试方式共用，用来比较重投递的吞吐
+@Component
+@Getter
+public class RetryStats {
+    private final LongAdder received = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder dead = new LongAdder();
+    private volatile long beginNanos = System.nanoTime();
+
+    @PostConstruct
+    public void init() {
+        FunctionCounter.builder("rabbitmqdlx.received", received, LongAdder::sum).register(Metrics.globalRegistry);
+        FunctionCounter.builder("rabbitmqdlx.retried", retried, LongAdder::sum).register(Metrics.globalRegistry);
+        FunctionCounter.builder("rabbitmqdlx.dead", dead, LongAdder::sum).register(Metrics.globalRegistry);
+    }
+
+    public void reset() {
+        received.reset();
+        retried.reset();
+        dead.reset();
+        beginNanos = System.nanoTime();
+    }
+
+    public Map<String, Object> snapshot() {
+        double seconds = Math.max(1, System.nanoTime() - beginNanos) / 1_000_000_000.0;
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("seconds", (long) seconds);
+        snapshot.put("received", received.sum());
+        snapshot.put("retried", retried.sum());
+        snapshot.put("dead", dead.sum());
+        snapshot.put("receivedPerSecond", (long) (received.sum() / seconds));
+        snapshot.put("retriedPerSecond", (long) (retried.sum() / seconds));
+        return snapshot;
+    }
+}
@@ -0,0 +1,71 @@
+package org.geekbang.time.commonmistakes.asyncprocess.rabbitmqdlx;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 分级延迟重试，替代MQListener.handler里所有重试共用一个3秒TTL的buffer队列：
+ *
+ * 1、每个延迟级别一个TTL队列（默认1s、5s、30s、5m），第n次重试发到第n个延迟队列，过期后通过DLX回到worker队列，
+ * 同一个队列里的消息TTL相同，不会出现队首消息没过期挡住后面消息的问题；
+ * 2、重试次数记录在自己的x-retry-count头里，不再解析x-death（消息经过多个延迟队列后x-death有多条记录），
+ * 重新发布时只带上这个头和内容类型，不用MessagePropertiesConverter把整个MessageProperties转换一遍；
+ * 3、批量消费，一批消息里需要重试和进入死信的消息发布完后等待一次Publisher Confirm，
+ * 确认成功后监听方法返回，容器再一次性确认整批消息，Broker没确认时整批退回队列重新投递，消息不会丢。
+ */
+@Component
+@Slf4j
+public class TieredRetryListener {
+
+    private static final long CONFIRM_TIMEOUT_MILLIS = 10_000;
+
+    @Autowired
+    private RetryStats retryStats;
+
+    @RabbitListener(queues = Consts.QUEUE, containerFactory = "batchContainerFactory", autoStartup = "${rabbitmqdlx.tiered:true}")
+    public void handler(List<Message> messages, Channel channel) throws IOException, InterruptedException, TimeoutException {
+        //getNextPublishSeqNo为0说明Channel还没开启Confirm模式，每个消费者的Channel只需要开启一次
+        if (channel.getNextPublishSeqNo() == 0)
+            channel.confirmSelect();
+        for (Message message : messages) {
+            retryStats.getReceived().increment();
+            try {
+                log.debug("Handler 收到消息：{}", new String(message.getBody()));
+                throw new RuntimeException("处理消息失败");
+            } catch (Exception e) {
+                retry(message, channel);
+            }
+        }
+        channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+    }
+
+    private void retry(Message message, Channel channel) throws IOException {
+        MessageProperties properties = message.getMessageProperties();
+        Object header = properties.getHeaders().get(Consts.RETRY_COUNT_HEADER);
+        int retryCount = header instanceof Number ? ((Number) header).intValue() : 0;
+        if (retryCount < Consts.RETRY_DELAYS.length) {
+            int delay = Consts.RETRY_DELAYS[retryCount];
+            AMQP.BasicProperties retryProperties = new AMQP.BasicProperties.Builder()
+                    .contentType(properties.getContentType())
+                    .deliveryMode(2)
+                    .headers(Collections.singletonMap(Consts.RETRY_COUNT_HEADER, retryCount + 1))
+                    .build();
+            channel.basicPublish(Consts.RETRY_EXCHANGE, Consts.RETRY_QUEUE_PREFIX + delay, retryProperties, message.getBody());
+            retryStats.getRetried().increment();
+        } else {
+            log.debug("Handler 消费消息异常，已重试 {} 次，发送到死信队列处理！", retryCount);
+            channel.basicPublish(Consts.DEAD_EXCHANGE, Consts.DEAD_ROUTING_KEY, null, message.getBody());
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.PostConstruct;
+import java.time.Duration;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -24,19 +25,27 @@ public class CacheConcurrentController {
     private StringRedisTemplate stringRedisTemplate;
 
     private AtomicInteger atomicInteger = new AtomicInteger();
+    private AtomicInteger redisAtomicInteger = new AtomicInteger();
     @Autowired
     private RedissonClient redissonClient;
 
+    private TwoLevelCache twoLevelCache;
+
     @PostConstruct
     public void init() {
+        //本地缓存1秒，过期后3秒内先返回旧值再后台刷新；Redis缓存5秒，过期时间都加上0~20%的随机抖动
+        twoLevelCache = new TwoLevelCache("hotspot", stringRedisTemplate, redissonClient,
+                1000, Duration.ofSeconds(1), Duration.ofSeconds(3), Duration.ofSeconds(5), 0.2);
         stringRedisTemplate.opsForValue().set("hotsopt", getExpensiveData(), 5, TimeUnit.SECONDS);
         Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            log.info("DB QPS : {}", atomicInteger.getAndSet(0));
+            log.info("DB QPS : {} Redis QPS : {}", atomicInteger.getAndSet(0),
+                    redisAtomicInteger.getAndSet(0) + twoLevelCache.resetRedisCalls());
         }, 0, 1, TimeUnit.SECONDS);
     }
 
     @GetMapping("wrong")
     public String wrong() {
+        redisAtomicInteger.incrementAndGet();
         String data = stringRedisTemplate.opsForValue().get("hotsopt");
         if (StringUtils.isEmpty(data)) {
             data = getExpensiveData();
@@ -47,11 +56,13 @@ public class CacheConcurrentController {
 
     @GetMapping("right")
     public String right() {
+        redisAtomicInteger.incrementAndGet();
         String data = stringRedisTemplate.opsForValue().get("hotsopt");
         if (StringUtils.isEmpty(data)) {
             RLock locker = redissonClient.getLock("locker");
             if (locker.tryLock()) {
                 try {
+                    redisAtomicInteger.incrementAndGet();
                     data = stringRedisTemplate.opsForValue().get("hotsopt");
                     if (StringUtils.isEmpty(data)) {
                         data = getExpensiveData();
@@ -65,6 +76,14 @@ public class CacheConcurrentController {
         return data;
     }
 
+    /**
+     * 两级缓存 + 进程内single-flight，热点Key的请求大部分在本地缓存命中，Redis和数据库QPS都基本恒定
+     */
+    @GetMapping("twolevel")
+    public String twoLevel() {
+        return twoLevelCache.get("hotsopt", key -> getExpensiveData());
+    }
+
     private String getExpensiveData() {
         atomicInteger.incrementAndGet();
         return "important data";
@@ -0,0 +1,188 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheconcurrent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 进程内缓存 + Redis的两级缓存，用来扛热点Key：
+ *
+ * 1、进程内缓存有大小上限，过期时间加上随机抖动，避免同一批Key同时过期；
+ * 2、进程内缓存过期后的一段宽限期内（staleTtl）先返回旧值，同时在后台刷新（stale-while-revalidate）；
+ * 3、同一个Key在一个进程内同时只有一个线程去Redis和数据库加载（single-flight），其它线程等待这次加载的结果；
+ * 4、Redis也没有数据时，仍然用Redisson分布式锁保证多个节点只有一个去查数据库，
+ * 抢不到锁的节点等待一会儿重新读Redis，而不是直接返回空数据。
+ *
+ * 这样热点Key的Redis QPS约等于 节点数/本地TTL，数据库QPS约等于 1/Redis TTL，和请求量无关。
+ */
+@Slf4j
+public class TwoLevelCache {
+
+    private final String name;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final Duration localTtl;
+    private final Duration staleTtl;
+    private final Duration redisTtl;
+    private final double jitter;
+    private final Cache<String, Entry> local;
+    //正在加载中的Key，同一个Key只有一个Future
+    private final ConcurrentHashMap<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor refreshThreadPool;
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder redisCalls = new LongAdder();
+    private final LongAdder sourceLoads = new LongAdder();
+
+    /**
+     * @param localTtl 进程内缓存的过期时间
+     * @param staleTtl 进程内缓存过期后还可以返回旧值的时间
+     * @param redisTtl Redis缓存的过期时间
+     * @param jitter   过期时间的随机抖动比例，比如0.2表示在TTL基础上随机增加0~20%
+     */
+    public TwoLevelCache(String name, StringRedisTemplate stringRedisTemplate, RedissonClient redissonClient,
+                         int maxLocalSize, Duration localTtl, Duration staleTtl, Duration redisTtl, double jitter) {
+        this.name = name;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.localTtl = localTtl;
+        this.staleTtl = staleTtl;
+        this.redisTtl = redisTtl;
+        this.jitter = jitter;
+        this.local = CacheBuilder.newBuilder()
+                .maximumSize(maxLocalSize)
+                //超过宽限期的数据已经不能用了，交给Guava清理
+                .expireAfterWrite((long) (localTtl.toMillis() * (1 + jitter)) + staleTtl.toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        //后台刷新失败或者被丢弃都不要紧，下次读取时还会再触发
+        this.refreshThreadPool = ThreadPoolRegistry.newThreadPool(name + "-refresh-%d",
+                2, 2, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(100),
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    public String get(String key, Function<String, String> loader) {
+        Entry entry = local.getIfPresent(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.expireAt) {
+            localHits.increment();
+            return entry.value;
+        }
+        if (entry != null && now < entry.expireAt + staleTtl.toMillis()) {
+            staleHits.increment();
+            //已经在刷新的话不用再提交任务
+            if (!loading.containsKey(key))
+                refreshThreadPool.execute(() -> singleFlight(key, loader).join());
+            return entry.value;
+        }
+        return singleFlight(key, loader).join();
+    }
+
+    public void invalidate(String key) {
+        local.invalidate(key);
+        stringRedisTemplate.delete(key);
+    }
+
+    public long localHits() {
+        return localHits.sum();
+    }
+
+    public long staleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     * 返回并清零上次调用以来访问Redis的次数
+     */
+    public long resetRedisCalls() {
+        return redisCalls.sumThenReset();
+    }
+
+    /**
+     * 返回并清零上次调用以来调用loader的次数
+     */
+    public long resetSourceLoads() {
+        return sourceLoads.sumThenReset();
+    }
+
+    private CompletableFuture<String> singleFlight(String key, Function<String, String> loader) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = loading.putIfAbsent(key, future);
+        if (existing != null)
+            return existing;
+        try {
+            String value = load(key, loader);
+            if (value != null)
+                local.put(key, new Entry(value, System.currentTimeMillis() + withJitter(localTtl, jitter).toMillis()));
+            future.complete(value);
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+        } finally {
+            loading.remove(key, future);
+        }
+        return future;
+    }
+
+    private String load(String key, Function<String, String> loader) throws InterruptedException {
+        String data = redisGet(key);
+        if (!StringUtils.isEmpty(data))
+            return data;
+        RLock locker = redissonClient.getLock(name + ":locker:" + key);
+        //最多等1秒，锁30秒自动释放，防止持有锁的节点挂掉
+        if (locker.tryLock(1, 30, TimeUnit.SECONDS)) {
+            try {
+                data = redisGet(key);
+                if (StringUtils.isEmpty(data)) {
+                    sourceLoads.increment();
+                    data = loader.apply(key);
+                    if (data != null) {
+                        redisCalls.increment();
+                        stringRedisTemplate.opsForValue().set(key, data, withJitter(redisTtl, jitter).toMillis(), TimeUnit.MILLISECONDS);
+                    }
+                }
+                return data;
+            } finally {
+                locker.unlock();
+            }
+        }
+        //其它节点正在加载，稍等再读一次Redis
+        for (int i = 0; i < 3; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            data = redisGet(key);
+            if (!StringUtils.isEmpty(data))
+                return data;
+        }
+        log.warn("cache {} key {} still not loaded after waiting for other node", name, key);
+        return null;
+    }
+
+    private String redisGet(String key) {
+        redisCalls.increment();
+        return stringRedisTemplate.opsForValue().get(key);
+    }
+
+    private static Duration withJitter(Duration ttl, double jitter) {
+        return Duration.ofMillis((long) (ttl.toMillis() * (1 + ThreadLocalRandom.current().nextDouble() * jitter)));
+    }
+
+    private static class Entry {
+        private final String value;
+        private final long expireAt;
+
+        Entry(String value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jodd.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定时批量刷新缓存，取代逐个Key同步set的rightInit2：
+ *
+ * 1、所有Key按hash分到slots个槽，每个tick只刷新一个槽，一个完整周期（refreshPeriod）刷新完所有Key，
+ * 写入时间被均匀打散，加上随机抖动的过期时间就不会集中过期；
+ * 2、每个槽按batchSize批量从数据源加载，再通过Pipeline一次性发送SET EX（MSET不支持过期时间）；
+ * 3、数据源支持增量查询时，每个tick还会把上次以来变化的数据立即写入，不用等到这个Key所在的槽；
+ * 4、每个槽的刷新耗时、刷新Key数和刷新延迟（最久没有刷新的槽距今多久）发布到Metrics.globalRegistry。
+ *
+ * 过期时间默认是两个刷新周期，刷新正常时Key永远不会过期，刷新任务挂掉时缓存也能自动失效。
+ */
+@Slf4j
+public class BulkCacheRefresher {
+
+    public interface DataSource {
+        /**
+         * 所有需要缓存的Key
+         */
+        List<String> keys();
+
+        /**
+         * 批量加载，返回的Map中没有的Key不会写入缓存
+         */
+        Map<String, String> load(List<String> keys);
+
+        /**
+         * 增量加载since（毫秒时间戳）之后变化的数据，不支持增量时返回空Map
+         */
+        default Map<String, String> loadChangedSince(long since) {
+            return Collections.emptyMap();
+        }
+    }
+
+    private final String name;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final DataSource dataSource;
+    private final Duration refreshPeriod;
+    private final int slots;
+    private final int batchSize;
+    private final Duration ttl;
+    private final ScheduledExecutorService scheduler;
+
+    //每个槽最近一次刷新完成的时间
+    private final long[] slotRefreshedAt;
+    //每个周期开始时重新按槽划分一次Key，周期内新增的Key等下个周期
+    private List<List<String>> slotKeys;
+    private int nextSlot;
+    private long lastIncrementalAt;
+    private volatile double lastKeysPerSecond;
+
+    private final Timer refreshTimer;
+    private final Timer incrementalTimer;
+    private final Counter refreshedKeys;
+    private final Counter failures;
+
+    public BulkCacheRefresher(String name, StringRedisTemplate stringRedisTemplate, DataSource dataSource,
+                              Duration refreshPeriod, int slots, int batchSize) {
+        if (slots <= 0 || batchSize <= 0)
+            throw new IllegalArgumentException("slots and batchSize must be positive");
+        this.name = name;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.dataSource = dataSource;
+        this.refreshPeriod = refreshPeriod;
+        this.slots = slots;
+        this.batchSize = batchSize;
+        this.ttl = refreshPeriod.multipliedBy(2);
+        this.slotRefreshedAt = new long[slots];
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-refresher-%d").setDaemon(true).get());
+
+        this.refreshTimer = Timer.builder("cache.refresh.duration").tag("name", name).tag("type", "slot")
+                .publishPercentiles(0.5, 0.99).register(Metrics.globalRegistry);
+        this.incrementalTimer = Timer.builder("cache.refresh.duration").tag("name", name).tag("type", "incremental")
+                .publishPercentiles(0.5, 0.99).register(Metrics.globalRegistry);
+        this.refreshedKeys = Counter.builder("cache.refresh.keys").tag("name", name).register(Metrics.globalRegistry);
+        this.failures = Counter.builder("cache.refresh.failures").tag("name", name).register(Metrics.globalRegistry);
+        Gauge.builder("cache.refresh.keys.per.second", this, r -> r.lastKeysPerSecond).tag("name", name).register(Metrics.globalRegistry);
+        Gauge.builder("cache.refresh.lag", this, BulkCacheRefresher::lagMillis).tag("name", name)
+                .baseUnit("milliseconds").register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 先同步刷新一遍所有Key，再开始按槽滚动刷新
+     */
+    public void start() {
+        long begin = System.currentTimeMillis();
+        lastIncrementalAt = begin;
+        slotKeys = splitKeys();
+        for (int slot = 0; slot < slots; slot++) {
+            refreshSlot(slot);
+        }
+        log.info("cache {} initialized in {} ms", name, System.currentTimeMillis() - begin);
+        long tickMillis = Math.max(1, refreshPeriod.toMillis() / slots);
+        scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 最久没有刷新的槽距今的毫秒数
+     */
+    public long lagMillis() {
+        long oldest = Long.MAX_VALUE;
+        synchronized (slotRefreshedAt) {
+            for (long refreshedAt : slotRefreshedAt) {
+                oldest = Math.min(oldest, refreshedAt);
+            }
+        }
+        return oldest == 0 ? -1 : System.currentTimeMillis() - oldest;
+    }
+
+    private void tick() {
+        try {
+            refreshChanged();
+            if (nextSlot == 0)
+                slotKeys = splitKeys();
+            refreshSlot(nextSlot);
+            nextSlot = (nextSlot + 1) % slots;
+            if (nextSlot == 0)
+                log.info("cache {} refresh cycle finished, lag:{}ms, keys/s:{}", name, lagMillis(), (long) lastKeysPerSecond);
+        } catch (Exception ex) {
+            failures.increment();
+            log.warn("cache {} refresh failed", name, ex);
+        }
+    }
+
+    private void refreshSlot(int slot) {
+        long begin = System.nanoTime();
+        List<String> keys = slotKeys.get(slot);
+        int written = 0;
+        for (int from = 0; from < keys.size(); from += batchSize) {
+            written += write(dataSource.load(keys.subList(from, Math.min(keys.size(), from + batchSize))));
+        }
+        long tookNanos = System.nanoTime() - begin;
+        refreshTimer.record(tookNanos, TimeUnit.NANOSECONDS);
+        if (tookNanos > 0)
+            lastKeysPerSecond = written * 1e9 / tookNanos;
+        synchronized (slotRefreshedAt) {
+            slotRefreshedAt[slot] = System.currentTimeMillis();
+        }
+    }
+
+    private List<List<String>> splitKeys() {
+        List<List<String>> result = new ArrayList<>(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            result.add(new ArrayList<>());
+        }
+        for (String key : dataSource.keys()) {
+            result.get(Math.floorMod(key.hashCode(), slots)).add(key);
+        }
+        return result;
+    }
+
+    private void refreshChanged() {
+        long begin = System.nanoTime();
+        long since = lastIncrementalAt;
+        lastIncrementalAt = System.currentTimeMillis();
+        Map<String, String> changed = dataSource.loadChangedSince(since);
+        if (!changed.isEmpty()) {
+            write(changed);
+            incrementalTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private int write(Map<String, String> data) {
+        if (data.isEmpty())
+            return 0;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            StringRedisConnection connection = (StringRedisConnection) redisConnection;
+            data.forEach((key, value) -> {
+                if (value != null) {
+                    //每个Key的过期时间再加上0~10%的随机抖动
+                    long ttlMillis = ttl.toMillis() + ThreadLocalRandom.current().nextLong(ttl.toMillis() / 10 + 1);
+                    connection.set(key, value, Expiration.milliseconds(ttlMillis), RedisStringCommands.SetOption.UPSERT);
+                }
+            });
+            return null;
+        });
+        refreshedKeys.increment(data.size());
+        return data.size();
+    }
+}
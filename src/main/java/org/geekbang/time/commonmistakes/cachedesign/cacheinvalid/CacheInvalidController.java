@@ -6,14 +6,19 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.PostConstruct;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 @Slf4j
@@ -24,6 +29,9 @@ public class CacheInvalidController {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
     private AtomicInteger atomicInteger = new AtomicInteger();
+    //城市ID -> 最后修改时间，模拟数据库中的更新时间字段
+    private ConcurrentHashMap<Integer, Long> cityUpdatedAt = new ConcurrentHashMap<>();
+    private BulkCacheRefresher bulkCacheRefresher;
 
     //@PostConstruct
     public void wrongInit() {
@@ -43,7 +51,7 @@ public class CacheInvalidController {
         }, 0, 1, TimeUnit.SECONDS);
     }
 
-    @PostConstruct
+    //@PostConstruct
     public void rightInit2() throws InterruptedException {
         CountDownLatch countDownLatch = new CountDownLatch(1);
         Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
@@ -68,6 +76,50 @@ public class CacheInvalidController {
         countDownLatch.await();
     }
 
+    @PostConstruct
+    public void rightInit3() {
+        //30秒刷新一轮，分成30个槽，每秒刷新一个槽，每批500个Key通过Pipeline写入
+        bulkCacheRefresher = new BulkCacheRefresher("city", stringRedisTemplate, new BulkCacheRefresher.DataSource() {
+            @Override
+            public List<String> keys() {
+                return IntStream.rangeClosed(1, 1000).mapToObj(i -> "city" + i).collect(Collectors.toList());
+            }
+
+            @Override
+            public Map<String, String> load(List<String> keys) {
+                return getCitiesFromDb(keys.stream().map(key -> Integer.parseInt(key.substring(4))).collect(Collectors.toList()));
+            }
+
+            @Override
+            public Map<String, String> loadChangedSince(long since) {
+                List<Integer> changed = cityUpdatedAt.entrySet().stream()
+                        .filter(entry -> entry.getValue() >= since)
+                        .map(Map.Entry::getKey)
+                        .collect(Collectors.toList());
+                return changed.isEmpty() ? Collections.emptyMap() : getCitiesFromDb(changed);
+            }
+        }, Duration.ofSeconds(30), 30, 500);
+        bulkCacheRefresher.start();
+
+        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
+            log.info("DB QPS : {}", atomicInteger.getAndSet(0));
+        }, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 模拟修改城市数据，BulkCacheRefresher会在1秒内把变化写入缓存
+     */
+    @GetMapping("updatecity")
+    public void updateCity(@RequestParam("id") int id) {
+        cityUpdatedAt.put(id, System.currentTimeMillis());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (bulkCacheRefresher != null)
+            bulkCacheRefresher.stop();
+    }
+
     @GetMapping("city")
     public String city() {
         int id = ThreadLocalRandom.current().nextInt(1000) + 1;
@@ -82,6 +134,14 @@ public class CacheInvalidController {
     }
 
 
+    //一次批量查询只算一次数据库访问
+    private Map<String, String> getCitiesFromDb(List<Integer> cityIds) {
+        atomicInteger.incrementAndGet();
+        Map<String, String> result = new HashMap<>();
+        cityIds.forEach(cityId -> result.put("city" + cityId, "citydata" + System.currentTimeMillis()));
+        return result;
+    }
+
     private String getCityFromDb(int cityId) {
         atomicInteger.incrementAndGet();
         return "citydata" + System.currentTimeMillis();
@@ -33,22 +33,22 @@ public class LinkedListApplication {
         System.out.println(stopWatch2.prettyPrint());
     }
 
-    private static void linkedListGet(int elementCount, int loopCount) {
+    static void linkedListGet(int elementCount, int loopCount) {
         List<Integer> list = IntStream.rangeClosed(1, elementCount).boxed().collect(Collectors.toCollection(LinkedList::new));
         IntStream.rangeClosed(1, loopCount).forEach(i -> list.get(ThreadLocalRandom.current().nextInt(elementCount)));
     }
 
-    private static void arrayListGet(int elementCount, int loopCount) {
+    static void arrayListGet(int elementCount, int loopCount) {
         List<Integer> list = IntStream.rangeClosed(1, elementCount).boxed().collect(Collectors.toCollection(ArrayList::new));
         IntStream.rangeClosed(1, loopCount).forEach(i -> list.get(ThreadLocalRandom.current().nextInt(elementCount)));
     }
 
-    private static void linkedListAdd(int elementCount, int loopCount) {
+    static void linkedListAdd(int elementCount, int loopCount) {
         List<Integer> list = IntStream.rangeClosed(1, elementCount).boxed().collect(Collectors.toCollection(LinkedList::new));
         IntStream.rangeClosed(1, loopCount).forEach(i -> list.add(ThreadLocalRandom.current().nextInt(elementCount), 1));
     }
 
-    private static void arrayListAdd(int elementCount, int loopCount) {
+    static void arrayListAdd(int elementCount, int loopCount) {
         List<Integer> list = IntStream.rangeClosed(1, elementCount).boxed().collect(Collectors.toCollection(ArrayList::new));
         IntStream.rangeClosed(1, loopCount).forEach(i -> list.add(ThreadLocalRandom.current().nextInt(elementCount), 1));
     }
@@ -34,7 +34,7 @@ public class ListVsMapApplication {
         TimeUnit.HOURS.sleep(1);
     }
 
-    private static Object listSearch(int elementCount, int loopCount) {
+    static Object listSearch(int elementCount, int loopCount) {
         List<Order> list = IntStream.rangeClosed(1, elementCount).mapToObj(i -> new Order(i)).collect(Collectors.toList());
         IntStream.rangeClosed(1, loopCount).forEach(i -> {
             int search = ThreadLocalRandom.current().nextInt(elementCount);
@@ -44,7 +44,7 @@ public class ListVsMapApplication {
         return list;
     }
 
-    private static Object mapSearch(int elementCount, int loopCount) {
+    static Object mapSearch(int elementCount, int loopCount) {
         Map<Integer, Order> map = IntStream.rangeClosed(1, elementCount).boxed().collect(Collectors.toMap(Function.identity(), i -> new Order(i)));
         IntStream.rangeClosed(1, loopCount).forEach(i -> {
             int search = ThreadLocalRandom.current().nextInt(elementCount);
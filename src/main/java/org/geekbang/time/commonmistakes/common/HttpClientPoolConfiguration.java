@@ -0,0 +1,122 @@
+package org.geekbang.time.commonmistakes.common;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局共享的HttpClient，取代各个Controller里自己static new出来的CloseableHttpClient：
+ *
+ * 1、连接池大小按路由（目标主机）单独配置，见HttpClientPoolProperties；
+ * 2、连接池整体统计（httpcomponents.httpclient.pool.*）、按路由的统计和获取连接耗时发布到Metrics.globalRegistry；
+ * 3、后台线程定期关闭过期和空闲超时的连接；
+ * 4、应用启动完成后按warmupConnections预先建立到已知主机的连接，第一批请求不再承担TCP握手的开销。
+ *
+ * 各个案例的Application只扫描自己的包，需要的话通过@Import(HttpClientPoolConfiguration.class)引入
+ */
+@Configuration
+@EnableConfigurationProperties(HttpClientPoolProperties.class)
+@Slf4j
+public class HttpClientPoolConfiguration {
+
+    private static final String POOL_NAME = "shared";
+
+    @Autowired
+    private HttpClientPoolProperties properties;
+
+    @Bean
+    public MeteredHttpClientConnectionManager httpClientConnectionManager() {
+        MeteredHttpClientConnectionManager connectionManager = new MeteredHttpClientConnectionManager(POOL_NAME, Metrics.globalRegistry);
+        connectionManager.setMaxTotal(properties.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(properties.getDefaultMaxPerRoute());
+        connectionManager.setValidateAfterInactivity((int) properties.getValidateAfterInactivity().toMillis());
+        for (HttpClientPoolProperties.Route route : properties.getRoutes()) {
+            HttpRoute httpRoute = toHttpRoute(route.getUrl());
+            if (route.getMaxConnections() > 0)
+                connectionManager.setMaxPerRoute(httpRoute, route.getMaxConnections());
+            connectionManager.bindRouteStats(httpRoute);
+        }
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, POOL_NAME).bindTo(Metrics.globalRegistry);
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient httpClient(MeteredHttpClientConnectionManager connectionManager) {
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout((int) properties.getConnectTimeout().toMillis())
+                        .setConnectionRequestTimeout((int) properties.getConnectionRequestTimeout().toMillis())
+                        .setSocketTimeout((int) properties.getSocketTimeout().toMillis())
+                        .build())
+                //启动IdleConnectionEvictor后台线程，HttpClient关闭时一并停止
+                .evictExpiredConnections()
+                .evictIdleConnections(properties.getIdleTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 案例经常调用自己，所以要等Web服务器启动之后再预热
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmup() {
+        warmup(httpClientConnectionManager());
+    }
+
+    void warmup(MeteredHttpClientConnectionManager connectionManager) {
+        for (HttpClientPoolProperties.Route route : properties.getRoutes()) {
+            if (route.getWarmupConnections() <= 0)
+                continue;
+            HttpRoute httpRoute = toHttpRoute(route.getUrl());
+            int count = Math.min(route.getWarmupConnections(), connectionManager.getMaxPerRoute(httpRoute));
+            long begin = System.currentTimeMillis();
+            //先把连接全部借出来再归还，否则每次拿到的都是刚归还的同一个连接
+            List<HttpClientConnection> connections = new ArrayList<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    HttpClientConnection connection = connectionManager.requestConnection(httpRoute, null)
+                            .get(properties.getConnectionRequestTimeout().toMillis(), TimeUnit.MILLISECONDS);
+                    connections.add(connection);
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, httpRoute, (int) properties.getConnectTimeout().toMillis(), context);
+                    connectionManager.routeComplete(connection, httpRoute, context);
+                }
+                log.info("warmed up {} connections to {} in {} ms", count, route.getUrl(), System.currentTimeMillis() - begin);
+            } catch (Exception ex) {
+                log.warn("warmup connections to {} failed after {} connections", route.getUrl(), connections.size(), ex);
+            } finally {
+                for (HttpClientConnection connection : connections) {
+                    //没连上的连接归还时state为null且未打开，会被连接池直接丢弃
+                    connectionManager.releaseConnection(connection, null,
+                            properties.getIdleTimeout().toMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    static HttpRoute toHttpRoute(String url) {
+        HttpHost host = HttpHost.create(url);
+        boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+        //和DefaultRoutePlanner一样补齐默认端口，否则和请求实际使用的路由对不上
+        if (host.getPort() < 0)
+            host = new HttpHost(host.getHostName(), secure ? 443 : 80, host.getSchemeName());
+        return new HttpRoute(host, null, secure);
+    }
+}
@@ -0,0 +1,46 @@
+package org.geekbang.time.commonmistakes.common;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 共享HttpClient连接池的配置，比如：
+ *
+ * httpclient.pool.max-total=200
+ * httpclient.pool.default-max-per-route=20
+ * httpclient.pool.routes[0].url=http://127.0.0.1:45678
+ * httpclient.pool.routes[0].max-connections=10
+ * httpclient.pool.routes[0].warmup-connections=5
+ */
+@Data
+@ConfigurationProperties(prefix = "httpclient.pool")
+public class HttpClientPoolProperties {
+    //整个连接池的最大连接数
+    private int maxTotal = 200;
+    //没有单独配置的路由（目标主机）的最大连接数，HttpClient默认只有2
+    private int defaultMaxPerRoute = 20;
+    private Duration connectTimeout = Duration.ofSeconds(2);
+    //从连接池获取连接的超时时间和读取超时时间，0表示无限等待，和HttpClient的默认值一样；
+    //需要超时的案例在自己的properties里配置，比如httpclient.pool.socket-timeout=10s
+    private Duration connectionRequestTimeout = Duration.ZERO;
+    private Duration socketTimeout = Duration.ZERO;
+    //空闲超过这个时间的连接由后台线程关闭，要小于服务端的keep-alive超时
+    private Duration idleTimeout = Duration.ofSeconds(60);
+    //连接空闲超过这个时间再次使用前先检查是否可用
+    private Duration validateAfterInactivity = Duration.ofSeconds(2);
+    private List<Route> routes = new ArrayList<>();
+
+    @Data
+    public static class Route {
+        //协议、主机和端口，比如http://127.0.0.1:45678
+        private String url;
+        //0表示使用defaultMaxPerRoute
+        private int maxConnections;
+        //启动时预先建立的连接数，不超过这个路由的最大连接数
+        private int warmupConnections;
+    }
+}
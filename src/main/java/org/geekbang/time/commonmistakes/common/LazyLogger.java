@@ -0,0 +1,253 @@
+package org.geekbang.time.commonmistakes.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.spi.LocationAwareLogger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * SLF4J的一层薄封装，解决热点路径上打日志的两个问题：
+ *
+ * 1、级别没开启时也要付出的代价：log.debug("{}", i)里int会先装箱，log.debug("x:" + slowString())会先拼接字符串。
+ * 这里提供int/long参数的重载和Supplier参数，先判断级别再装箱或者计算参数；
+ * 2、循环里打日志太多：sampleOneIn(n)每n次只输出一次，atMostPerSecond(m)每秒最多输出m次，
+ * 被跳过的次数通过getSuppressed获取。采样和限流是按LazyLogger实例计算的，
+ * 所以需要给每个调用点单独创建一个实例（比如static final字段）：
+ *
+ * private static final LazyLogger logger = LazyLogger.getLogger(LoggingController.class);
+ * private static final LazyLogger loopLogger = logger.atMostPerSecond(10);
+ *
+ * 3、底层是Logback这种LocationAwareLogger时把LazyLogger的类名作为FQCN传下去，%line、%method显示的是调用LazyLogger的位置。
+ */
+public class LazyLogger {
+
+    private static final String FQCN = LazyLogger.class.getName();
+
+    private final Logger logger;
+    private final LocationAwareLogger locationAwareLogger;
+    private final Gate gate;
+    private final LongAdder suppressed = new LongAdder();
+
+    private LazyLogger(Logger logger, Gate gate) {
+        this.logger = logger;
+        this.locationAwareLogger = logger instanceof LocationAwareLogger ? (LocationAwareLogger) logger : null;
+        this.gate = gate;
+    }
+
+    public static LazyLogger getLogger(Class<?> clazz) {
+        return new LazyLogger(LoggerFactory.getLogger(clazz), null);
+    }
+
+    public static LazyLogger getLogger(String name) {
+        return new LazyLogger(LoggerFactory.getLogger(name), null);
+    }
+
+    /**
+     * 返回一个每n次调用只输出一次的新实例（第1次、第n+1次……）
+     */
+    public LazyLogger sampleOneIn(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("n must be positive");
+        AtomicLong counter = new AtomicLong();
+        return new LazyLogger(logger, () -> counter.getAndIncrement() % n == 0);
+    }
+
+    /**
+     * 返回一个每秒最多输出permits次的新实例
+     */
+    public LazyLogger atMostPerSecond(int permits) {
+        if (permits <= 0)
+            throw new IllegalArgumentException("permits must be positive");
+        return new LazyLogger(logger, new PerSecondGate(permits));
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
+    public boolean isInfoEnabled() {
+        return logger.isInfoEnabled();
+    }
+
+    public void debug(String msg) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, msg, null, null);
+    }
+
+    public void debug(String format, int arg) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg}, null);
+    }
+
+    public void debug(String format, long arg) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg}, null);
+    }
+
+    public void debug(String format, Object arg) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg}, null);
+    }
+
+    public void debug(String format, Supplier<?> arg) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg.get()}, null);
+    }
+
+    public void debug(String format, int arg1, int arg2) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg1, arg2}, null);
+    }
+
+    public void debug(String format, long arg1, long arg2) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg1, arg2}, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg1, arg2}, null);
+    }
+
+    public void debug(String format, Supplier<?> arg1, Supplier<?> arg2) {
+        if (logger.isDebugEnabled() && pass())
+            log(LocationAwareLogger.DEBUG_INT, format, new Object[]{arg1.get(), arg2.get()}, null);
+    }
+
+    public void info(String msg) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, msg, null, null);
+    }
+
+    public void info(String format, int arg) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg}, null);
+    }
+
+    public void info(String format, long arg) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg}, null);
+    }
+
+    public void info(String format, Object arg) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg}, null);
+    }
+
+    public void info(String format, Supplier<?> arg) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg.get()}, null);
+    }
+
+    public void info(String format, int arg1, int arg2) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg1, arg2}, null);
+    }
+
+    public void info(String format, long arg1, long arg2) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg1, arg2}, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg1, arg2}, null);
+    }
+
+    public void info(String format, Supplier<?> arg1, Supplier<?> arg2) {
+        if (logger.isInfoEnabled() && pass())
+            log(LocationAwareLogger.INFO_INT, format, new Object[]{arg1.get(), arg2.get()}, null);
+    }
+
+    public void warn(String format, Object arg) {
+        if (logger.isWarnEnabled() && pass())
+            log(LocationAwareLogger.WARN_INT, format, new Object[]{arg}, null);
+    }
+
+    public void warn(String format, Supplier<?> arg) {
+        if (logger.isWarnEnabled() && pass())
+            log(LocationAwareLogger.WARN_INT, format, new Object[]{arg.get()}, null);
+    }
+
+    public void warn(String msg, Throwable t) {
+        if (logger.isWarnEnabled() && pass())
+            log(LocationAwareLogger.WARN_INT, msg, null, t);
+    }
+
+    //错误日志不采样也不限流
+    public void error(String format, Object arg) {
+        log(LocationAwareLogger.ERROR_INT, format, new Object[]{arg}, null);
+    }
+
+    public void error(String msg, Throwable t) {
+        log(LocationAwareLogger.ERROR_INT, msg, null, t);
+    }
+
+    private void log(int level, String format, Object[] args, Throwable t) {
+        if (locationAwareLogger != null) {
+            locationAwareLogger.log(null, FQCN, level, format, args, t);
+            return;
+        }
+        //带异常的重载都没有参数，异常作为最后一个参数时SLF4J会按异常处理
+        Object[] arguments = t == null ? args : new Object[]{t};
+        switch (level) {
+            case LocationAwareLogger.DEBUG_INT:
+                logger.debug(format, arguments);
+                break;
+            case LocationAwareLogger.INFO_INT:
+                logger.info(format, arguments);
+                break;
+            case LocationAwareLogger.WARN_INT:
+                logger.warn(format, arguments);
+                break;
+            default:
+                logger.error(format, arguments);
+        }
+    }
+
+    private boolean pass() {
+        if (gate == null || gate.pass())
+            return true;
+        suppressed.increment();
+        return false;
+    }
+
+    private interface Gate {
+        boolean pass();
+    }
+
+    /**
+     * 按秒划分窗口，每个窗口最多permits次，换窗口时由抢到CAS的线程清零计数
+     */
+    private static class PerSecondGate implements Gate {
+        private final int permits;
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicInteger count = new AtomicInteger();
+
+        PerSecondGate(int permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public boolean pass() {
+            long now = System.currentTimeMillis() / 1000;
+            long current = window.get();
+            if (now != current) {
+                if (window.compareAndSet(current, now))
+                    count.set(0);
+            } else if (count.get() >= permits) {
+                //额度用完后只读不写，避免热点循环里所有线程争抢同一个计数器
+                return false;
+            }
+            return count.incrementAndGet() <= permits;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.geekbang.time.commonmistakes.common;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录从连接池获取连接耗时的PoolingHttpClientConnectionManager：
+ *
+ * 每个路由（host:port）一个httpclient.pool.acquire计时器，获取连接超时记入httpclient.pool.acquire.timeout；
+ * 调用bindRouteStats后，这个路由的租用中、空闲、排队等待和最大连接数会以httpclient.pool.route.*发布。
+ * 连接池整体的统计由Micrometer自带的PoolingHttpClientConnectionManagerMetricsBinder发布。
+ */
+public class MeteredHttpClientConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final String name;
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentHashMap<String, Timer> acquireTimers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> acquireTimeouts = new ConcurrentHashMap<>();
+
+    public MeteredHttpClientConnectionManager(String name, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest request = super.requestConnection(route, state);
+        String routeName = routeName(route);
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long begin = System.nanoTime();
+                try {
+                    return request.get(timeout, tunit);
+                } catch (ConnectionPoolTimeoutException ex) {
+                    acquireTimeouts.computeIfAbsent(routeName, r -> Counter.builder("httpclient.pool.acquire.timeout")
+                            .tag("name", name).tag("route", r).register(meterRegistry)).increment();
+                    throw ex;
+                } finally {
+                    acquireTimers.computeIfAbsent(routeName, r -> Timer.builder("httpclient.pool.acquire")
+                            .tag("name", name).tag("route", r)
+                            .publishPercentiles(0.5, 0.99)
+                            .register(meterRegistry)).record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    public void bindRouteStats(HttpRoute route) {
+        String routeName = routeName(route);
+        Gauge.builder("httpclient.pool.route.leased", this, m -> m.getStats(route).getLeased())
+                .tag("name", name).tag("route", routeName).register(meterRegistry);
+        Gauge.builder("httpclient.pool.route.available", this, m -> m.getStats(route).getAvailable())
+                .tag("name", name).tag("route", routeName).register(meterRegistry);
+        Gauge.builder("httpclient.pool.route.pending", this, m -> m.getStats(route).getPending())
+                .tag("name", name).tag("route", routeName).register(meterRegistry);
+        Gauge.builder("httpclient.pool.route.max", this, m -> m.getStats(route).getMax())
+                .tag("name", name).tag("route", routeName).register(meterRegistry);
+    }
+
+    static String routeName(HttpRoute route) {
+        return route.getTargetHost().getHostName() + ":" + route.getTargetHost().getPort();
+    }
+}
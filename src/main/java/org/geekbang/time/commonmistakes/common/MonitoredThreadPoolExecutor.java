@@ -0,0 +1,163 @@
+package org.geekbang.time.commonmistakes.common;
+
+import io.micrometer.core.instrument.Timer;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 在提交和执行任务时记录排队耗时和执行耗时的ThreadPoolExecutor，
+ * 注册到ThreadPoolRegistry之后这两个耗时会以Timer的形式发布出去。
+ *
+ * 1、不包装任务：队列里、shutdownNow返回的、交给拒绝策略的都还是调用方提交的那个Runnable，remove(Runnable)也照常可用；
+ * 2、提交时间按任务对象（引用相等）记在一个Map里，任务开始执行、被拒绝、被移出队列时清除；
+ * 同一个Runnable对象同时排队多次时只记录第一次的提交时间；
+ * 3、执行耗时在beforeExecute/afterExecute里通过ThreadLocal记录开始时间计算；
+ * 4、线程池终止后自动从ThreadPoolRegistry注销。
+ *
+ * 子类可以覆盖onTaskStart/onTaskComplete做自己的统计（记得调用super）。
+ */
+public class MonitoredThreadPoolExecutor extends ThreadPoolExecutor {
+
+    private final ConcurrentHashMap<TaskKey, Long> submitNanos = new ConcurrentHashMap<>();
+    private final ThreadLocal<Long> startNanos = new ThreadLocal<>();
+    private volatile Timer queueWaitTimer;
+    private volatile Timer taskDurationTimer;
+
+    public MonitoredThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                       BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory,
+                                       RejectedExecutionHandler handler) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
+        super.setRejectedExecutionHandler(new ForgettingRejectedExecutionHandler(handler));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        submitNanos.putIfAbsent(new TaskKey(command), System.nanoTime());
+        super.execute(command);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        long now = System.nanoTime();
+        Long submitted = submitNanos.remove(new TaskKey(r));
+        startNanos.set(now);
+        if (submitted != null)
+            onTaskStart(now - submitted);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        Long started = startNanos.get();
+        startNanos.remove();
+        if (started != null)
+            onTaskComplete(System.nanoTime() - started);
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+        boolean removed = super.remove(task);
+        if (removed)
+            submitNanos.remove(new TaskKey(task));
+        return removed;
+    }
+
+    @Override
+    public void purge() {
+        super.purge();
+        //被取消的Future已经从队列里移除，刚被工作线程取走的任务最多少记一次排队耗时
+        BlockingQueue<Runnable> queue = getQueue();
+        submitNanos.keySet().removeIf(key -> !queue.contains(key.task));
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = super.shutdownNow();
+        tasks.forEach(task -> submitNanos.remove(new TaskKey(task)));
+        return tasks;
+    }
+
+    @Override
+    public void setRejectedExecutionHandler(RejectedExecutionHandler handler) {
+        super.setRejectedExecutionHandler(new ForgettingRejectedExecutionHandler(handler));
+    }
+
+    @Override
+    public RejectedExecutionHandler getRejectedExecutionHandler() {
+        return ((ForgettingRejectedExecutionHandler) super.getRejectedExecutionHandler()).delegate;
+    }
+
+    @Override
+    protected void terminated() {
+        super.terminated();
+        ThreadPoolRegistry.unregister(this);
+    }
+
+    protected void onTaskStart(long queueWaitNanos) {
+        Timer timer = queueWaitTimer;
+        if (timer != null)
+            timer.record(queueWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    protected void onTaskComplete(long durationNanos) {
+        Timer timer = taskDurationTimer;
+        if (timer != null)
+            timer.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 队头任务已经排队的时间，队列为空时返回0
+     */
+    protected long headWaitNanos() {
+        Runnable head = getQueue().peek();
+        Long submitted = head == null ? null : submitNanos.get(new TaskKey(head));
+        return submitted == null ? 0 : System.nanoTime() - submitted;
+    }
+
+    void bindTimers(Timer queueWaitTimer, Timer taskDurationTimer) {
+        this.queueWaitTimer = queueWaitTimer;
+        this.taskDurationTimer = taskDurationTimer;
+    }
+
+    /**
+     * 按引用相等区分任务，不受任务自己的equals/hashCode影响
+     */
+    private static final class TaskKey {
+        private final Runnable task;
+
+        TaskKey(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TaskKey && ((TaskKey) o).task == task;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(task);
+        }
+    }
+
+    /**
+     * 被拒绝的任务不会再执行，先清除它的提交时间，再把原始任务交给设置的拒绝策略
+     */
+    private class ForgettingRejectedExecutionHandler implements RejectedExecutionHandler {
+        private final RejectedExecutionHandler delegate;
+
+        ForgettingRejectedExecutionHandler(RejectedExecutionHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            submitNanos.remove(new TaskKey(r));
+            delegate.rejectedExecution(r, executor);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.geekbang.time.commonmistakes.common;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import jodd.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * 线程池统一注册中心，取代各个Controller里每秒打印一次线程池状态的printStats：
+ *
+ * 1、通过newThreadPool创建的线程池以ThreadFactoryBuilder的线程名格式（去掉-%d）作为名字自动注册，
+ * 手动创建的线程池可以调用register注册；
+ * 2、每个线程池的线程数、活跃线程数、队列长度、完成任务数和拒绝次数以name为标签发布到Metrics.globalRegistry，
+ * SpringBoot会把自己的MeterRegistry（比如micrometer-registry-influx）加入globalRegistry，所以可以直接出图；
+ * 3、MonitoredThreadPoolExecutor还会额外发布排队耗时和执行耗时的分位数；
+ * 4、同名线程池重复注册时会替换掉之前的线程池和指标，ThreadPoolsEndpoint可以在运行时查询所有线程池；
+ * 5、MonitoredThreadPoolExecutor终止后自动注销，其它线程池在不再使用时需要调用unregister，
+ * 否则每次请求都创建的线程池会一直留在注册中心里；
+ * 6、不是ThreadPoolExecutor的执行器（比如WeightedFairExecutor）可以带上自己的指标和状态注册，一样出现在ThreadPoolsEndpoint里。
+ */
+@Slf4j
+public class ThreadPoolRegistry {
+
+    private static final ConcurrentHashMap<String, Registration> threadPools = new ConcurrentHashMap<>();
+
+    public static MonitoredThreadPoolExecutor newThreadPool(String nameFormat, int corePoolSize, int maximumPoolSize,
+                                                            long keepAliveTime, TimeUnit unit,
+                                                            BlockingQueue<Runnable> workQueue,
+                                                            RejectedExecutionHandler handler) {
+        MonitoredThreadPoolExecutor threadPool = new MonitoredThreadPoolExecutor(corePoolSize, maximumPoolSize,
+                keepAliveTime, unit, workQueue,
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).get(), handler);
+        return register(nameOf(nameFormat), threadPool);
+    }
+
+    public static synchronized <T extends ThreadPoolExecutor> T register(String name, T threadPool) {
+        MeterRegistry meterRegistry = Metrics.globalRegistry;
+        //Meter以名字和标签区分，同名线程池重新注册时要先删掉旧的Meter，否则拿到的还是绑定旧线程池的Meter
+        if (threadPools.containsKey(name)) {
+            unregister(name);
+            log.info("ThreadPool {} re-registered, replacing previous instance", name);
+        }
+        Tags tags = Tags.of("name", name);
+        List<Meter> meters = new ArrayList<>();
+        meters.add(Gauge.builder("threadpool.core", threadPool, ThreadPoolExecutor::getCorePoolSize).tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("threadpool.max", threadPool, ThreadPoolExecutor::getMaximumPoolSize).tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("threadpool.pool.size", threadPool, ThreadPoolExecutor::getPoolSize).tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("threadpool.active", threadPool, ThreadPoolExecutor::getActiveCount).tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("threadpool.queue.size", threadPool, e -> e.getQueue().size()).tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("threadpool.queue.remaining", threadPool, e -> e.getQueue().remainingCapacity()).tags(tags).register(meterRegistry));
+        meters.add(FunctionCounter.builder("threadpool.completed", threadPool, ThreadPoolExecutor::getCompletedTaskCount).tags(tags).register(meterRegistry));
+        Counter rejected = Counter.builder("threadpool.rejected").tags(tags).register(meterRegistry);
+        meters.add(rejected);
+
+        RejectedExecutionHandler handler = threadPool.getRejectedExecutionHandler();
+        if (handler instanceof CountingRejectedExecutionHandler)
+            handler = ((CountingRejectedExecutionHandler) handler).delegate;
+        threadPool.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(handler, rejected));
+
+        Timer queueWait = null;
+        Timer taskDuration = null;
+        if (threadPool instanceof MonitoredThreadPoolExecutor) {
+            queueWait = Timer.builder("threadpool.queue.wait").tags(tags)
+                    .publishPercentiles(0.5, 0.95, 0.99).publishPercentileHistogram()
+                    .register(meterRegistry);
+            taskDuration = Timer.builder("threadpool.task.duration").tags(tags)
+                    .publishPercentiles(0.5, 0.95, 0.99).publishPercentileHistogram()
+                    .register(meterRegistry);
+            meters.add(queueWait);
+            meters.add(taskDuration);
+            ((MonitoredThreadPoolExecutor) threadPool).bindTimers(queueWait, taskDuration);
+        }
+
+        Timer finalQueueWait = queueWait;
+        Timer finalTaskDuration = taskDuration;
+        threadPools.put(name, new Registration(threadPool, meters,
+                () -> threadPoolStats(threadPool, rejected, finalQueueWait, finalTaskDuration)));
+        return threadPool;
+    }
+
+    /**
+     * 注册其它执行器，meters是执行器自己发布的指标，注销时一起从globalRegistry删除
+     */
+    public static synchronized <T extends ExecutorService> T register(String name, T executor, List<Meter> meters,
+                                                                       Supplier<Map<String, Object>> stats) {
+        if (threadPools.containsKey(name)) {
+            unregister(name);
+            log.info("ThreadPool {} re-registered, replacing previous instance", name);
+        }
+        threadPools.put(name, new Registration(executor, new ArrayList<>(meters), stats));
+        return executor;
+    }
+
+    public static synchronized void unregister(String name) {
+        Registration registration = threadPools.remove(name);
+        if (registration != null) {
+            registration.meters.forEach(Metrics.globalRegistry::remove);
+            if (registration.executor instanceof MonitoredThreadPoolExecutor)
+                ((MonitoredThreadPoolExecutor) registration.executor).bindTimers(null, null);
+        }
+    }
+
+    /**
+     * 注销这个线程池实例，同名的其它线程池不受影响；MonitoredThreadPoolExecutor终止时会自动调用
+     */
+    public static synchronized void unregister(ExecutorService executor) {
+        threadPools.entrySet().stream()
+                .filter(entry -> entry.getValue().executor == executor)
+                .map(Map.Entry::getKey)
+                .findFirst()
+                .ifPresent(ThreadPoolRegistry::unregister);
+    }
+
+    public static Map<String, ExecutorService> getThreadPools() {
+        Map<String, ExecutorService> result = new TreeMap<>();
+        threadPools.forEach((name, registration) -> result.put(name, registration.executor));
+        return result;
+    }
+
+    public static Map<String, Object> stats(String name) {
+        Registration registration = threadPools.get(name);
+        return registration == null ? null : registration.stats.get();
+    }
+
+    public static Map<String, Object> timerStats(Timer timer) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("count", snapshot.count());
+        stats.put("meanMs", snapshot.mean(TimeUnit.MILLISECONDS));
+        stats.put("maxMs", snapshot.max(TimeUnit.MILLISECONDS));
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            stats.put("p" + Math.round(percentile.percentile() * 100) + "Ms", percentile.value(TimeUnit.MILLISECONDS));
+        }
+        return stats;
+    }
+
+    private static Map<String, Object> threadPoolStats(ThreadPoolExecutor threadPool, Counter rejected,
+                                                       Timer queueWait, Timer taskDuration) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("type", threadPool.getClass().getSimpleName());
+        stats.put("poolSize", threadPool.getPoolSize());
+        stats.put("corePoolSize", threadPool.getCorePoolSize());
+        stats.put("maximumPoolSize", threadPool.getMaximumPoolSize());
+        stats.put("largestPoolSize", threadPool.getLargestPoolSize());
+        stats.put("activeCount", threadPool.getActiveCount());
+        stats.put("queueSize", threadPool.getQueue().size());
+        stats.put("queueRemainingCapacity", threadPool.getQueue().remainingCapacity());
+        stats.put("completedTaskCount", threadPool.getCompletedTaskCount());
+        stats.put("rejectedCount", (long) rejected.count());
+        stats.put("terminated", threadPool.isTerminated());
+        if (queueWait != null)
+            stats.put("queueWait", timerStats(queueWait));
+        if (taskDuration != null)
+            stats.put("taskDuration", timerStats(taskDuration));
+        return stats;
+    }
+
+    /**
+     * demo-threadpool-%d -> demo-threadpool
+     */
+    static String nameOf(String nameFormat) {
+        return nameFormat.replaceAll("[-_]?%d$", "");
+    }
+
+    private static class Registration {
+        private final ExecutorService executor;
+        private final List<Meter> meters;
+        private final Supplier<Map<String, Object>> stats;
+
+        Registration(ExecutorService executor, List<Meter> meters, Supplier<Map<String, Object>> stats) {
+            this.executor = executor;
+            this.meters = meters;
+            this.stats = stats;
+        }
+    }
+
+    private static class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+        private final RejectedExecutionHandler delegate;
+        private final Counter rejected;
+
+        CountingRejectedExecutionHandler(RejectedExecutionHandler delegate, Counter rejected) {
+            this.delegate = delegate;
+            this.rejected = rejected;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejected.increment();
+            delegate.rejectedExecution(r, executor);
+        }
+    }
+}
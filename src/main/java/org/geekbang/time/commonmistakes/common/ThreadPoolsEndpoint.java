@@ -0,0 +1,32 @@
+package org.geekbang.time.commonmistakes.common;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 查询ThreadPoolRegistry中所有线程池的运行状态：
+ * /actuator/threadpools 返回所有线程池，/actuator/threadpools/{name} 返回单个线程池。
+ *
+ * 各个案例的Application只扫描自己的包，需要的话通过@Import(ThreadPoolsEndpoint.class)引入
+ */
+@Endpoint(id = "threadpools")
+@Component
+public class ThreadPoolsEndpoint {
+
+    @ReadOperation
+    public Map<String, Object> threadPools() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        ThreadPoolRegistry.getThreadPools().keySet().forEach(name -> result.put(name, ThreadPoolRegistry.stats(name)));
+        return result;
+    }
+
+    @ReadOperation
+    public Map<String, Object> threadPool(@Selector String name) {
+        return ThreadPoolRegistry.stats(name);
+    }
+}
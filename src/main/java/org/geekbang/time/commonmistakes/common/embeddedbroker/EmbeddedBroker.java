@@ -0,0 +1,260 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的RabbitMQ替身，不需要启动docker-compose里的RabbitMQ也能运行和压测异步处理的例子：
+ *
+ * 1、实现了例子里用到的语义：direct、fanout、topic交换器和默认交换器，队列绑定，服务端命名的匿名队列，
+ * 排他和自动删除队列，x-message-ttl过期和x-dead-letter-exchange死信转发（维护x-death头），
+ * 手动确认、批量确认、拒绝和重新入队，basic.qos预取，Publisher Confirm；
+ * 2、通过EmbeddedConnectionFactory接入CachingConnectionFactory，RabbitAdmin、RabbitTemplate、
+ * @RabbitListener的监听容器都不需要修改；
+ * 3、队列用无锁的ConcurrentLinkedDeque保存消息，投递由一个wip计数保证同一时刻只有一个线程在分发，不加锁；
+ * 4、统计发布、投递、重新投递、确认、死信、过期的消息数和确认耗时（从投递到确认），用于吞吐测试。
+ *
+ * 和真正的Broker的差别：消息不持久化，不支持事务、优先级队列、队列长度限制和单条消息的expiration。
+ */
+@Slf4j
+public class EmbeddedBroker {
+
+    static final String DEFAULT_EXCHANGE = "";
+
+    private final ConcurrentHashMap<String, EmbeddedExchange> exchanges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, EmbeddedQueue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ttlSweeper;
+    private final AtomicInteger connectionIds = new AtomicInteger();
+
+    final LongAdder published = new LongAdder();
+    final LongAdder unroutable = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder redelivered = new LongAdder();
+    final LongAdder acked = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder deadLettered = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    final LongAdder ackLatencyNanos = new LongAdder();
+    final LongAccumulator maxAckLatencyNanos = new LongAccumulator(Math::max, 0);
+    private volatile long statsBeginNanos = System.nanoTime();
+
+    public EmbeddedBroker() {
+        exchanges.put(DEFAULT_EXCHANGE, new EmbeddedExchange(DEFAULT_EXCHANGE, "direct", true, false, Collections.emptyMap()));
+        ttlSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "embedded-broker-ttl");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //队首消息过期时，没有消费者的队列也要及时把它转发到死信交换器
+        ttlSweeper.scheduleWithFixedDelay(() -> queues.values().forEach(queue -> {
+            if (queue.ttlNanos > 0 && queue.depth() > 0)
+                queue.drain();
+        }), 10, 10, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection newConnection(String clientProvidedName) {
+        EmbeddedConnection connection = new EmbeddedConnection(this, connectionIds.incrementAndGet(), clientProvidedName);
+        Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, connection);
+        connection.setProxy(proxy);
+        return proxy;
+    }
+
+    public void shutdown() {
+        ttlSweeper.shutdownNow();
+    }
+
+    void declareExchange(EmbeddedChannel channel, String name, String type, boolean durable, boolean autoDelete,
+                         Map<String, Object> arguments) throws IOException {
+        if (!EmbeddedExchange.isSupported(type))
+            throw channel.channelError(503, "COMMAND_INVALID - unknown exchange type '" + type + "'", 40, 10);
+        EmbeddedExchange exchange = exchanges.computeIfAbsent(name,
+                key -> new EmbeddedExchange(name, type, durable, autoDelete, arguments));
+        if (!exchange.type.equals(type))
+            throw channel.channelError(406, "PRECONDITION_FAILED - inequivalent arg 'type' for exchange '" + name
+                    + "': received '" + type + "' but current is '" + exchange.type + "'", 40, 10);
+    }
+
+    EmbeddedExchange exchange(String name) {
+        return exchanges.get(name);
+    }
+
+    boolean deleteExchange(String name) {
+        return !DEFAULT_EXCHANGE.equals(name) && exchanges.remove(name) != null;
+    }
+
+    EmbeddedQueue declareQueue(EmbeddedChannel channel, String name, boolean durable, boolean exclusive, boolean autoDelete,
+                               Map<String, Object> arguments) throws IOException {
+        String queueName = name == null || name.isEmpty() ? "amq.gen-" + UUID.randomUUID() : name;
+        Map<String, Object> args = arguments == null ? Collections.emptyMap() : new HashMap<>(arguments);
+        EmbeddedQueue queue = queues.computeIfAbsent(queueName, key -> new EmbeddedQueue(this, queueName, durable,
+                exclusive, autoDelete, args, exclusive ? channel.getConnection() : null));
+        //和RabbitMQ一样，参数不同的同名队列不能重复声明
+        if (!queue.arguments.equals(args))
+            throw channel.channelError(406, "PRECONDITION_FAILED - inequivalent arguments for queue '" + queueName
+                    + "': received " + args + " but current is " + queue.arguments, 50, 10);
+        if (queue.owner != null && queue.owner != channel.getConnection())
+            throw channel.channelError(405, "RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '"
+                    + queueName + "'", 50, 10);
+        return queue;
+    }
+
+    EmbeddedQueue queue(String name) {
+        return queues.get(name);
+    }
+
+    int deleteQueue(EmbeddedQueue queue) {
+        if (!queues.remove(queue.name, queue))
+            return 0;
+        exchanges.values().forEach(exchange -> exchange.unbindAll(queue));
+        return queue.delete();
+    }
+
+    void deleteExclusiveQueues(EmbeddedConnection connection) {
+        queues.values().stream().filter(queue -> queue.owner == connection).forEach(this::deleteQueue);
+    }
+
+    /**
+     * 按交换器类型把消息路由到绑定的队列，返回路由到的队列数
+     */
+    int publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+        published.increment();
+        List<EmbeddedQueue> targets = route(exchangeName, routingKey);
+        if (targets.isEmpty()) {
+            unroutable.increment();
+            return 0;
+        }
+        for (EmbeddedQueue queue : targets) {
+            queue.enqueue(new QueuedMessage(exchangeName, routingKey, properties, body, queue.ttlNanos));
+        }
+        return targets.size();
+    }
+
+    private List<EmbeddedQueue> route(String exchangeName, String routingKey) {
+        if (DEFAULT_EXCHANGE.equals(exchangeName)) {
+            EmbeddedQueue queue = queues.get(routingKey);
+            return queue == null ? Collections.emptyList() : Collections.singletonList(queue);
+        }
+        EmbeddedExchange exchange = exchanges.get(exchangeName);
+        return exchange == null ? Collections.emptyList() : exchange.route(routingKey);
+    }
+
+    /**
+     * 被拒绝或者过期的消息转发到队列配置的死信交换器，并像RabbitMQ一样在x-death头里按队列和原因累计次数，
+     * 最近一次死信的记录排在最前面。没有配置死信交换器时直接丢弃
+     */
+    void deadLetter(EmbeddedQueue queue, QueuedMessage message, String reason) {
+        if ("expired".equals(reason))
+            expired.increment();
+        if (queue.deadLetterExchange == null)
+            return;
+        deadLettered.increment();
+        AMQP.BasicProperties properties = message.properties == null ? new AMQP.BasicProperties() : message.properties;
+        Map<String, Object> headers = properties.getHeaders() == null ? new HashMap<>() : new HashMap<>(properties.getHeaders());
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> deaths = headers.get("x-death") instanceof List ?
+                new ArrayList<>((List<Map<String, Object>>) headers.get("x-death")) : new ArrayList<>();
+        Map<String, Object> death = null;
+        for (int i = 0; i < deaths.size(); i++) {
+            Map<String, Object> entry = deaths.get(i);
+            if (queue.name.equals(String.valueOf(entry.get("queue"))) && reason.equals(String.valueOf(entry.get("reason")))) {
+                death = new LinkedHashMap<>(entry);
+                deaths.remove(i);
+                break;
+            }
+        }
+        if (death == null) {
+            death = new LinkedHashMap<>();
+            death.put("count", 0L);
+            death.put("reason", reason);
+            death.put("queue", queue.name);
+            death.put("exchange", message.exchange);
+            death.put("routing-keys", Collections.singletonList(message.routingKey));
+        }
+        death.put("count", ((Number) death.get("count")).longValue() + 1);
+        death.put("time", new Date());
+        deaths.add(0, death);
+        headers.put("x-death", deaths);
+        String routingKey = queue.deadLetterRoutingKey == null ? message.routingKey : queue.deadLetterRoutingKey;
+        publish(queue.deadLetterExchange, routingKey, properties.builder().headers(headers).build(), message.body);
+    }
+
+    void recordAck(long deliveredNanos) {
+        acked.increment();
+        long latency = System.nanoTime() - deliveredNanos;
+        ackLatencyNanos.add(latency);
+        maxAckLatencyNanos.accumulate(latency);
+    }
+
+    /**
+     * 所有队列都没有待投递和未确认的消息
+     */
+    public boolean isIdle() {
+        return isIdle(Collections.emptySet());
+    }
+
+    /**
+     * 除了terminalQueues（比如没有消费者、只用来存放死信的队列）以外，所有队列都没有待投递和未确认的消息
+     */
+    public boolean isIdle(Set<String> terminalQueues) {
+        return queues.values().stream().filter(queue -> !terminalQueues.contains(queue.name))
+                .allMatch(queue -> queue.depth() == 0 && queue.unacked() == 0);
+    }
+
+    public Map<String, Long> queueDepths() {
+        Map<String, Long> depths = new LinkedHashMap<>();
+        queues.values().stream().sorted((a, b) -> a.name.compareTo(b.name))
+                .forEach(queue -> depths.put(queue.name, (long) queue.depth()));
+        return depths;
+    }
+
+    public void resetStats() {
+        for (LongAdder adder : new LongAdder[]{published, unroutable, delivered, redelivered, acked, rejected,
+                deadLettered, expired, ackLatencyNanos}) {
+            adder.reset();
+        }
+        maxAckLatencyNanos.reset();
+        statsBeginNanos = System.nanoTime();
+    }
+
+    public Map<String, Object> stats() {
+        double seconds = Math.max(1, System.nanoTime() - statsBeginNanos) / 1_000_000_000.0;
+        long ackCount = acked.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("seconds", Math.round(seconds * 10) / 10.0);
+        stats.put("published", published.sum());
+        stats.put("unroutable", unroutable.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("redelivered", redelivered.sum());
+        stats.put("acked", ackCount);
+        stats.put("rejected", rejected.sum());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("expired", expired.sum());
+        stats.put("deliveredPerSecond", (long) (delivered.sum() / seconds));
+        stats.put("ackedPerSecond", (long) (ackCount / seconds));
+        stats.put("ackLatencyAvgMs", ackCount == 0 ? 0 : Math.round(ackLatencyNanos.sum() / ackCount / 1000.0) / 1000.0);
+        stats.put("ackLatencyMaxMs", Math.round(maxAckLatencyNanos.get() / 1000.0) / 1000.0);
+        stats.put("queues", queueDepths());
+        return stats;
+    }
+}
@@ -0,0 +1,30 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 设置embeddedbroker.enabled=true时使用进程内的Broker替代RabbitMQ：
+ * 这里的ConnectionFactory会让RabbitAutoConfiguration不再创建连接RabbitMQ的ConnectionFactory，
+ * RabbitTemplate、RabbitAdmin和@RabbitListener都自动使用进程内的Broker。
+ * 例子的启动类通过@Import引入这个配置，默认不开启
+ */
+@Configuration
+@Slf4j
+@ConditionalOnProperty(value = "embeddedbroker.enabled", havingValue = "true")
+public class EmbeddedBrokerConfiguration {
+
+    @Bean(destroyMethod = "shutdown")
+    public EmbeddedBroker embeddedBroker() {
+        log.info("using embedded broker instead of RabbitMQ");
+        return new EmbeddedBroker();
+    }
+
+    @Bean
+    public CachingConnectionFactory rabbitConnectionFactory(EmbeddedBroker embeddedBroker) {
+        return new CachingConnectionFactory(new EmbeddedConnectionFactory(embeddedBroker));
+    }
+}
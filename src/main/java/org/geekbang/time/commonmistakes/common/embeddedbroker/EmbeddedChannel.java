@@ -0,0 +1,583 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import com.rabbitmq.client.*;
+import com.rabbitmq.client.impl.AMQImpl;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Channel的动态代理实现，Channel接口有近百个方法，这里只实现Spring AMQP和例子用到的部分，其它方法抛出UnsupportedOperationException：
+ *
+ * 1、每个Channel有一个单线程的投递线程，按顺序回调Consumer，和RabbitMQ客户端一样不会并发回调同一个Channel上的Consumer；
+ * 2、未确认的消息按deliveryTag保存在ConcurrentSkipListMap里，支持multiple方式批量确认，Channel关闭时全部退回队列；
+ * 3、队列、交换器不存在或者重复声明参数不一致时，和RabbitMQ一样关闭Channel，抛出原因是ShutdownSignalException的IOException。
+ */
+@Slf4j
+class EmbeddedChannel implements InvocationHandler {
+
+    private enum Outcome {
+        ACK, REQUEUE, DEAD_LETTER
+    }
+
+    private final EmbeddedBroker broker;
+    private final EmbeddedConnection connection;
+    private final int number;
+    private Channel proxy;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private volatile ShutdownSignalException closeReason;
+    private volatile int prefetch;
+    private final AtomicLong deliveryTags = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Unacked> unacked = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, ConsumerRegistration> consumers = new ConcurrentHashMap<>();
+    private volatile ExecutorService deliveryExecutor;
+    private volatile boolean confirmMode;
+    private final AtomicLong publishSeqNo = new AtomicLong();
+    private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+    private final List<ReturnListener> returnListeners = new CopyOnWriteArrayList<>();
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+
+    EmbeddedChannel(EmbeddedBroker broker, EmbeddedConnection connection, int number) {
+        this.broker = broker;
+        this.connection = connection;
+        this.number = number;
+    }
+
+    void setProxy(Channel proxy) {
+        this.proxy = proxy;
+    }
+
+    Channel getProxy() {
+        return proxy;
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    EmbeddedConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+        String operation = method.getName();
+        Object[] args = arguments == null ? new Object[0] : arguments;
+        switch (operation) {
+            case "toString":
+                return "EmbeddedChannel(" + connection.getId() + "/" + number + ")";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "getChannelNumber":
+                return number;
+            case "getConnection":
+                return connection.getProxy();
+            case "isOpen":
+                return open.get();
+            case "getCloseReason":
+                return closeReason;
+            case "close":
+            case "abort":
+                int code = args.length > 0 ? (Integer) args[0] : 200;
+                String text = args.length > 1 ? (String) args[1] : "OK";
+                shutdown(new ShutdownSignalException(false, true, new AMQImpl.Channel.Close(code, text, 0, 0), proxy));
+                return null;
+            case "addShutdownListener":
+                shutdownListeners.add((ShutdownListener) args[0]);
+                return null;
+            case "removeShutdownListener":
+                shutdownListeners.remove(args[0]);
+                return null;
+            case "notifyListeners":
+            case "setDefaultConsumer":
+            case "getDefaultConsumer":
+                return null;
+            default:
+        }
+        if (!open.get())
+            throw new AlreadyClosedException(closeReason);
+        switch (operation) {
+            case "basicPublish":
+                publish((String) args[0], (String) args[1], args.length > 4 && (Boolean) args[2],
+                        (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]);
+                return null;
+            case "basicConsume":
+                return consume(args);
+            case "basicQos":
+                prefetch = (Integer) args[args.length == 3 ? 1 : 0];
+                return null;
+            case "basicAck":
+                settle((Long) args[0], (Boolean) args[1], Outcome.ACK);
+                return null;
+            case "basicNack":
+                settle((Long) args[0], (Boolean) args[1], (Boolean) args[2] ? Outcome.REQUEUE : Outcome.DEAD_LETTER);
+                return null;
+            case "basicReject":
+                settle((Long) args[0], false, (Boolean) args[1] ? Outcome.REQUEUE : Outcome.DEAD_LETTER);
+                return null;
+            case "basicCancel":
+                cancel((String) args[0]);
+                return null;
+            case "basicGet":
+                return get((String) args[0], (Boolean) args[1]);
+            case "basicRecover":
+                requeueAll();
+                return new AMQImpl.Basic.RecoverOk();
+            case "exchangeDeclare":
+            case "exchangeDeclareNoWait":
+                Object type = args[1];
+                broker.declareExchange(this, (String) args[0],
+                        type instanceof BuiltinExchangeType ? ((BuiltinExchangeType) type).getType() : (String) type,
+                        args.length > 2 && (Boolean) args[2], args.length > 3 && args[3] instanceof Boolean && (Boolean) args[3],
+                        lastMapArgument(args));
+                return operation.endsWith("NoWait") ? null : new AMQImpl.Exchange.DeclareOk();
+            case "exchangeDeclarePassive":
+                exchange((String) args[0], 40, 10);
+                return new AMQImpl.Exchange.DeclareOk();
+            case "exchangeDelete":
+            case "exchangeDeleteNoWait":
+                broker.deleteExchange((String) args[0]);
+                return operation.endsWith("NoWait") ? null : new AMQImpl.Exchange.DeleteOk();
+            case "queueDeclare":
+            case "queueDeclareNoWait":
+                EmbeddedQueue declared = args.length == 0 ? broker.declareQueue(this, "", false, true, true, null)
+                        : broker.declareQueue(this, (String) args[0], (Boolean) args[1], (Boolean) args[2], (Boolean) args[3], lastMapArgument(args));
+                return operation.endsWith("NoWait") ? null
+                        : new AMQImpl.Queue.DeclareOk(declared.name, declared.depth(), declared.consumerCount());
+            case "queueDeclarePassive":
+                EmbeddedQueue existing = queue((String) args[0], 50, 10);
+                return new AMQImpl.Queue.DeclareOk(existing.name, existing.depth(), existing.consumerCount());
+            case "queueDelete":
+            case "queueDeleteNoWait":
+                EmbeddedQueue deleted = broker.queue((String) args[0]);
+                int deletedCount = deleted == null ? 0 : broker.deleteQueue(deleted);
+                return operation.endsWith("NoWait") ? null : new AMQImpl.Queue.DeleteOk(deletedCount);
+            case "queueBind":
+            case "queueBindNoWait":
+                EmbeddedQueue bindQueue = queue((String) args[0], 50, 20);
+                if (EmbeddedBroker.DEFAULT_EXCHANGE.equals(args[1]))
+                    throw channelError(403, "ACCESS_REFUSED - operation not permitted on the default exchange", 50, 20);
+                exchange((String) args[1], 50, 20).bind(bindQueue, (String) args[2]);
+                return operation.endsWith("NoWait") ? null : new AMQImpl.Queue.BindOk();
+            case "queueUnbind":
+                EmbeddedExchange unbindExchange = broker.exchange((String) args[1]);
+                EmbeddedQueue unbindQueue = broker.queue((String) args[0]);
+                if (unbindExchange != null && unbindQueue != null)
+                    unbindExchange.unbind(unbindQueue, (String) args[2]);
+                return new AMQImpl.Queue.UnbindOk();
+            case "queuePurge":
+                return new AMQImpl.Queue.PurgeOk(queue((String) args[0], 50, 30).purge());
+            case "messageCount":
+                return (long) queue((String) args[0], 50, 10).depth();
+            case "consumerCount":
+                return (long) queue((String) args[0], 50, 10).consumerCount();
+            case "confirmSelect":
+                confirmMode = true;
+                return new AMQImpl.Confirm.SelectOk();
+            case "getNextPublishSeqNo":
+                return confirmMode ? publishSeqNo.get() + 1 : 0L;
+            case "waitForConfirms":
+                return true;
+            case "waitForConfirmsOrDie":
+                return null;
+            case "addConfirmListener":
+                return addConfirmListener(args);
+            case "removeConfirmListener":
+                return confirmListeners.remove(args[0]);
+            case "clearConfirmListeners":
+                confirmListeners.clear();
+                return null;
+            case "addReturnListener":
+                ReturnListener returnListener = args[0] instanceof ReturnListener ? (ReturnListener) args[0] :
+                        (replyCode, replyText, exchange, routingKey, properties, body) -> ((ReturnCallback) args[0])
+                                .handle(new Return(replyCode, replyText, exchange, routingKey, properties, body));
+                returnListeners.add(returnListener);
+                return args[0] instanceof ReturnListener ? null : returnListener;
+            case "removeReturnListener":
+                return returnListeners.remove(args[0]);
+            case "clearReturnListeners":
+                returnListeners.clear();
+                return null;
+            default:
+                throw new UnsupportedOperationException("Channel." + operation + " is not supported by the embedded broker");
+        }
+    }
+
+    private void publish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props,
+                         byte[] body) throws IOException {
+        if (!EmbeddedBroker.DEFAULT_EXCHANGE.equals(exchange))
+            exchange(exchange, 60, 40);
+        //发布时可以不带属性，但RabbitMQ投递给消费者的消息总是有属性的，Spring的转换器也依赖这一点
+        AMQP.BasicProperties properties = props == null ? new AMQP.BasicProperties() : props;
+        int routed = broker.publish(exchange, routingKey, properties, body);
+        if (routed == 0 && mandatory && !returnListeners.isEmpty()) {
+            execute(() -> {
+                for (ReturnListener listener : returnListeners) {
+                    listener.handleReturn(312, "NO_ROUTE", exchange, routingKey, properties, body);
+                }
+            });
+        }
+        //消息已经同步进入队列，直接确认，但和RabbitMQ客户端一样异步回调ConfirmListener
+        if (confirmMode) {
+            long seqNo = publishSeqNo.incrementAndGet();
+            if (!confirmListeners.isEmpty()) {
+                execute(() -> {
+                    for (ConfirmListener listener : confirmListeners) {
+                        listener.handleAck(seqNo, false);
+                    }
+                });
+            }
+        }
+    }
+
+    private String consume(Object[] args) throws IOException {
+        EmbeddedQueue queue = queue((String) args[0], 60, 20);
+        boolean autoAck = args.length > 2 && args[1] instanceof Boolean && (Boolean) args[1];
+        String tag = args.length > 3 && args[2] instanceof String ? (String) args[2] : "";
+        if (tag.isEmpty())
+            tag = "amq.ctag-" + UUID.randomUUID();
+        if (consumers.containsKey(tag))
+            throw channelError(530, "NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'", 60, 20);
+        Consumer consumer = toConsumer(args);
+        ConsumerRegistration registration = new ConsumerRegistration(this, queue, tag, consumer, autoAck, prefetch);
+        consumers.put(tag, registration);
+        String consumerTag = tag;
+        //handleConsumeOk和之后的投递在同一个线程里按顺序执行
+        execute(() -> consumer.handleConsumeOk(consumerTag));
+        queue.addConsumer(registration);
+        return tag;
+    }
+
+    private GetResponse get(String queueName, boolean autoAck) throws IOException {
+        EmbeddedQueue queue = queue(queueName, 60, 70);
+        QueuedMessage message = queue.poll(autoAck);
+        if (message == null)
+            return null;
+        long tag = deliveryTags.incrementAndGet();
+        broker.delivered.increment();
+        if (message.redelivered)
+            broker.redelivered.increment();
+        if (!autoAck)
+            unacked.put(tag, new Unacked(queue, null, message, System.nanoTime()));
+        return new GetResponse(new Envelope(tag, message.redelivered, message.exchange, message.routingKey),
+                message.properties, message.body, queue.depth());
+    }
+
+    /**
+     * 由队列的分发线程调用，把消息交给Consumer
+     */
+    void deliver(ConsumerRegistration registration, QueuedMessage message) {
+        if (!open.get() || registration.cancelled) {
+            registration.queue.putBack(message, !registration.autoAck);
+            return;
+        }
+        long tag = deliveryTags.incrementAndGet();
+        broker.delivered.increment();
+        if (message.redelivered)
+            broker.redelivered.increment();
+        if (!registration.autoAck) {
+            registration.unacked.incrementAndGet();
+            unacked.put(tag, new Unacked(registration.queue, registration, message, System.nanoTime()));
+        }
+        Envelope envelope = new Envelope(tag, message.redelivered, message.exchange, message.routingKey);
+        try {
+            executor().execute(() -> {
+                try {
+                    registration.consumer.handleDelivery(registration.tag, envelope, message.properties, message.body);
+                } catch (Throwable ex) {
+                    log.warn("consumer {} failed to handle delivery {}", registration.tag, tag, ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            //Channel刚好被关闭，还没被关闭流程退回的消息在这里退回
+            settle(tag, Outcome.REQUEUE);
+        }
+    }
+
+    void cancelledByBroker(ConsumerRegistration registration) {
+        registration.cancelled = true;
+        consumers.remove(registration.tag, registration);
+        execute(() -> registration.consumer.handleCancel(registration.tag));
+    }
+
+    void shutdownByConnection(ShutdownSignalException signal) {
+        shutdown(signal);
+    }
+
+    private void cancel(String tag) {
+        ConsumerRegistration registration = consumers.remove(tag);
+        if (registration == null)
+            return;
+        registration.cancelled = true;
+        registration.queue.removeConsumer(registration);
+        execute(() -> registration.consumer.handleCancelOk(tag));
+    }
+
+    private void settle(long tag, boolean multiple, Outcome outcome) throws IOException {
+        if (multiple) {
+            //deliveryTag为0并且multiple时表示所有未确认的消息
+            Map<Long, Unacked> settled = tag == 0 ? unacked : unacked.headMap(tag, true);
+            for (Long settledTag : settled.keySet()) {
+                settle(settledTag, outcome);
+            }
+            return;
+        }
+        if (!settle(tag, outcome))
+            throw channelError(406, "PRECONDITION_FAILED - unknown delivery tag " + tag, 60, 80);
+    }
+
+    private boolean settle(long tag, Outcome outcome) {
+        Unacked delivery = unacked.remove(tag);
+        if (delivery == null)
+            return false;
+        if (delivery.consumer != null)
+            delivery.consumer.unacked.decrementAndGet();
+        switch (outcome) {
+            case ACK:
+                broker.recordAck(delivery.deliveredNanos);
+                delivery.queue.settled();
+                break;
+            case REQUEUE:
+                broker.rejected.increment();
+                delivery.queue.requeue(delivery.message);
+                break;
+            default:
+                broker.rejected.increment();
+                broker.deadLetter(delivery.queue, delivery.message, "rejected");
+                delivery.queue.settled();
+        }
+        return true;
+    }
+
+    /**
+     * 倒序退回所有未确认的消息，每条都放回队首，最终保持原来的顺序
+     */
+    private void requeueAll() {
+        Map.Entry<Long, Unacked> entry;
+        while ((entry = unacked.pollLastEntry()) != null) {
+            Unacked delivery = entry.getValue();
+            if (delivery.consumer != null)
+                delivery.consumer.unacked.decrementAndGet();
+            delivery.queue.requeue(delivery.message);
+        }
+    }
+
+    private void shutdown(ShutdownSignalException signal) {
+        if (!open.compareAndSet(true, false))
+            return;
+        closeReason = signal;
+        for (ConsumerRegistration registration : consumers.values()) {
+            registration.cancelled = true;
+            registration.queue.removeConsumer(registration);
+            execute(() -> registration.consumer.handleShutdownSignal(registration.tag, signal));
+        }
+        consumers.clear();
+        requeueAll();
+        connection.channelClosed(this);
+        for (ShutdownListener listener : shutdownListeners) {
+            try {
+                listener.shutdownCompleted(signal);
+            } catch (Exception ex) {
+                log.warn("shutdown listener of {} failed", proxy, ex);
+            }
+        }
+        ExecutorService executor = deliveryExecutor;
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Channel级别的错误：关闭Channel，返回原因是ShutdownSignalException的IOException
+     */
+    IOException channelError(int code, String text, int classId, int methodId) {
+        ShutdownSignalException signal = new ShutdownSignalException(false, false,
+                new AMQImpl.Channel.Close(code, text, classId, methodId), proxy);
+        shutdown(signal);
+        return new IOException(text, signal);
+    }
+
+    private EmbeddedQueue queue(String name, int classId, int methodId) throws IOException {
+        EmbeddedQueue queue = broker.queue(name);
+        if (queue == null)
+            throw channelError(404, "NOT_FOUND - no queue '" + name + "' in vhost '/'", classId, methodId);
+        return queue;
+    }
+
+    private EmbeddedExchange exchange(String name, int classId, int methodId) throws IOException {
+        EmbeddedExchange exchange = broker.exchange(name);
+        if (exchange == null)
+            throw channelError(404, "NOT_FOUND - no exchange '" + name + "' in vhost '/'", classId, methodId);
+        return exchange;
+    }
+
+    private ConfirmListener addConfirmListener(Object[] args) {
+        if (args.length == 1) {
+            confirmListeners.add((ConfirmListener) args[0]);
+            return null;
+        }
+        ConfirmCallback ackCallback = (ConfirmCallback) args[0];
+        ConfirmCallback nackCallback = (ConfirmCallback) args[1];
+        ConfirmListener listener = new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                ackCallback.handle(deliveryTag, multiple);
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+                nackCallback.handle(deliveryTag, multiple);
+            }
+        };
+        confirmListeners.add(listener);
+        return listener;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> lastMapArgument(Object[] args) {
+        return args.length > 0 && args[args.length - 1] instanceof Map ? (Map<String, Object>) args[args.length - 1] : null;
+    }
+
+    /**
+     * basicConsume的各种重载最后都转换成Consumer
+     */
+    private static Consumer toConsumer(Object[] args) {
+        DeliverCallback deliverCallback = null;
+        CancelCallback cancelCallback = null;
+        ConsumerShutdownSignalCallback shutdownCallback = null;
+        for (Object arg : args) {
+            if (arg instanceof Consumer)
+                return (Consumer) arg;
+            if (arg instanceof DeliverCallback)
+                deliverCallback = (DeliverCallback) arg;
+            if (arg instanceof CancelCallback)
+                cancelCallback = (CancelCallback) arg;
+            if (arg instanceof ConsumerShutdownSignalCallback)
+                shutdownCallback = (ConsumerShutdownSignalCallback) arg;
+        }
+        DeliverCallback onDelivery = deliverCallback;
+        CancelCallback onCancel = cancelCallback;
+        ConsumerShutdownSignalCallback onShutdown = shutdownCallback;
+        return new Consumer() {
+            @Override
+            public void handleConsumeOk(String consumerTag) {
+            }
+
+            @Override
+            public void handleCancelOk(String consumerTag) {
+            }
+
+            @Override
+            public void handleCancel(String consumerTag) throws IOException {
+                if (onCancel != null)
+                    onCancel.handle(consumerTag);
+            }
+
+            @Override
+            public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+                if (onShutdown != null)
+                    onShutdown.handleShutdownSignal(consumerTag, sig);
+            }
+
+            @Override
+            public void handleRecoverOk(String consumerTag) {
+            }
+
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                                       byte[] body) throws IOException {
+                onDelivery.handle(consumerTag, new Delivery(envelope, properties, body));
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface Callback {
+        void run() throws Exception;
+    }
+
+    private void execute(Callback callback) {
+        try {
+            executor().execute(() -> {
+                try {
+                    callback.run();
+                } catch (Exception ex) {
+                    log.warn("callback on {} failed", proxy, ex);
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    private ExecutorService executor() {
+        ExecutorService executor = deliveryExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = deliveryExecutor;
+                if (executor == null) {
+                    deliveryExecutor = executor = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "embedded-broker-" + connection.getId() + "-" + number);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    static class ConsumerRegistration {
+        final EmbeddedChannel channel;
+        final EmbeddedQueue queue;
+        final String tag;
+        final Consumer consumer;
+        final boolean autoAck;
+        //basic.qos的预取数量，按消费者计算，0表示不限制
+        final int prefetch;
+        final AtomicInteger unacked = new AtomicInteger();
+        volatile boolean cancelled;
+
+        ConsumerRegistration(EmbeddedChannel channel, EmbeddedQueue queue, String tag, Consumer consumer,
+                             boolean autoAck, int prefetch) {
+            this.channel = channel;
+            this.queue = queue;
+            this.tag = tag;
+            this.consumer = consumer;
+            this.autoAck = autoAck;
+            this.prefetch = prefetch;
+        }
+
+        boolean hasCapacity() {
+            return !cancelled && channel.open.get() && (autoAck || prefetch <= 0 || unacked.get() < prefetch);
+        }
+    }
+
+    private static class Unacked {
+        final EmbeddedQueue queue;
+        final ConsumerRegistration consumer;
+        final QueuedMessage message;
+        final long deliveredNanos;
+
+        Unacked(EmbeddedQueue queue, ConsumerRegistration consumer, QueuedMessage message, long deliveredNanos) {
+            this.queue = queue;
+            this.consumer = consumer;
+            this.message = message;
+            this.deliveredNanos = deliveredNanos;
+        }
+    }
+}
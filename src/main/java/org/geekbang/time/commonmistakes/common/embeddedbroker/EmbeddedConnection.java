@@ -0,0 +1,181 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.BlockedCallback;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.UnblockedCallback;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.DefaultExceptionHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection的动态代理实现，负责创建Channel，关闭时关闭所有Channel并删除这个连接声明的排他队列
+ */
+@Slf4j
+class EmbeddedConnection implements InvocationHandler {
+
+    private static final int CHANNEL_MAX = 2047;
+
+    private final EmbeddedBroker broker;
+    private final int id;
+    private final String clientProvidedName;
+    private Object proxy;
+    private String connectionId;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private volatile ShutdownSignalException closeReason;
+    private final AtomicInteger channelNumbers = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, EmbeddedChannel> channels = new ConcurrentHashMap<>();
+    private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<>();
+
+    EmbeddedConnection(EmbeddedBroker broker, int id, String clientProvidedName) {
+        this.broker = broker;
+        this.id = id;
+        this.clientProvidedName = clientProvidedName;
+    }
+
+    void setProxy(Object proxy) {
+        this.proxy = proxy;
+    }
+
+    Object getProxy() {
+        return proxy;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    void channelClosed(EmbeddedChannel channel) {
+        channels.remove(channel.getNumber(), channel);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+        Object[] args = arguments == null ? new Object[0] : arguments;
+        switch (method.getName()) {
+            case "toString":
+                return "EmbeddedConnection(" + id + (clientProvidedName == null ? "" : ", " + clientProvidedName) + ")";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "isOpen":
+                return open.get();
+            case "getCloseReason":
+                return closeReason;
+            case "addShutdownListener":
+                shutdownListeners.add((ShutdownListener) args[0]);
+                return null;
+            case "removeShutdownListener":
+                shutdownListeners.remove(args[0]);
+                return null;
+            case "notifyListeners":
+            case "clearBlockedListeners":
+                return null;
+            case "addBlockedListener":
+                //进程内不会出现内存或磁盘告警，阻塞通知永远不会触发
+                return args.length == 1 ? null : blockedListener((BlockedCallback) args[0], (UnblockedCallback) args[1]);
+            case "removeBlockedListener":
+                return true;
+            case "getAddress":
+                return InetAddress.getLoopbackAddress();
+            case "getPort":
+                return 5672;
+            case "getChannelMax":
+                return CHANNEL_MAX;
+            case "getFrameMax":
+                return 131072;
+            case "getHeartbeat":
+                return 0;
+            case "getClientProperties":
+                return Collections.emptyMap();
+            case "getServerProperties":
+                return Collections.singletonMap("product", "embedded-broker");
+            case "getClientProvidedName":
+                return clientProvidedName;
+            case "getExceptionHandler":
+                return new DefaultExceptionHandler();
+            case "getId":
+                return connectionId;
+            case "setId":
+                connectionId = (String) args[0];
+                return null;
+            case "createChannel":
+                return createChannel(args.length == 0 ? 0 : (Integer) args[0]);
+            case "openChannel":
+                return Optional.ofNullable(createChannel(args.length == 0 ? 0 : (Integer) args[0]));
+            case "close":
+            case "abort":
+                shutdown();
+                return null;
+            default:
+                throw new UnsupportedOperationException("Connection." + method.getName() + " is not supported by the embedded broker");
+        }
+    }
+
+    private Channel createChannel(int number) throws IOException {
+        if (!open.get())
+            throw new AlreadyClosedException(closeReason);
+        if (number == 0) {
+            do {
+                number = channelNumbers.incrementAndGet();
+            } while (channels.containsKey(number));
+        }
+        if (number > CHANNEL_MAX)
+            throw new IOException("channel number " + number + " exceeds channel max " + CHANNEL_MAX);
+        EmbeddedChannel channel = new EmbeddedChannel(broker, this, number);
+        if (channels.putIfAbsent(number, channel) != null)
+            return null;
+        Channel channelProxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, channel);
+        channel.setProxy(channelProxy);
+        return channelProxy;
+    }
+
+    private void shutdown() {
+        if (!open.compareAndSet(true, false))
+            return;
+        ShutdownSignalException signal = new ShutdownSignalException(true, true,
+                new AMQImpl.Connection.Close(200, "OK", 0, 0), proxy);
+        closeReason = signal;
+        channels.values().forEach(channel -> channel.shutdownByConnection(signal));
+        broker.deleteExclusiveQueues(this);
+        for (ShutdownListener listener : shutdownListeners) {
+            try {
+                listener.shutdownCompleted(signal);
+            } catch (Exception ex) {
+                log.warn("shutdown listener of {} failed", proxy, ex);
+            }
+        }
+    }
+
+    private static BlockedListener blockedListener(BlockedCallback blockedCallback, UnblockedCallback unblockedCallback) {
+        return new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) throws IOException {
+                blockedCallback.handle(reason);
+            }
+
+            @Override
+            public void handleUnblocked() throws IOException {
+                unblockedCallback.handle();
+            }
+        };
+    }
+}
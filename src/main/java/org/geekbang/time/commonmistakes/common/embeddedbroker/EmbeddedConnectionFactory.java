@@ -0,0 +1,30 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * RabbitMQ客户端的ConnectionFactory，所有newConnection重载最终都会调用这个方法，这里不建立网络连接，直接连到进程内的Broker。
+ * 可以作为CachingConnectionFactory的rabbitConnectionFactory使用
+ */
+public class EmbeddedConnectionFactory extends ConnectionFactory {
+
+    private final EmbeddedBroker broker;
+
+    public EmbeddedConnectionFactory(EmbeddedBroker broker) {
+        this.broker = broker;
+        setAutomaticRecoveryEnabled(false);
+    }
+
+    public EmbeddedBroker getBroker() {
+        return broker;
+    }
+
+    @Override
+    public Connection newConnection(ExecutorService executor, AddressResolver addressResolver, String clientProvidedName) {
+        return broker.newConnection(clientProvidedName);
+    }
+}
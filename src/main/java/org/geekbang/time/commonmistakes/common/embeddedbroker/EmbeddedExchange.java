@@ -0,0 +1,103 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * 交换器和它的绑定，绑定很少变化而路由非常频繁，所以用CopyOnWriteArraySet，路由时不加锁
+ */
+class EmbeddedExchange {
+
+    final String name;
+    final String type;
+    final boolean durable;
+    final boolean autoDelete;
+    final Map<String, Object> arguments;
+    private final CopyOnWriteArraySet<Binding> bindings = new CopyOnWriteArraySet<>();
+
+    EmbeddedExchange(String name, String type, boolean durable, boolean autoDelete, Map<String, Object> arguments) {
+        this.name = name;
+        this.type = type;
+        this.durable = durable;
+        this.autoDelete = autoDelete;
+        this.arguments = arguments == null ? Collections.emptyMap() : arguments;
+    }
+
+    static boolean isSupported(String type) {
+        return "direct".equals(type) || "fanout".equals(type) || "topic".equals(type);
+    }
+
+    void bind(EmbeddedQueue queue, String routingKey) {
+        bindings.add(new Binding(queue, routingKey));
+    }
+
+    void unbind(EmbeddedQueue queue, String routingKey) {
+        bindings.removeIf(binding -> binding.queue == queue && binding.routingKey.equals(routingKey));
+    }
+
+    void unbindAll(EmbeddedQueue queue) {
+        bindings.removeIf(binding -> binding.queue == queue);
+    }
+
+    List<EmbeddedQueue> route(String routingKey) {
+        List<EmbeddedQueue> queues = new ArrayList<>(2);
+        for (Binding binding : bindings) {
+            if (binding.matches(type, routingKey) && !queues.contains(binding.queue))
+                queues.add(binding.queue);
+        }
+        return queues;
+    }
+
+    /**
+     * topic的绑定键里*匹配一个单词，#匹配零个或多个单词
+     */
+    private static boolean topicMatches(String[] pattern, int p, String[] words, int w) {
+        if (p == pattern.length)
+            return w == words.length;
+        if ("#".equals(pattern[p]))
+            return topicMatches(pattern, p + 1, words, w) || (w < words.length && topicMatches(pattern, p, words, w + 1));
+        if (w == words.length)
+            return false;
+        return ("*".equals(pattern[p]) || pattern[p].equals(words[w])) && topicMatches(pattern, p + 1, words, w + 1);
+    }
+
+    private static class Binding {
+        private final EmbeddedQueue queue;
+        private final String routingKey;
+        private final String[] words;
+
+        Binding(EmbeddedQueue queue, String routingKey) {
+            this.queue = queue;
+            this.routingKey = routingKey == null ? "" : routingKey;
+            this.words = this.routingKey.split("\\.", -1);
+        }
+
+        boolean matches(String type, String key) {
+            switch (type) {
+                case "fanout":
+                    return true;
+                case "topic":
+                    return topicMatches(words, 0, key.split("\\.", -1), 0);
+                default:
+                    return routingKey.equals(key);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Binding))
+                return false;
+            Binding other = (Binding) o;
+            return queue == other.queue && routingKey.equals(other.routingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(queue), routingKey);
+        }
+    }
+}
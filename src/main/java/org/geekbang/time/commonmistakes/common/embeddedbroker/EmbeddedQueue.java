@@ -0,0 +1,217 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 无锁的队列实现：
+ *
+ * 1、消息保存在ConcurrentLinkedDeque里，发布时追加到队尾，重新入队的消息放回队首；
+ * 2、任何线程发布、确认、拒绝消息后都调用drain尝试分发，wip计数保证同一时刻只有一个线程在分发，
+ * 其它线程只是把wip加一，由正在分发的线程多循环一轮，不需要加锁也不会漏掉；
+ * 3、分发时在消费者之间轮询，跳过未确认消息数达到预取上限的消费者；
+ * 4、队首消息过期时转发到死信交换器（和RabbitMQ一样只检查队首，同一个队列的TTL相同，队首不过期后面的也不会过期）。
+ */
+class EmbeddedQueue {
+
+    final EmbeddedBroker broker;
+    final String name;
+    final boolean durable;
+    final boolean exclusive;
+    final boolean autoDelete;
+    final Map<String, Object> arguments;
+    final EmbeddedConnection owner;
+    final long ttlNanos;
+    final String deadLetterExchange;
+    final String deadLetterRoutingKey;
+
+    private final ConcurrentLinkedDeque<QueuedMessage> messages = new ConcurrentLinkedDeque<>();
+    //ConcurrentLinkedDeque.size()需要遍历，单独计数
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger unacked = new AtomicInteger();
+    private final CopyOnWriteArrayList<EmbeddedChannel.ConsumerRegistration> consumers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    //只在分发线程里读写
+    private int next;
+    private volatile boolean hadConsumer;
+    private volatile boolean deleted;
+
+    EmbeddedQueue(EmbeddedBroker broker, String name, boolean durable, boolean exclusive, boolean autoDelete,
+                  Map<String, Object> arguments, EmbeddedConnection owner) {
+        this.broker = broker;
+        this.name = name;
+        this.durable = durable;
+        this.exclusive = exclusive;
+        this.autoDelete = autoDelete;
+        this.arguments = arguments;
+        this.owner = owner;
+        Object ttl = arguments.get("x-message-ttl");
+        this.ttlNanos = ttl instanceof Number ? TimeUnit.MILLISECONDS.toNanos(((Number) ttl).longValue()) : 0;
+        Object exchange = arguments.get("x-dead-letter-exchange");
+        this.deadLetterExchange = exchange == null ? null : exchange.toString();
+        Object routingKey = arguments.get("x-dead-letter-routing-key");
+        this.deadLetterRoutingKey = routingKey == null ? null : routingKey.toString();
+    }
+
+    int depth() {
+        return depth.get();
+    }
+
+    int unacked() {
+        return unacked.get();
+    }
+
+    int consumerCount() {
+        return consumers.size();
+    }
+
+    void enqueue(QueuedMessage message) {
+        if (deleted)
+            return;
+        messages.offerLast(message);
+        depth.incrementAndGet();
+        drain();
+    }
+
+    /**
+     * 未确认的消息退回队首，并标记为重新投递
+     */
+    void requeue(QueuedMessage message) {
+        unacked.decrementAndGet();
+        if (deleted)
+            return;
+        message.redelivered = true;
+        messages.offerFirst(message);
+        depth.incrementAndGet();
+        drain();
+    }
+
+    /**
+     * 分发后没能投递出去（消费者刚好取消）的消息放回队首，不算重新投递
+     */
+    void putBack(QueuedMessage message, boolean countedAsUnacked) {
+        if (countedAsUnacked)
+            unacked.decrementAndGet();
+        if (deleted)
+            return;
+        messages.offerFirst(message);
+        depth.incrementAndGet();
+        drain();
+    }
+
+    void settled() {
+        unacked.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * basic.get，取出队首没有过期的消息
+     */
+    QueuedMessage poll(boolean autoAck) {
+        long now = System.nanoTime();
+        while (true) {
+            QueuedMessage message = messages.pollFirst();
+            if (message == null)
+                return null;
+            depth.decrementAndGet();
+            if (message.isExpired(now)) {
+                broker.deadLetter(this, message, "expired");
+                continue;
+            }
+            if (!autoAck)
+                unacked.incrementAndGet();
+            return message;
+        }
+    }
+
+    int purge() {
+        int purged = 0;
+        while (messages.pollFirst() != null) {
+            depth.decrementAndGet();
+            purged++;
+        }
+        return purged;
+    }
+
+    void addConsumer(EmbeddedChannel.ConsumerRegistration consumer) {
+        consumers.add(consumer);
+        hadConsumer = true;
+        drain();
+    }
+
+    void removeConsumer(EmbeddedChannel.ConsumerRegistration consumer) {
+        //自动删除队列在最后一个消费者取消后删除
+        if (consumers.remove(consumer) && autoDelete && hadConsumer && consumers.isEmpty())
+            broker.deleteQueue(this);
+    }
+
+    /**
+     * 删除队列，取消所有消费者，返回删除时队列里的消息数
+     */
+    int delete() {
+        deleted = true;
+        int count = purge();
+        for (EmbeddedChannel.ConsumerRegistration consumer : consumers) {
+            consumers.remove(consumer);
+            consumer.channel.cancelledByBroker(consumer);
+        }
+        return count;
+    }
+
+    void drain() {
+        if (wip.getAndIncrement() != 0)
+            return;
+        int missed = 1;
+        do {
+            dispatch();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void dispatch() {
+        long now = System.nanoTime();
+        while (true) {
+            QueuedMessage head = messages.peekFirst();
+            if (head == null)
+                return;
+            if (!head.isExpired(now)) {
+                EmbeddedChannel.ConsumerRegistration consumer = nextConsumer();
+                if (consumer == null)
+                    return;
+                QueuedMessage message = messages.pollFirst();
+                if (message == null)
+                    return;
+                depth.decrementAndGet();
+                if (!message.isExpired(now)) {
+                    if (!consumer.autoAck)
+                        unacked.incrementAndGet();
+                    consumer.channel.deliver(consumer, message);
+                    continue;
+                }
+                broker.deadLetter(this, message, "expired");
+                continue;
+            }
+            QueuedMessage expired = messages.pollFirst();
+            if (expired == null)
+                return;
+            depth.decrementAndGet();
+            broker.deadLetter(this, expired, "expired");
+        }
+    }
+
+    private EmbeddedChannel.ConsumerRegistration nextConsumer() {
+        Object[] snapshot = consumers.toArray();
+        for (int i = 0; i < snapshot.length; i++) {
+            int index = (next + i) % snapshot.length;
+            EmbeddedChannel.ConsumerRegistration consumer = (EmbeddedChannel.ConsumerRegistration) snapshot[index];
+            if (consumer.hasCapacity()) {
+                next = index + 1;
+                return consumer;
+            }
+        }
+        return null;
+    }
+}
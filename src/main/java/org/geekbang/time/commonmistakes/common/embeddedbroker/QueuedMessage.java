@@ -0,0 +1,28 @@
+package org.geekbang.time.commonmistakes.common.embeddedbroker;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * 队列里的一条消息，同一条消息路由到多个队列时每个队列各有一份
+ */
+class QueuedMessage {
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties properties;
+    final byte[] body;
+    //过期时间点（System.nanoTime），0表示不过期
+    final long expiresAt;
+    volatile boolean redelivered;
+
+    QueuedMessage(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body, long ttlNanos) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.body = body;
+        this.expiresAt = ttlNanos > 0 ? Math.max(1, System.nanoTime() + ttlNanos) : 0;
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt != 0 && now - expiresAt >= 0;
+    }
+}
@@ -5,8 +5,11 @@ import org.springframework.util.Assert;
 import org.springframework.util.StopWatch;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
@@ -47,10 +50,49 @@ public class ConcurrentHashMapPerformanceController {
         return "OK";
     }
 
+    /**
+     * 分别用10/50/200个线程对比三种计数方式，线程数可以通过threads参数指定
+     */
+    @GetMapping("compare")
+    public Map<String, Long> compare(@RequestParam(value = "threads", defaultValue = "10,50,200") List<Integer> threads) throws InterruptedException {
+        Map<String, Long> result = new LinkedHashMap<>();
+        StopWatch stopWatch = new StopWatch();
+        for (int threadCount : threads) {
+            stopWatch.start("normaluse-" + threadCount);
+            Map<String, Long> normaluse = normaluse(threadCount, LOOP_COUNT);
+            stopWatch.stop();
+            checkResult("normaluse", normaluse);
+            result.put(stopWatch.getLastTaskName(), stopWatch.getLastTaskTimeMillis());
+
+            stopWatch.start("gooduse-" + threadCount);
+            Map<String, Long> gooduse = gooduse(threadCount, LOOP_COUNT);
+            stopWatch.stop();
+            checkResult("gooduse", gooduse);
+            result.put(stopWatch.getLastTaskName(), stopWatch.getLastTaskTimeMillis());
+
+            stopWatch.start("stripeduse-" + threadCount);
+            Map<String, Long> stripeduse = stripeduse(threadCount, LOOP_COUNT);
+            stopWatch.stop();
+            checkResult("stripeduse", stripeduse);
+            result.put(stopWatch.getLastTaskName(), stopWatch.getLastTaskTimeMillis());
+        }
+        log.info(stopWatch.prettyPrint());
+        return result;
+    }
+
+    private void checkResult(String name, Map<String, Long> freqs) {
+        Assert.isTrue(freqs.size() == ITEM_COUNT, name + " size error");
+        Assert.isTrue(freqs.values().stream().mapToLong(Long::longValue).sum() == LOOP_COUNT, name + " count error");
+    }
+
     private Map<String, Long> normaluse() throws InterruptedException {
+        return normaluse(THREAD_COUNT, LOOP_COUNT);
+    }
+
+    Map<String, Long> normaluse(int threadCount, int loopCount) throws InterruptedException {
         ConcurrentHashMap<String, Long> freqs = new ConcurrentHashMap<>(ITEM_COUNT);
-        ForkJoinPool forkJoinPool = new ForkJoinPool(THREAD_COUNT);
-        forkJoinPool.execute(() -> IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(i -> {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threadCount);
+        forkJoinPool.execute(() -> IntStream.rangeClosed(1, loopCount).parallel().forEach(i -> {
                     String key = "item" + ThreadLocalRandom.current().nextInt(ITEM_COUNT);
                     synchronized (freqs) {
                         if (freqs.containsKey(key)) {
@@ -80,9 +122,13 @@ public class ConcurrentHashMapPerformanceController {
 
 
     private Map<String, Long> gooduse() throws InterruptedException {
+        return gooduse(THREAD_COUNT, LOOP_COUNT);
+    }
+
+    Map<String, Long> gooduse(int threadCount, int loopCount) throws InterruptedException {
         ConcurrentHashMap<String, LongAdder> freqs = new ConcurrentHashMap<>(ITEM_COUNT);
-        ForkJoinPool forkJoinPool = new ForkJoinPool(THREAD_COUNT);
-        forkJoinPool.execute(() -> IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(i -> {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threadCount);
+        forkJoinPool.execute(() -> IntStream.rangeClosed(1, loopCount).parallel().forEach(i -> {
                     String key = "item" + ThreadLocalRandom.current().nextInt(ITEM_COUNT);
                     freqs.computeIfAbsent(key, k -> new LongAdder()).increment();
                 }
@@ -95,4 +141,21 @@ public class ConcurrentHashMapPerformanceController {
                         e -> e.getValue().longValue())
                 );
     }
+
+    /**
+     * 使用StripedFrequencyCounter：key提前intern成int下标，热路径上既不拼接字符串也不查Map，
+     * 累加落在线程对应的stripe上，最后读取时再合并
+     */
+    Map<String, Long> stripeduse(int threadCount, int loopCount) throws InterruptedException {
+        StripedFrequencyCounter freqs = new StripedFrequencyCounter(ITEM_COUNT);
+        int[] ids = IntStream.range(0, ITEM_COUNT).map(i -> freqs.intern("item" + i)).toArray();
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threadCount);
+        forkJoinPool.execute(() -> IntStream.rangeClosed(1, loopCount).parallel().forEach(i ->
+                freqs.increment(ids[ThreadLocalRandom.current().nextInt(ITEM_COUNT)])
+        ));
+        forkJoinPool.shutdown();
+        forkJoinPool.awaitTermination(1, TimeUnit.HOURS);
+        log.info("stripeduse top3: {}", freqs.topK(3));
+        return freqs.snapshotAndReset();
+    }
 }
@@ -0,0 +1,158 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 专用于高频计数的计数器：
+ *
+ * 1、key先通过intern转换为从0开始的int下标（只在注册时走一次ConcurrentHashMap），热路径上只有数组下标计算，不再拼接String、计算hash；
+ * 2、计数分散在多个stripe中，每个线程按线程id落到固定的stripe，不同stripe之间用填充隔开避免伪共享，读取时再把所有stripe合并；
+ * 3、snapshotAndReset通过getAndSet(0)逐个cell取走计数，不会丢失并发中的累加；
+ * 4、topK基于合并后的计数用小顶堆选出前K个。
+ *
+ * 和LongAdder的思路一致，只是把"一个key一个LongAdder"变成了"一组key共享一块按stripe划分的连续数组"。
+ */
+public class StripedFrequencyCounter {
+
+    //一个缓存行64字节，也就是8个long，stripe之间多留两个缓存行
+    private static final int PADDING = 16;
+
+    private final int capacity;
+    private final int stripeMask;
+    private final int stride;
+    private final AtomicLongArray cells;
+    private final ConcurrentHashMap<String, Integer> keyToId = new ConcurrentHashMap<>();
+    private final String[] idToKey;
+    //先写idToKey再更新registered，读取方通过volatile读保证能看到已注册的key
+    private volatile int registered;
+
+    public StripedFrequencyCounter(int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public StripedFrequencyCounter(int capacity, int stripes) {
+        if (capacity <= 0 || stripes <= 0)
+            throw new IllegalArgumentException("capacity and stripes must be positive");
+        this.capacity = capacity;
+        int stripeCount = 1;
+        while (stripeCount < stripes) stripeCount <<= 1;
+        this.stripeMask = stripeCount - 1;
+        this.stride = capacity + PADDING;
+        this.cells = new AtomicLongArray(stripeCount * stride);
+        this.idToKey = new String[capacity];
+    }
+
+    /**
+     * 把key注册为int下标，同一个key多次调用返回同一个下标
+     */
+    public int intern(String key) {
+        Integer id = keyToId.get(key);
+        if (id != null)
+            return id;
+        return keyToId.computeIfAbsent(key, k -> {
+            synchronized (idToKey) {
+                int newId = registered;
+                if (newId >= capacity)
+                    throw new IllegalStateException("counter capacity " + capacity + " exceeded");
+                idToKey[newId] = k;
+                registered = newId + 1;
+                return newId;
+            }
+        });
+    }
+
+    public void increment(int id) {
+        add(id, 1);
+    }
+
+    public void add(int id, long delta) {
+        if (id < 0 || id >= capacity)
+            throw new IndexOutOfBoundsException("id " + id);
+        cells.getAndAdd(stripe() * stride + id, delta);
+    }
+
+    public void increment(String key) {
+        increment(intern(key));
+    }
+
+    public long get(int id) {
+        long sum = 0;
+        for (int s = 0; s <= stripeMask; s++) {
+            sum += cells.get(s * stride + id);
+        }
+        return sum;
+    }
+
+    public int size() {
+        return registered;
+    }
+
+    /**
+     * 合并所有stripe得到当前计数，不清零
+     */
+    public Map<String, Long> snapshot() {
+        return collect(false);
+    }
+
+    /**
+     * 合并所有stripe得到当前计数并清零，适合按时间窗口上报
+     */
+    public Map<String, Long> snapshotAndReset() {
+        return collect(true);
+    }
+
+    /**
+     * 返回计数最大的k个key，按计数降序排列
+     */
+    public List<Map.Entry<String, Long>> topK(int k) {
+        if (k <= 0)
+            return Collections.emptyList();
+        int size = size();
+        long[] merged = merge(size, false);
+        PriorityQueue<Integer> heap = new PriorityQueue<>(k, Comparator.comparingLong(id -> merged[id]));
+        for (int id = 0; id < size; id++) {
+            if (heap.size() < k) {
+                heap.offer(id);
+            } else if (merged[id] > merged[heap.peek()]) {
+                heap.poll();
+                heap.offer(id);
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            int id = heap.poll();
+            result.add(new AbstractMap.SimpleImmutableEntry<>(idToKey[id], merged[id]));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private Map<String, Long> collect(boolean reset) {
+        int size = size();
+        long[] merged = merge(size, reset);
+        Map<String, Long> result = new HashMap<>(size * 4 / 3 + 1);
+        for (int id = 0; id < size; id++) {
+            result.put(idToKey[id], merged[id]);
+        }
+        return result;
+    }
+
+    private long[] merge(int size, boolean reset) {
+        long[] merged = new long[size];
+        for (int s = 0; s <= stripeMask; s++) {
+            int base = s * stride;
+            for (int id = 0; id < size; id++) {
+                merged[id] += reset ? cells.getAndSet(base + id, 0) : cells.get(base + id);
+            }
+        }
+        return merged;
+    }
+
+    private int stripe() {
+        long tid = Thread.currentThread().getId();
+        int h = (int) (tid ^ (tid >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+}
@@ -32,10 +32,10 @@ public class CopyOnWriteListMisuseController {
         StopWatch stopWatch = new StopWatch();
         int loopCount = 100000;
         stopWatch.start("Write:copyOnWriteArrayList");
-        IntStream.rangeClosed(1, loopCount).parallel().forEach(__ -> copyOnWriteArrayList.add(ThreadLocalRandom.current().nextInt(loopCount)));
+        write(copyOnWriteArrayList, loopCount);
         stopWatch.stop();
         stopWatch.start("Write:synchronizedList");
-        IntStream.rangeClosed(1, loopCount).parallel().forEach(__ -> synchronizedList.add(ThreadLocalRandom.current().nextInt(loopCount)));
+        write(synchronizedList, loopCount);
         stopWatch.stop();
         log.info(stopWatch.prettyPrint());
         Map result = new HashMap();
@@ -44,8 +44,19 @@ public class CopyOnWriteListMisuseController {
         return result;
     }
 
-    private void addAll(List<Integer> list) {
-        list.addAll(IntStream.rangeClosed(1, 1000000).boxed().collect(Collectors.toList()));
+    //并行地往list里add loopCount次
+    void write(List<Integer> list, int loopCount) {
+        IntStream.rangeClosed(1, loopCount).parallel().forEach(__ -> list.add(ThreadLocalRandom.current().nextInt(loopCount)));
+    }
+
+    void addAll(List<Integer> list, int size) {
+        list.addAll(IntStream.rangeClosed(1, size).boxed().collect(Collectors.toList()));
+    }
+
+    //并行地从list里随机get loopCount次
+    void read(List<Integer> list, int loopCount) {
+        int count = list.size();
+        IntStream.rangeClosed(1, loopCount).parallel().forEach(__ -> list.get(ThreadLocalRandom.current().nextInt(count)));
     }
 
     /**
@@ -66,16 +77,15 @@ public class CopyOnWriteListMisuseController {
     public Map testRead() {
         List<Integer> copyOnWriteArrayList = new CopyOnWriteArrayList<>();
         List<Integer> synchronizedList = Collections.synchronizedList(new ArrayList<>());
-        addAll(copyOnWriteArrayList);
-        addAll(synchronizedList);
+        addAll(copyOnWriteArrayList, 1000000);
+        addAll(synchronizedList, 1000000);
         StopWatch stopWatch = new StopWatch();
         int loopCount = 1000000;
-        int count = copyOnWriteArrayList.size();
         stopWatch.start("Read:copyOnWriteArrayList");
-        IntStream.rangeClosed(1, loopCount).parallel().forEach(__ -> copyOnWriteArrayList.get(ThreadLocalRandom.current().nextInt(count)));
+        read(copyOnWriteArrayList, loopCount);
         stopWatch.stop();
         stopWatch.start("Read:synchronizedList");
-        IntStream.range(0, loopCount).parallel().forEach(__ -> synchronizedList.get(ThreadLocalRandom.current().nextInt(count)));
+        read(synchronizedList, loopCount);
         stopWatch.stop();
         log.info(stopWatch.prettyPrint());
         Map result = new HashMap();
@@ -1,12 +1,17 @@
 package org.geekbang.time.commonmistakes.connectionpool.httpclient;
 
+import org.geekbang.time.commonmistakes.common.HttpClientPoolConfiguration;
+import org.geekbang.time.commonmistakes.common.Utils;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Import;
 
 @SpringBootApplication
+@Import(HttpClientPoolConfiguration.class)
 public class CommonMistakesApplication {
 
     public static void main(String[] args) {
+        Utils.loadPropertySource(CommonMistakesApplication.class, "httpclient.properties");
         SpringApplication.run(CommonMistakesApplication.class, args);
     }
 }
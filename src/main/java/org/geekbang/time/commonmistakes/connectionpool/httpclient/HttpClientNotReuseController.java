@@ -7,11 +7,11 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 @RestController
@@ -20,18 +20,9 @@ import java.util.concurrent.TimeUnit;
 public class HttpClientNotReuseController {
 
 
-    private static CloseableHttpClient httpClient = null;
-
-    static {
-        httpClient = HttpClients.custom().setMaxConnPerRoute(1).setMaxConnTotal(1).evictIdleConnections(60, TimeUnit.SECONDS).build();
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                httpClient.close();
-            } catch (IOException ignored) {
-            }
-        }));
-    }
+    //由HttpClientPoolConfiguration统一创建的共享HttpClient，连接池配置见httpclient.properties
+    @Autowired
+    private CloseableHttpClient httpClient;
 
     @GetMapping("wrong1")
     public String wrong1() {
@@ -1,10 +1,13 @@
 package org.geekbang.time.commonmistakes.connectionpool.twotimeoutconfig;
 
+import org.geekbang.time.commonmistakes.common.HttpClientPoolConfiguration;
 import org.geekbang.time.commonmistakes.common.Utils;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Import;
 
 @SpringBootApplication
+@Import(HttpClientPoolConfiguration.class)
 public class CommonMistakesApplication {
 
     public static void main(String[] args) {
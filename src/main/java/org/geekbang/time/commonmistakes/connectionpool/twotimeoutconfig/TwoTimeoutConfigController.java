@@ -5,7 +5,6 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -16,24 +15,13 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
-import java.io.IOException;
-
 @RequestMapping("twotimeoutconfig")
 @Slf4j
 @RestController
 public class TwoTimeoutConfigController {
 
-    private static CloseableHttpClient httpClient = null;
-
-    static {
-        httpClient = HttpClients.createSystem();
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                httpClient.close();
-            } catch (IOException ignored) {
-            }
-        }));
-    }
+    @Autowired
+    private CloseableHttpClient httpClient;
 
     @Autowired
     private JdbcTemplate jdbcTemplate;
@@ -2,14 +2,15 @@ package org.geekbang.time.commonmistakes.exception.threadpoolandexception;
 
 import jodd.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -27,10 +28,10 @@ public class ThreadPoolAndExceptionController {
     public void execute() throws InterruptedException {
 
         String prefix = "test";
-        ExecutorService threadPool = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.register(prefix, (ThreadPoolExecutor) Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
                 .setNameFormat(prefix + "%d")
                 .setUncaughtExceptionHandler((thread, throwable) -> log.error("ThreadPool {} got exception", thread, throwable))
-                .get());
+                .get()));
         IntStream.rangeClosed(1, 10).forEach(i -> threadPool.execute(() -> {
             if (i == 5) throw new RuntimeException("error");
             log.info("I'm done : {}", i);
@@ -38,13 +39,14 @@ public class ThreadPoolAndExceptionController {
 
         threadPool.shutdown();
         threadPool.awaitTermination(1, TimeUnit.HOURS);
+        ThreadPoolRegistry.unregister(threadPool);
     }
 
     @GetMapping("submit")
     public void submit() throws InterruptedException {
 
         String prefix = "test";
-        ExecutorService threadPool = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setNameFormat(prefix + "%d").get());
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.register(prefix, (ThreadPoolExecutor) Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setNameFormat(prefix + "%d").get()));
         IntStream.rangeClosed(1, 10).forEach(i -> threadPool.submit(() -> {
             if (i == 5) throw new RuntimeException("error");
             log.info("I'm done : {}", i);
@@ -52,13 +54,14 @@ public class ThreadPoolAndExceptionController {
 
         threadPool.shutdown();
         threadPool.awaitTermination(1, TimeUnit.HOURS);
+        ThreadPoolRegistry.unregister(threadPool);
     }
 
     @GetMapping("submitright")
     public void submitRight() throws InterruptedException {
 
         String prefix = "test";
-        ExecutorService threadPool = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setNameFormat(prefix + "%d").get());
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.register(prefix, (ThreadPoolExecutor) Executors.newFixedThreadPool(1, new ThreadFactoryBuilder().setNameFormat(prefix + "%d").get()));
 
         List<Future> tasks = IntStream.rangeClosed(1, 10).mapToObj(i -> threadPool.submit(() -> {
             if (i == 5) throw new RuntimeException("error");
@@ -74,5 +77,6 @@ public class ThreadPoolAndExceptionController {
         });
         threadPool.shutdown();
         threadPool.awaitTermination(1, TimeUnit.HOURS);
+        ThreadPoolRegistry.unregister(threadPool);
     }
 }
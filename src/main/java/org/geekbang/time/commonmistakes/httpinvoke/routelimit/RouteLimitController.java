@@ -1,23 +1,37 @@
 package org.geekbang.time.commonmistakes.httpinvoke.routelimit;
 
+import jodd.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 @Slf4j
@@ -26,11 +40,30 @@ import java.util.stream.IntStream;
 public class RouteLimitController {
 
     static CloseableHttpClient httpClient1;
-    static CloseableHttpClient httpClient2;
+    //共享HttpClient，本案例的路由连接数配置见routelimit.properties（每个路由10个连接，总共20个）
+    @Autowired
+    private CloseableHttpClient httpClient2;
+    /**
+     * 基于NIO的异步客户端，请求不再占用线程等待响应，少量IO线程就可以维持上千个并发连接，
+     * 并发数只受连接池大小限制
+     */
+    static CloseableHttpAsyncClient asyncHttpClient;
+    //异步服务端用来延迟返回结果，不占用Tomcat线程
+    static ScheduledExecutorService asyncServerScheduler;
+    //path参数只能是本Controller里的两个服务端，不能让调用方拼出任意地址
+    private static final Set<String> SERVER_PATHS = new HashSet<>(Arrays.asList("server", "asyncserver"));
 
     static {
         httpClient1 = HttpClients.custom().setConnectionManager(new PoolingHttpClientConnectionManager()).build();
-        httpClient2 = HttpClients.custom().setMaxConnPerRoute(10).setMaxConnTotal(20).build();
+        asyncHttpClient = HttpAsyncClients.custom()
+                .setMaxConnPerRoute(10000).setMaxConnTotal(10000)
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Runtime.getRuntime().availableProcessors())
+                        .build())
+                .build();
+        asyncHttpClient.start();
+        asyncServerScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("asyncserver-%d").setDaemon(true).get());
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
@@ -38,19 +71,23 @@ public class RouteLimitController {
             } catch (IOException ex) {
             }
             try {
-                httpClient2.close();
+                asyncHttpClient.close();
             } catch (IOException ex) {
             }
         }));
     }
 
     private int sendRequest(int count, Supplier<CloseableHttpClient> client) throws InterruptedException {
+        return sendRequest(count, client, "server");
+    }
+
+    private int sendRequest(int count, Supplier<CloseableHttpClient> client, String path) throws InterruptedException {
         AtomicInteger atomicInteger = new AtomicInteger();
         ExecutorService threadPool = Executors.newCachedThreadPool();
         long begin = System.currentTimeMillis();
         IntStream.rangeClosed(1, count).forEach(i -> {
             threadPool.execute(() -> {
-                try (CloseableHttpResponse response = client.get().execute(new HttpGet("http://127.0.0.1:45678/routelimit/server"))) {
+                try (CloseableHttpResponse response = client.get().execute(new HttpGet("http://127.0.0.1:45678/routelimit/" + path))) {
                     atomicInteger.addAndGet(Integer.parseInt(EntityUtils.toString(response.getEntity())));
                 } catch (Exception ex) {
                     ex.printStackTrace();
@@ -63,6 +100,46 @@ public class RouteLimitController {
         return atomicInteger.get();
     }
 
+    /**
+     * 所有请求通过异步客户端一次性发出，每个请求对应一个CompletableFuture，回调在IO线程中完成，
+     * 调用线程只在最后等待所有Future完成
+     */
+    private int sendRequestAsync(int count, String path) {
+        long begin = System.currentTimeMillis();
+        List<CompletableFuture<Integer>> futures = IntStream.rangeClosed(1, count)
+                .mapToObj(i -> {
+                    CompletableFuture<Integer> future = new CompletableFuture<>();
+                    asyncHttpClient.execute(new HttpGet("http://127.0.0.1:45678/routelimit/" + path), new FutureCallback<HttpResponse>() {
+                        @Override
+                        public void completed(HttpResponse response) {
+                            try {
+                                future.complete(Integer.parseInt(EntityUtils.toString(response.getEntity())));
+                            } catch (Exception ex) {
+                                future.completeExceptionally(ex);
+                            }
+                        }
+
+                        @Override
+                        public void failed(Exception ex) {
+                            future.completeExceptionally(ex);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            future.cancel(false);
+                        }
+                    });
+                    return future.exceptionally(ex -> {
+                        log.warn("async request failed", ex);
+                        return 0;
+                    });
+                })
+                .collect(Collectors.toList());
+        int result = futures.stream().mapToInt(CompletableFuture::join).sum();
+        log.info("异步发送 {} 次请求，耗时 {} ms", result, System.currentTimeMillis() - begin);
+        return result;
+    }
+
     @GetMapping("wrong")
     public int wrong(@RequestParam(value = "count", defaultValue = "10") int count) throws InterruptedException {
         return sendRequest(count, () -> httpClient1);
@@ -73,9 +150,74 @@ public class RouteLimitController {
         return sendRequest(count, () -> httpClient2);
     }
 
+    @GetMapping("async")
+    public int async(@RequestParam(value = "count", defaultValue = "10") int count,
+                     @RequestParam(value = "path", defaultValue = "asyncserver") String path) {
+        checkServerPath(path);
+        return sendRequestAsync(count, path);
+    }
+
+    /**
+     * 对比wrong（httpClient1）、right（httpClient2）和async三种方式的耗时、峰值线程数和堆内存增长，
+     * 比如 /routelimit/compare?count=1000&modes=right,async
+     * 服务端默认使用asyncserver，避免被Tomcat的20个线程限制住；path=server时为原来的同步服务端
+     */
+    @GetMapping("compare")
+    public Map<String, Map<String, Long>> compare(@RequestParam(value = "count", defaultValue = "10") int count,
+                                                  @RequestParam(value = "modes", defaultValue = "wrong,right,async") List<String> modes,
+                                                  @RequestParam(value = "path", defaultValue = "asyncserver") String path) throws InterruptedException {
+        checkServerPath(path);
+        Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        for (String mode : modes) {
+            System.gc();
+            threadMXBean.resetPeakThreadCount();
+            long threadsBefore = threadMXBean.getThreadCount();
+            long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long begin = System.currentTimeMillis();
+            int success;
+            switch (mode) {
+                case "wrong":
+                    success = sendRequest(count, () -> httpClient1, path);
+                    break;
+                case "right":
+                    success = sendRequest(count, () -> httpClient2, path);
+                    break;
+                case "async":
+                    success = sendRequestAsync(count, path);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown mode " + mode);
+            }
+            Map<String, Long> stats = new LinkedHashMap<>();
+            stats.put("success", (long) success);
+            stats.put("tookMs", System.currentTimeMillis() - begin);
+            stats.put("extraPeakThreads", threadMXBean.getPeakThreadCount() - threadsBefore);
+            stats.put("heapGrowthKB", (ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() - heapBefore) / 1024);
+            result.put(mode, stats);
+        }
+        log.info("compare count:{} result:{}", count, result);
+        return result;
+    }
+
+    private static void checkServerPath(String path) {
+        if (!SERVER_PATHS.contains(path))
+            throw new IllegalArgumentException("unknown path " + path + ", expected one of " + SERVER_PATHS);
+    }
+
     @GetMapping("server")
     public int server() throws InterruptedException {
         TimeUnit.SECONDS.sleep(1);
         return 1;
     }
+
+    /**
+     * 和server一样1秒后返回1，但是通过CompletableFuture异步返回，等待期间不占用Tomcat线程
+     */
+    @GetMapping("asyncserver")
+    public CompletableFuture<Integer> asyncServer() {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        asyncServerScheduler.schedule(() -> future.complete(1), 1, TimeUnit.SECONDS);
+        return future;
+    }
 }
@@ -4,13 +4,16 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.Charsets;
 import org.apache.commons.codec.binary.Hex;
 
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
 
 @Slf4j
 public class FileBadEncodingIssueApplication {
@@ -20,6 +23,8 @@ public class FileBadEncodingIssueApplication {
         wrong();
         right1();
         right2();
+        right3();
+        //largeFile();
     }
 
     private static void init() throws IOException {
@@ -67,6 +72,32 @@ public class FileBadEncodingIssueApplication {
         log.info("result: {}", Files.readAllLines(Paths.get("hello.txt"), Charset.forName("GBK")).stream().findFirst().orElse(""));
     }
 
+    private static void right3() throws IOException {
+        //hello.txt不是合法的UTF-8，检测结果是GBK；hello2.txt是UTF-8
+        Charset charset = StreamingDecoder.detect(Paths.get("hello.txt"), Charset.forName("GBK"));
+        log.info("charset: {} {}", charset, StreamingDecoder.detect(Paths.get("hello2.txt"), Charset.forName("GBK")));
+        StringBuilder content = new StringBuilder();
+        new StreamingDecoder(Paths.get("hello.txt"), charset).forEachLine(content::append);
+        log.info("result: {}", content);
+    }
+
+    //生成一个几百MB的GBK文件，流式解码统计字符数，堆内存占用和文件大小无关
+    private static void largeFile() throws IOException {
+        byte[] line = "你好hi，这是一行GBK编码的测试数据\r\n".getBytes(Charset.forName("GBK"));
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(Paths.get("large_gbk.txt")))) {
+            for (int i = 0; i < 10_000_000; i++) {
+                outputStream.write(line);
+            }
+        }
+        long begin = System.currentTimeMillis();
+        LongAdder chars = new LongAdder();
+        long lines = new StreamingDecoder(Paths.get("large_gbk.txt"), Charset.forName("GBK"))
+                .forEachLine(record -> chars.add(record.length()));
+        log.info("lines:{} chars:{} took:{}ms usedHeap:{}MB", lines, chars.longValue(), System.currentTimeMillis() - begin,
+                (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024 / 1024);
+        Files.deleteIfExists(Paths.get("large_gbk.txt"));
+    }
+
 }
 
 
@@ -0,0 +1,237 @@
+package org.geekbang.time.commonmistakes.io.badencodingissue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * 流式解码文本文件，替代right1里每读10个字符就拼接一次字符串、right2里一次性读入整个文件的做法：
+ *
+ * 1、字符集可以指定，也可以通过detect检测：先看BOM，再尝试按UTF-8严格解码文件开头，失败时使用fallback（比如GBK）；
+ * 2、通过FileChannel把字节读到固定大小的ByteBuffer，用同一个CharsetDecoder解码到固定大小的CharBuffer，
+ * 多字节字符被缓冲区截断时，剩余字节留在ByteBuffer里和下一批数据一起解码；
+ * 3、在CharBuffer里直接找分隔符，把每一行（记录）以CharSequence的形式交给回调，不创建中间String，
+ * 回调里需要保存内容时自己调用toString。内存占用只和缓冲区大小、最长的一行有关，和文件大小无关。
+ *
+ * ByteBuffer用的是堆内存：JDK的UTF-8、GBK解码器只有在ByteBuffer和CharBuffer都是堆内存时才走数组快速路径，
+ * 直接内存的ByteBuffer虽然read时少一次复制，解码却要逐字节调用get，整体更慢。
+ */
+public class StreamingDecoder {
+
+    private static final int DETECT_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final Charset charset;
+    private int bufferSize = 1024 * 1024;
+    private CodingErrorAction errorAction = CodingErrorAction.REPLACE;
+
+    public StreamingDecoder(Path path, Charset charset) {
+        this.path = path;
+        this.charset = charset;
+    }
+
+    public StreamingDecoder bufferSize(int bufferSize) {
+        if (bufferSize < 16)
+            throw new IllegalArgumentException("bufferSize must not be less than 16");
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * true时遇到非法字节抛出CharacterCodingException，默认替换成替代字符
+     */
+    public StreamingDecoder strict(boolean strict) {
+        this.errorAction = strict ? CodingErrorAction.REPORT : CodingErrorAction.REPLACE;
+        return this;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * 按'\n'分行，去掉行尾的'\r'，返回行数
+     */
+    public long forEachLine(Consumer<CharSequence> consumer) throws IOException {
+        return forEachRecord('\n', consumer);
+    }
+
+    /**
+     * 按delimiter分隔记录，传给consumer的CharSequence只在回调期间有效，返回记录数
+     */
+    public long forEachRecord(char delimiter, Consumer<CharSequence> consumer) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(errorAction)
+                .onUnmappableCharacter(errorAction);
+        ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+        CharBuffer chars = CharBuffer.allocate(bufferSize);
+        Record record = new Record(delimiter, consumer);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.position(bomLength(channel));
+            boolean eof = false;
+            while (true) {
+                if (!eof && bytes.hasRemaining() && channel.read(bytes) < 0)
+                    eof = true;
+                bytes.flip();
+                int charsBefore = chars.position();
+                CoderResult result = decoder.decode(bytes, chars, eof);
+                boolean decoded = chars.position() > charsBefore;
+                bytes.compact();
+                if (result.isError())
+                    result.throwException();
+                if (eof && result.isUnderflow()) {
+                    while (decoder.flush(chars).isOverflow()) {
+                        chars = grow(chars);
+                    }
+                    record.scan(chars);
+                    record.finish(chars);
+                    return record.count;
+                }
+                record.scan(chars);
+                //CharBuffer放不下下一个字符、一个字符都没解码出来时扩容：一条记录比整个CharBuffer还长，
+                //或者只剩一个位置放不下代理对（比如emoji），否则会一直溢出原地打转
+                if (result.isOverflow() && !decoded)
+                    chars = grow(chars);
+            }
+        }
+    }
+
+    /**
+     * 检测文件字符集：有BOM按BOM；文件开头64KB能按UTF-8严格解码就是UTF-8（纯ASCII也算UTF-8）；否则返回fallback
+     */
+    public static Charset detect(Path path, Charset fallback) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(DETECT_SIZE);
+            while (head.hasRemaining() && channel.read(head) > 0) {
+            }
+            head.flip();
+            Charset bomCharset = bomCharset(head);
+            if (bomCharset != null)
+                return bomCharset;
+            CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            CharBuffer chars = CharBuffer.allocate(DETECT_SIZE);
+            //读到文件末尾时才算输入结束，否则末尾被截断的多字节字符不算错误
+            boolean endOfInput = channel.size() <= DETECT_SIZE;
+            return utf8.decode(head, chars, endOfInput).isError() ? fallback : StandardCharsets.UTF_8;
+        }
+    }
+
+    private long bomLength(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(3);
+        while (head.hasRemaining() && channel.read(head) > 0) {
+        }
+        head.flip();
+        Charset bomCharset = bomCharset(head);
+        if (bomCharset == null || !bomCharset.equals(charset))
+            return 0;
+        return bomCharset.equals(StandardCharsets.UTF_8) ? 3 : 2;
+    }
+
+    private static Charset bomCharset(ByteBuffer head) {
+        int b0 = head.remaining() > 0 ? head.get(0) & 0xFF : -1;
+        int b1 = head.remaining() > 1 ? head.get(1) & 0xFF : -1;
+        int b2 = head.remaining() > 2 ? head.get(2) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF)
+            return StandardCharsets.UTF_8;
+        if (b0 == 0xFE && b1 == 0xFF)
+            return StandardCharsets.UTF_16BE;
+        if (b0 == 0xFF && b1 == 0xFE)
+            return StandardCharsets.UTF_16LE;
+        return null;
+    }
+
+    private static CharBuffer grow(CharBuffer chars) {
+        CharBuffer bigger = CharBuffer.allocate(chars.capacity() * 2);
+        chars.flip();
+        bigger.put(chars);
+        return bigger;
+    }
+
+    /**
+     * 在CharBuffer上扫描分隔符，作为CharSequence复用同一个对象，指向CharBuffer底层数组里的一段
+     */
+    private static class Record implements CharSequence {
+        private final char delimiter;
+        private final Consumer<CharSequence> consumer;
+        private long count;
+        private char[] array;
+        private int offset;
+        private int length;
+        //CharBuffer里已经扫描过、确定不含分隔符的位置，避免很长的记录被反复扫描
+        private int scanned;
+
+        Record(char delimiter, Consumer<CharSequence> consumer) {
+            this.delimiter = delimiter;
+            this.consumer = consumer;
+        }
+
+        /**
+         * 交出CharBuffer里所有完整的记录，剩下的不完整记录移到缓冲区开头
+         */
+        void scan(CharBuffer chars) {
+            char[] data = chars.array();
+            int end = chars.position();
+            int start = 0;
+            for (int i = scanned; i < end; i++) {
+                if (data[i] == delimiter) {
+                    emit(data, start, i - start);
+                    start = i + 1;
+                }
+            }
+            chars.flip();
+            chars.position(start);
+            chars.compact();
+            scanned = end - start;
+        }
+
+        void finish(CharBuffer chars) {
+            if (chars.position() > 0)
+                emit(chars.array(), 0, chars.position());
+            chars.clear();
+            scanned = 0;
+        }
+
+        private void emit(char[] data, int start, int length) {
+            if (delimiter == '\n' && length > 0 && data[start + length - 1] == '\r')
+                length--;
+            this.array = data;
+            this.offset = start;
+            this.length = length;
+            consumer.accept(this);
+            count++;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length)
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            return array[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(array, offset, length);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.geekbang.time.commonmistakes.io.badencodingissue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class StreamingDecoderTest {
+
+    /**
+     * 各种缓冲区大小下，StreamingDecoder按行解码的结果要和Files.readAllLines一致
+     */
+    @Test
+    public void sameAsReadAllLines() throws IOException {
+        String emoji = new String(Character.toChars(0x1F600));
+        check("你好hi\r\n这是一行GBK编码的测试数据\n\nlast line without newline", Charset.forName("GBK"));
+        check("你好hi\r\n" + String.join("", Collections.nCopies(100, "很长的一行")) + "\nend\n", StandardCharsets.UTF_8);
+        //只剩一个字符位置时放不下代理对，并且没有换行符的记录比缓冲区还长
+        check("a" + String.join("", Collections.nCopies(20, emoji)), StandardCharsets.UTF_8);
+        check(String.join("\n", Collections.nCopies(50, "x" + emoji + emoji + "y")), StandardCharsets.UTF_8);
+    }
+
+    private static void check(String content, Charset charset) throws IOException {
+        Path path = Files.createTempFile("streaming-decoder", ".txt");
+        try {
+            Files.write(path, content.getBytes(charset));
+            List<String> expected = Files.readAllLines(path, charset);
+            for (int bufferSize : new int[]{16, 17, 31, 64, 1024 * 1024}) {
+                List<String> actual = new ArrayList<>();
+                long count = new StreamingDecoder(path, charset).bufferSize(bufferSize)
+                        .forEachLine(line -> actual.add(line.toString()));
+                Assert.assertEquals("bufferSize " + bufferSize, expected, actual);
+                Assert.assertEquals(expected.size(), count);
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -2,13 +2,17 @@ package org.geekbang.time.commonmistakes.io.filebufferperformance;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.StopWatch;
+import org.springframework.util.unit.DataSize;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -18,39 +22,99 @@ import static java.nio.file.StandardOpenOption.*;
 @Slf4j
 public class CommonMistakesApplication {
 
+    //参数是逗号分隔的文件大小列表，比如1MB,100MB，默认从1MB到10GB
     public static void main(String[] args) throws IOException {
+        String sizes = args.length > 0 ? args[0] : "1MB,10MB,100MB,1GB,10GB";
+        FileTransferService fileTransferService = new FileTransferService("filebufferperformance", 4);
+        try {
+            for (String size : sizes.split(",")) {
+                benchmark(DataSize.parse(size.trim()).toBytes(), fileTransferService);
+            }
+            //并发复制只看线程池的总吞吐量，固定用100MB的文件，否则默认参数下要把10GB的文件再复制8份
+            concurrentCopy(fileTransferService, 8, DataSize.ofMegabytes(100).toBytes());
+        } finally {
+            fileTransferService.shutdown();
+            Files.deleteIfExists(Paths.get("src.txt"));
+            Files.deleteIfExists(Paths.get("dest.txt"));
+        }
+    }
 
-        StopWatch stopWatch = new StopWatch();
-        init();
-        stopWatch.start("perByteOperation");
-        perByteOperation();
-        stopWatch.stop();
-        stopWatch.start("bufferOperationWith100Buffer");
-        bufferOperationWith100Buffer();
-        stopWatch.stop();
-        stopWatch.start("bufferedStreamByteOperation");
-        bufferedStreamByteOperation();
-        stopWatch.stop();
-        stopWatch.start("bufferedStreamBufferOperation");
-        bufferedStreamBufferOperation();
-        stopWatch.stop();
-        stopWatch.start("largerBufferOperation");
-        largerBufferOperation();
-        stopWatch.stop();
-        stopWatch.start("fileChannelOperation");
-        fileChannelOperation();
+    private interface IoOperation {
+        void run() throws IOException;
+    }
+
+    private static void benchmark(long size, FileTransferService fileTransferService) throws IOException {
+        initBySize(size);
+        StopWatch stopWatch = new StopWatch("copy " + DataSize.ofBytes(size).toMegabytes() + "MB");
+        //逐字节读写太慢，只在10MB以内的文件上比较
+        if (size <= DataSize.ofMegabytes(10).toBytes()) {
+            run(stopWatch, "perByteOperation", CommonMistakesApplication::perByteOperation);
+            run(stopWatch, "bufferOperationWith100Buffer", CommonMistakesApplication::bufferOperationWith100Buffer);
+            run(stopWatch, "bufferedStreamByteOperation", CommonMistakesApplication::bufferedStreamByteOperation);
+        }
+        run(stopWatch, "bufferedStreamBufferOperation", CommonMistakesApplication::bufferedStreamBufferOperation);
+        run(stopWatch, "largerBufferOperation", CommonMistakesApplication::largerBufferOperation);
+        run(stopWatch, "fileChannelOperation", CommonMistakesApplication::fileChannelOperation);
+        for (FileTransferService.Strategy strategy : FileTransferService.Strategy.values()) {
+            run(stopWatch, "FileTransferService " + strategy,
+                    () -> fileTransferService.copy(Paths.get("src.txt"), Paths.get("dest.txt"), strategy));
+        }
+        if (Files.size(Paths.get("dest.txt")) != size)
+            throw new IllegalStateException("dest.txt size mismatch");
+        for (StopWatch.TaskInfo taskInfo : stopWatch.getTaskInfo()) {
+            log.info("{} {}: {} ms, {} MB/s", stopWatch.getId(), taskInfo.getTaskName(), taskInfo.getTimeMillis(),
+                    size * 1000 / 1024 / 1024 / Math.max(1, taskInfo.getTimeMillis()));
+        }
+    }
+
+    private static void run(StopWatch stopWatch, String name, IoOperation operation) throws IOException {
+        stopWatch.start(name);
+        operation.run();
         stopWatch.stop();
-        log.info(stopWatch.prettyPrint());
     }
 
-    private static void init() throws IOException {
+    //生成size字节的src.txt，在IO线程池里同时复制count份，统计总吞吐量
+    private static void concurrentCopy(FileTransferService fileTransferService, int count, long size) throws IOException {
+        initBySize(size);
+        long begin = System.nanoTime();
+        List<CompletableFuture<FileTransferService.TransferResult>> futures = IntStream.range(0, count)
+                .mapToObj(i -> fileTransferService.copyAsync(Paths.get("src.txt"), Paths.get("dest" + i + ".txt"), FileTransferService.Strategy.AUTO))
+                .collect(Collectors.toList());
+        long bytes = futures.stream().map(CompletableFuture::join).mapToLong(FileTransferService.TransferResult::getBytes).sum();
+        long nanos = System.nanoTime() - begin;
+        log.info("concurrent copy {} files of {} MB, {} MB/s", count, DataSize.ofBytes(size).toMegabytes(), (long) (bytes * 1_000_000_000.0 / nanos / 1024 / 1024));
+        for (int i = 0; i < count; i++) {
+            Files.deleteIfExists(Paths.get("dest" + i + ".txt"));
+        }
+    }
+
+    //用1MB的UUID行重复写出size字节的src.txt
+    static void initBySize(long size) throws IOException {
+        StringBuilder block = new StringBuilder();
+        while (block.length() < 1024 * 1024) {
+            block.append(UUID.randomUUID().toString()).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(block.toString().getBytes(UTF_8));
+        try (FileChannel out = FileChannel.open(Paths.get("src.txt"), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - written));
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        }
+    }
+
+    static void init(int lineCount) throws IOException {
 
         Files.write(Paths.get("src.txt"),
-                IntStream.rangeClosed(1, 1000000).mapToObj(i -> UUID.randomUUID().toString()).collect(Collectors.toList())
+                IntStream.rangeClosed(1, lineCount).mapToObj(i -> UUID.randomUUID().toString()).collect(Collectors.toList())
                 , UTF_8, CREATE, TRUNCATE_EXISTING);
     }
 
-    private static void perByteOperation() throws IOException {
+    static void perByteOperation() throws IOException {
         Files.deleteIfExists(Paths.get("dest.txt"));
 
         try (FileInputStream fileInputStream = new FileInputStream("src.txt");
@@ -62,7 +126,7 @@ public class CommonMistakesApplication {
         }
     }
 
-    private static void bufferOperationWith100Buffer() throws IOException {
+    static void bufferOperationWith100Buffer() throws IOException {
         Files.deleteIfExists(Paths.get("dest.txt"));
 
         try (FileInputStream fileInputStream = new FileInputStream("src.txt");
@@ -75,7 +139,7 @@ public class CommonMistakesApplication {
         }
     }
 
-    private static void largerBufferOperation() throws IOException {
+    static void largerBufferOperation() throws IOException {
         Files.deleteIfExists(Paths.get("dest.txt"));
 
         try (FileInputStream fileInputStream = new FileInputStream("src.txt");
@@ -88,7 +152,7 @@ public class CommonMistakesApplication {
         }
     }
 
-    private static void bufferedStreamBufferOperation() throws IOException {
+    static void bufferedStreamBufferOperation() throws IOException {
         Files.deleteIfExists(Paths.get("dest.txt"));
 
         try (BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream("src.txt"));
@@ -101,7 +165,7 @@ public class CommonMistakesApplication {
         }
     }
 
-    private static void bufferedStreamByteOperation() throws IOException {
+    static void bufferedStreamByteOperation() throws IOException {
         Files.deleteIfExists(Paths.get("dest.txt"));
 
         try (BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream("src.txt"));
@@ -114,12 +178,29 @@ public class CommonMistakesApplication {
     }
 
 
-    private static void fileChannelOperation() throws IOException {
+    static void fileChannelOperation() throws IOException {
         Files.deleteIfExists(Paths.get("dest.txt"));
 
-        FileChannel in = FileChannel.open(Paths.get("src.txt"), StandardOpenOption.READ);
-        FileChannel out = FileChannel.open(Paths.get("dest.txt"), CREATE, WRITE);
-        in.transferTo(0, in.size(), out);
+        try (FileChannel in = FileChannel.open(Paths.get("src.txt"), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get("dest.txt"), CREATE, WRITE)) {
+            //transferTo一次最多传输2GB左右，需要按返回值循环；返回0没有进展时剩下的部分改用缓冲区复制，避免空转
+            long position = 0;
+            while (position < in.size()) {
+                long transferred = in.transferTo(position, in.size() - position, out);
+                if (transferred <= 0) {
+                    in.position(position);
+                    ByteBuffer buffer = ByteBuffer.allocate(8192);
+                    while (in.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining())
+                            out.write(buffer);
+                        buffer.clear();
+                    }
+                    break;
+                }
+                position += transferred;
+            }
+        }
     }
 }
 
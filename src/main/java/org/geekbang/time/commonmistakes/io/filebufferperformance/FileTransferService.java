@@ -0,0 +1,169 @@
+package org.geekbang.time.commonmistakes.io.filebufferperformance;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * 文件复制服务，修正fileChannelOperation只调用一次transferTo的问题，并把几种复制方式封装成策略：
+ *
+ * 1、TRANSFER：FileChannel.transferTo，Linux上走sendfile，数据不经过用户态；
+ * MMAP：按块把源文件映射成MappedByteBuffer再写入目标文件；
+ * DIRECT_BUFFER：每个线程复用一个直接内存缓冲区循环read/write；
+ * AUTO：按文件大小选择，小文件用DIRECT_BUFFER，其它用TRANSFER，阈值可以调整；
+ * 2、transferTo一次最多传输2GB左右，write也可能只写一部分，所有策略都按返回的字节数循环到全部复制完成，
+ * transferTo返回0没有进展时剩下的部分改用DIRECT_BUFFER复制；
+ * 3、copyAsync在有界的IO线程池里执行，队列满时由调用线程自己复制，避免无限堆积；
+ * 4、每次复制返回耗时和bytes/sec，各策略累计复制的字节数以file.transfer.bytes{strategy}发布。
+ */
+@Slf4j
+public class FileTransferService {
+
+    public enum Strategy {
+        AUTO, TRANSFER, MMAP, DIRECT_BUFFER
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class TransferResult {
+        private Strategy strategy;
+        private long bytes;
+        private long nanos;
+
+        public long getBytesPerSecond() {
+            return nanos == 0 ? 0 : (long) (bytes * 1_000_000_000.0 / nanos);
+        }
+    }
+
+    private static final int MMAP_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
+
+    private final ThreadPoolExecutor ioThreadPool;
+    private final Map<Strategy, LongAdder> transferredBytes = new EnumMap<>(Strategy.class);
+    //AUTO策略下小于这个大小的文件用DIRECT_BUFFER
+    private long directBufferThreshold = 1024 * 1024;
+
+    public FileTransferService(String name, int ioThreads) {
+        this.ioThreadPool = ThreadPoolRegistry.newThreadPool(name + "-io-%d", ioThreads, ioThreads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ioThreads * 10),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        for (Strategy strategy : Strategy.values()) {
+            if (strategy == Strategy.AUTO)
+                continue;
+            LongAdder bytes = new LongAdder();
+            transferredBytes.put(strategy, bytes);
+            FunctionCounter.builder("file.transfer.bytes", bytes, LongAdder::sum)
+                    .tag("name", name).tag("strategy", strategy.name()).register(Metrics.globalRegistry);
+        }
+    }
+
+    public void setDirectBufferThreshold(long directBufferThreshold) {
+        this.directBufferThreshold = directBufferThreshold;
+    }
+
+    /**
+     * 在调用线程复制文件，目标文件存在时会被覆盖
+     */
+    public TransferResult copy(Path source, Path target, Strategy strategy) throws IOException {
+        long begin = System.nanoTime();
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(target, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            long size = in.size();
+            Strategy actual = strategy == Strategy.AUTO ? choose(size) : strategy;
+            switch (actual) {
+                case TRANSFER:
+                    transfer(in, out, size);
+                    break;
+                case MMAP:
+                    mmap(in, out, size);
+                    break;
+                default:
+                    directBuffer(in, out);
+            }
+            transferredBytes.get(actual).add(size);
+            return new TransferResult(actual, size, System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 在IO线程池里复制文件，线程池忙不过来时在调用线程复制
+     */
+    public CompletableFuture<TransferResult> copyAsync(Path source, Path target, Strategy strategy) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return copy(source, target, strategy);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, ioThreadPool);
+    }
+
+    public void shutdown() {
+        ioThreadPool.shutdown();
+    }
+
+    private Strategy choose(long size) {
+        return size < directBufferThreshold ? Strategy.DIRECT_BUFFER : Strategy.TRANSFER;
+    }
+
+    private static void transfer(FileChannel in, FileChannel out, long size) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long transferred = in.transferTo(position, size - position, out);
+            if (transferred <= 0) {
+                //源文件被截断时已经复制完了；否则是transferTo没有进展（比如目标是非阻塞通道），
+                //剩下的部分改用缓冲区复制，而不是一直空转
+                if (in.size() > position) {
+                    in.position(position);
+                    directBuffer(in, out);
+                }
+                return;
+            }
+            position += transferred;
+        }
+    }
+
+    private static void mmap(FileChannel in, FileChannel out, long size) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long chunkSize = Math.min(MMAP_CHUNK_SIZE, size - position);
+            //映射在GC时才会释放，按64MB分块避免一次占用太多虚拟地址空间
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, chunkSize);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            position += chunkSize;
+        }
+    }
+
+    private static void directBuffer(FileChannel in, FileChannel out) throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFER.get();
+        buffer.clear();
+        while (in.read(buffer) != -1 || buffer.position() > 0) {
+            buffer.flip();
+            out.write(buffer);
+            //没写完的数据留到下一轮
+            buffer.compact();
+        }
+    }
+}
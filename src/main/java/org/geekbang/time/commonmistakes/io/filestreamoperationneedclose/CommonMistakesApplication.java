@@ -3,8 +3,10 @@ package org.geekbang.time.commonmistakes.io.filestreamoperationneedclose;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.StopWatch;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
@@ -24,6 +26,9 @@ public class CommonMistakesApplication {
         init();
         //readLargeFileRight();
         //readLargeFileWrong();
+        //readLargeFileParallel();
+        //generateLargeFile(10L * 1024 * 1024 * 1024);
+        //compareLineReaders();
         wrong();
     }
 
@@ -37,6 +42,67 @@ public class CommonMistakesApplication {
         log.info("lines {}", atomicLong.get());
     }
 
+    private static void readLargeFileParallel() throws IOException {
+        LongAdder longAdder = new LongAdder();
+        long lines = new ParallelLineReader(Paths.get("large.txt"), UTF_8).forEachLine(line -> longAdder.increment());
+        log.info("lines {} counted {}", lines, longAdder.longValue());
+    }
+
+    //对比Files.lines单线程读取、linesTest的收集到List和ParallelLineReader无序/有序读取的吞吐量
+    private static void compareLineReaders() throws IOException {
+        Path path = Paths.get("large.txt");
+        long bytes = Files.size(path);
+        StopWatch stopWatch = new StopWatch();
+
+        stopWatch.start("Files.lines");
+        LongAdder chars = new LongAdder();
+        long totalLines;
+        try (Stream<String> stream = Files.lines(path)) {
+            totalLines = stream.peek(line -> chars.add(line.length())).count();
+        }
+        stopWatch.stop();
+        logThroughput(stopWatch, totalLines, bytes);
+
+        stopWatch.start("Files.lines collect 200000");
+        long lines;
+        try (Stream<String> stream = Files.lines(path)) {
+            lines = stream.limit(200000).collect(Collectors.toList()).size();
+        }
+        stopWatch.stop();
+        logThroughput(stopWatch, lines, bytes * lines / Math.max(1, totalLines));
+
+        stopWatch.start("ParallelLineReader unordered");
+        lines = new ParallelLineReader(path, UTF_8).forEachLine(line -> chars.add(line.length()));
+        stopWatch.stop();
+        logThroughput(stopWatch, lines, bytes);
+
+        stopWatch.start("ParallelLineReader ordered");
+        lines = new ParallelLineReader(path, UTF_8).ordered(true).forEachLine(line -> chars.add(line.length()));
+        stopWatch.stop();
+        logThroughput(stopWatch, lines, bytes);
+        log.info(stopWatch.prettyPrint());
+    }
+
+    private static void logThroughput(StopWatch stopWatch, long lines, long bytes) {
+        double seconds = stopWatch.getLastTaskTimeMillis() / 1000.0;
+        log.info("{}: {} lines, {} lines/sec, {} MB/s", stopWatch.getLastTaskName(), lines,
+                (long) (lines / seconds), (long) (bytes / 1024 / 1024 / seconds));
+    }
+
+    //按init里的内容生成至少bytes字节的large.txt
+    private static void generateLargeFile(long bytes) throws IOException {
+        String payload = IntStream.rangeClosed(1, 1000)
+                .mapToObj(__ -> "a")
+                .collect(Collectors.joining("")) + UUID.randomUUID().toString();
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get("large.txt"), UTF_8, CREATE, TRUNCATE_EXISTING)) {
+            for (long written = 0; written < bytes; written += payload.length() + 1) {
+                writer.write(payload);
+                writer.newLine();
+            }
+        }
+        log.info("large.txt size {}", Files.size(Paths.get("large.txt")));
+    }
+
     private static void linesTest() throws IOException {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start("read 200000 lines");
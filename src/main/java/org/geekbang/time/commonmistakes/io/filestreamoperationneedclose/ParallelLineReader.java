@@ -0,0 +1,281 @@
+package org.geekbang.time.commonmistakes.io.filestreamoperationneedclose;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * 并行按行读取大文件：
+ *
+ * 1、按chunkSize把文件切成若干字节区间，每个区间的边界向后对齐到下一个换行符，保证一行不会被切到两个区间；
+ * 2、每个区间在ForkJoinPool里并行处理，通过FileChannel的定位读按64KB的块读到堆上再切行解码，
+ * 所有任务共用一个FileChannel，不需要加锁，也不用像MappedByteBuffer那样等GC解除映射；
+ * 3、ordered=false时各个线程直接调用consumer，consumer需要线程安全；
+ * ordered=true时区间并行解码，但由调用线程按文件顺序把行交给consumer，解码好的行要在内存里等前面的区间处理完，
+ * 所以有序模式默认按4MB切分区间，同时在途的区间不超过并行度的两倍、字节数不超过maxInFlightBytes（默认64MB），
+ * 解码成String之后大约占用这个字节数的两到三倍；
+ * 4、FileChannel用try-with-resources关闭，任何一个区间处理失败都会取消剩余任务并抛出异常。
+ *
+ * 按字节找换行符，所以只支持换行符是单字节'\n'的字符集（UTF-8、GBK、ISO-8859-1等），行尾的'\r'会被去掉。
+ */
+public class ParallelLineReader {
+
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_ORDERED_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final Path path;
+    private final Charset charset;
+    //0表示按模式取默认值
+    private int chunkSize = 0;
+    private long maxInFlightBytes = 64 * 1024 * 1024;
+    private boolean ordered = false;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public ParallelLineReader(Path path, Charset charset) {
+        if ("\n".getBytes(charset).length != 1)
+            throw new IllegalArgumentException("Charset " + charset + " is not supported");
+        this.path = path;
+        this.charset = charset;
+    }
+
+    public ParallelLineReader chunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * 有序模式下已经提交但还没交给consumer的区间的总字节数上限，至少会有一个区间在途
+     */
+    public ParallelLineReader maxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes <= 0)
+            throw new IllegalArgumentException("maxInFlightBytes must be positive");
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    public ParallelLineReader ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    public ParallelLineReader pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * 把每一行交给consumer处理，返回总行数
+     */
+    public long forEachLine(Consumer<String> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] boundaries = split(channel, chunkSize > 0 ? chunkSize : ordered ? DEFAULT_ORDERED_CHUNK_SIZE : DEFAULT_CHUNK_SIZE);
+            return ordered ? readOrdered(channel, boundaries, consumer) : readUnordered(channel, boundaries, consumer);
+        }
+    }
+
+    private long readUnordered(FileChannel channel, long[] boundaries, Consumer<String> consumer) throws IOException {
+        List<ForkJoinTask<Long>> tasks = new ArrayList<>(boundaries.length - 1);
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            long start = boundaries[i];
+            long end = boundaries[i + 1];
+            tasks.add(pool.submit(() -> readChunk(channel, start, end, consumer)));
+        }
+        long lines = 0;
+        try {
+            for (ForkJoinTask<Long> task : tasks) {
+                lines += join(task);
+            }
+        } finally {
+            tasks.forEach(task -> task.cancel(false));
+        }
+        return lines;
+    }
+
+    private long readOrdered(FileChannel channel, long[] boundaries, Consumer<String> consumer) throws IOException {
+        int window = Math.max(2, pool.getParallelism() * 2);
+        Deque<ForkJoinTask<List<String>>> inFlight = new ArrayDeque<>();
+        long inFlightBytes = 0;
+        long lines = 0;
+        int next = 0;
+        try {
+            while (next < boundaries.length - 1 || !inFlight.isEmpty()) {
+                while (next < boundaries.length - 1 && inFlight.size() < window
+                        && (inFlight.isEmpty() || inFlightBytes + boundaries[next + 1] - boundaries[next] <= maxInFlightBytes)) {
+                    long start = boundaries[next];
+                    long end = boundaries[next + 1];
+                    inFlightBytes += end - start;
+                    inFlight.addLast(pool.submit(() -> {
+                        List<String> chunkLines = new ArrayList<>();
+                        readChunk(channel, start, end, chunkLines::add);
+                        return chunkLines;
+                    }));
+                    next++;
+                }
+                int first = next - inFlight.size();
+                List<String> chunkLines = join(inFlight.removeFirst());
+                chunkLines.forEach(consumer);
+                lines += chunkLines.size();
+                inFlightBytes -= boundaries[first + 1] - boundaries[first];
+            }
+        } finally {
+            inFlight.forEach(task -> task.cancel(false));
+        }
+        return lines;
+    }
+
+    /**
+     * 返回各个区间的起始位置，最后一个元素是文件大小
+     */
+    private static long[] split(FileChannel channel, int chunkSize) throws IOException {
+        long size = channel.size();
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        long position = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position + chunkSize < size) {
+            position = nextLineStart(channel, position + chunkSize, buffer);
+            if (position >= size)
+                break;
+            boundaries.add(position);
+        }
+        boundaries.add(size);
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * 从position开始找第一个换行符，返回换行符后一个字节的位置，找不到就返回文件大小
+     */
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                return channel.size();
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+    }
+
+    private long readChunk(FileChannel channel, long start, long end, Consumer<String> consumer) throws IOException {
+        LineSplitter splitter = new LineSplitter(consumer);
+        //用FileChannel的定位读把区间按块读到堆上的数组再扫描，多个线程共用一个FileChannel也不需要加锁
+        byte[] block = new byte[64 * 1024];
+        ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+        long position = start;
+        while (position < end) {
+            blockBuffer.clear();
+            blockBuffer.limit((int) Math.min(block.length, end - position));
+            int blockLength = channel.read(blockBuffer, position);
+            if (blockLength <= 0)
+                break;
+            position += blockLength;
+            splitter.accept(block, blockLength);
+        }
+        return splitter.finish();
+    }
+
+    /**
+     * 把一个区间的字节按块切成行并解码，跨块的行累积在pending里。
+     * Java 8的new String(bytes, charset)每次都会创建新的CharsetDecoder，这里每个区间复用一个Decoder和CharBuffer，
+     * 非法字节和String构造方法一样替换成替代字符
+     */
+    private class LineSplitter {
+        private final Consumer<String> consumer;
+        private final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(256);
+        private byte[] pending = new byte[256];
+        private int pendingLength;
+        private long lines;
+
+        LineSplitter(Consumer<String> consumer) {
+            this.consumer = consumer;
+        }
+
+        void accept(byte[] block, int length) {
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (block[i] != '\n')
+                    continue;
+                if (pendingLength == 0) {
+                    emit(block, lineStart, i - lineStart);
+                } else {
+                    appendPending(block, lineStart, i - lineStart);
+                    emit(pending, 0, pendingLength);
+                    pendingLength = 0;
+                }
+                lineStart = i + 1;
+            }
+            appendPending(block, lineStart, length - lineStart);
+        }
+
+        /**
+         * 处理没有换行符结尾的最后一行，返回总行数
+         */
+        long finish() {
+            if (pendingLength > 0) {
+                emit(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+            return lines;
+        }
+
+        private void appendPending(byte[] source, int offset, int length) {
+            if (pendingLength + length > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+            System.arraycopy(source, offset, pending, pendingLength, length);
+            pendingLength += length;
+        }
+
+        private void emit(byte[] bytes, int offset, int length) {
+            if (length > 0 && bytes[offset + length - 1] == '\r')
+                length--;
+            int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+            if (chars.capacity() < maxChars)
+                chars = CharBuffer.allocate(Math.max(maxChars, chars.capacity() * 2));
+            chars.clear();
+            decoder.reset();
+            decoder.decode(ByteBuffer.wrap(bytes, offset, length), chars, true);
+            decoder.flush(chars);
+            consumer.accept(new String(chars.array(), 0, chars.position()));
+            lines++;
+        }
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading lines", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            if (ex.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            throw new IOException("Failed to read lines", ex.getCause());
+        }
+    }
+}
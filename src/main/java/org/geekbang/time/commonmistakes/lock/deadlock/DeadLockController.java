@@ -3,9 +3,12 @@ package org.geekbang.time.commonmistakes.lock.deadlock;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.ArrayList;
@@ -108,6 +111,26 @@ public class DeadLockController {
         return success;
     }
 
+    /**
+     * 使用InventoryReservationEngine按SKU顺序CAS扣减库存，不需要加锁也就不存在死锁和长时间等待，
+     * 可以通过skuCount/orderCount放大SKU数量和订单数量来观察成功率、重试次数和p99耗时
+     */
+    @GetMapping("engine")
+    public InventoryReservationEngine.Stats engine(@RequestParam(value = "skuCount", defaultValue = "10") int skuCount,
+                                                   @RequestParam(value = "orderCount", defaultValue = "100") int orderCount) {
+        InventoryReservationEngine engine = new InventoryReservationEngine(skuCount, 1000, new SimpleMeterRegistry());
+        long begin = System.currentTimeMillis();
+        IntStream.rangeClosed(1, orderCount).parallel().forEach(i -> {
+            int[] skus = IntStream.rangeClosed(1, 3).map(__ -> ThreadLocalRandom.current().nextInt(skuCount)).toArray();
+            int[] quantities = new int[]{1, 1, 1};
+            engine.reserve(skus, quantities);
+        });
+        InventoryReservationEngine.Stats stats = engine.stats();
+        log.info("took:{}ms stats:{}", System.currentTimeMillis() - begin, stats);
+        Assert.isTrue(stats.getTotalRemaining() == (long) skuCount * 1000 - stats.getSuccess() * 3, "totalRemaining error");
+        return stats;
+    }
+
     @Data
     @RequiredArgsConstructor
     static class Item {
@@ -0,0 +1,182 @@
+package org.geekbang.time.commonmistakes.lock.deadlock;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 不使用锁的多商品库存扣减：
+ *
+ * 1、库存按SKU下标保存在AtomicIntegerArray中，每个SKU的扣减是一次CAS，只有剩余库存足够时才会成功，所以库存永远不会为负数；
+ * 2、购物车先按SKU排序并合并相同SKU，按固定顺序逐个CAS扣减，任何一个SKU库存不足就把已经扣减的加回去，整个过程不会阻塞等待；
+ * 3、库存不足时如果这个SKU还有剩余（可能是被其他正在回滚的订单暂时占用），短暂退避后整单重试，重试次数有上限；
+ * 4、CAS冲突次数、整单重试次数、成功失败数和耗时分位数都会记录下来。
+ */
+public class InventoryReservationEngine {
+
+    private final AtomicIntegerArray remaining;
+    private final int maxAttempts;
+    private final long backoffNanos;
+
+    private final LongAdder success = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder casRetries = new LongAdder();
+    private final LongAdder orderRetries = new LongAdder();
+    private final Timer latency;
+
+    public InventoryReservationEngine(int skuCount, int initialStock, MeterRegistry meterRegistry) {
+        this(skuCount, initialStock, 3, TimeUnit.MICROSECONDS.toNanos(50), meterRegistry);
+    }
+
+    public InventoryReservationEngine(int skuCount, int initialStock, int maxAttempts, long backoffNanos, MeterRegistry meterRegistry) {
+        if (skuCount <= 0 || initialStock < 0 || maxAttempts <= 0)
+            throw new IllegalArgumentException("invalid inventory configuration");
+        int[] stock = new int[skuCount];
+        Arrays.fill(stock, initialStock);
+        this.remaining = new AtomicIntegerArray(stock);
+        this.maxAttempts = maxAttempts;
+        this.backoffNanos = backoffNanos;
+        this.latency = Timer.builder("inventory.reserve")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 扣减购物车中所有SKU的库存，要么全部成功，要么一个都不扣
+     *
+     * @param skus       SKU下标，可以重复
+     * @param quantities 和skus一一对应的数量
+     */
+    public boolean reserve(int[] skus, int[] quantities) {
+        if (skus.length != quantities.length)
+            throw new IllegalArgumentException("skus and quantities length mismatch");
+        long begin = System.nanoTime();
+        try {
+            int[][] lines = normalize(skus, quantities);
+            for (int attempt = 1; ; attempt++) {
+                int failedSku = tryReserve(lines[0], lines[1]);
+                if (failedSku < 0) {
+                    success.increment();
+                    return true;
+                }
+                if (attempt >= maxAttempts || remaining.get(failedSku) == 0) {
+                    failed.increment();
+                    return false;
+                }
+                orderRetries.increment();
+                LockSupport.parkNanos(backoffNanos * attempt);
+            }
+        } finally {
+            latency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public int remaining(int sku) {
+        return remaining.get(sku);
+    }
+
+    public long totalRemaining() {
+        long total = 0;
+        for (int i = 0; i < remaining.length(); i++) {
+            total += remaining.get(i);
+        }
+        return total;
+    }
+
+    public int skuCount() {
+        return remaining.length();
+    }
+
+    public Stats stats() {
+        Stats stats = new Stats();
+        stats.setSuccess(success.sum());
+        stats.setFailed(failed.sum());
+        long total = stats.getSuccess() + stats.getFailed();
+        stats.setSuccessRate(total == 0 ? 0 : (double) stats.getSuccess() / total);
+        stats.setCasRetries(casRetries.sum());
+        stats.setOrderRetries(orderRetries.sum());
+        for (ValueAtPercentile percentile : latency.takeSnapshot().percentileValues()) {
+            if (percentile.percentile() == 0.5)
+                stats.setP50Millis(percentile.value(TimeUnit.MILLISECONDS));
+            else if (percentile.percentile() == 0.99)
+                stats.setP99Millis(percentile.value(TimeUnit.MILLISECONDS));
+        }
+        stats.setTotalRemaining(totalRemaining());
+        return stats;
+    }
+
+    /**
+     * 按SKU升序扣减，返回-1表示成功，否则返回库存不足的SKU（此时已扣减的部分已经回滚）
+     */
+    private int tryReserve(int[] skus, int[] quantities) {
+        for (int i = 0; i < skus.length; i++) {
+            if (!decrement(skus[i], quantities[i])) {
+                for (int j = i - 1; j >= 0; j--) {
+                    remaining.addAndGet(skus[j], quantities[j]);
+                }
+                return skus[i];
+            }
+        }
+        return -1;
+    }
+
+    private boolean decrement(int sku, int quantity) {
+        while (true) {
+            int current = remaining.get(sku);
+            if (current < quantity)
+                return false;
+            if (remaining.compareAndSet(sku, current, current - quantity))
+                return true;
+            casRetries.increment();
+        }
+    }
+
+    /**
+     * 排序并合并相同SKU，返回{skus, quantities}
+     */
+    private int[][] normalize(int[] skus, int[] quantities) {
+        long[] packed = new long[skus.length];
+        for (int i = 0; i < skus.length; i++) {
+            if (skus[i] < 0 || skus[i] >= remaining.length())
+                throw new IllegalArgumentException("unknown sku " + skus[i]);
+            if (quantities[i] <= 0)
+                throw new IllegalArgumentException("quantity must be positive");
+            packed[i] = ((long) skus[i] << 32) | quantities[i];
+        }
+        Arrays.sort(packed);
+        int[] mergedSkus = new int[packed.length];
+        int[] mergedQuantities = new int[packed.length];
+        int size = 0;
+        for (long line : packed) {
+            int sku = (int) (line >>> 32);
+            int quantity = (int) line;
+            if (size > 0 && mergedSkus[size - 1] == sku) {
+                mergedQuantities[size - 1] += quantity;
+            } else {
+                mergedSkus[size] = sku;
+                mergedQuantities[size] = quantity;
+                size++;
+            }
+        }
+        return new int[][]{Arrays.copyOf(mergedSkus, size), Arrays.copyOf(mergedQuantities, size)};
+    }
+
+    @Data
+    public static class Stats {
+        private long success;
+        private long failed;
+        private double successRate;
+        private long casRetries;
+        private long orderRetries;
+        private double p50Millis;
+        private double p99Millis;
+        private long totalRemaining;
+    }
+}
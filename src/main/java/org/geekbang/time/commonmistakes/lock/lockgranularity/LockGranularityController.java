@@ -44,8 +44,12 @@ public class LockGranularityController {
      */
     @GetMapping("wrong")
     public int wrong() {
+        return wrong(1000);
+    }
+
+    int wrong(int count) {
         long begin = System.currentTimeMillis();
-        IntStream.rangeClosed(1, 1000).parallel().forEach(i -> {
+        IntStream.rangeClosed(1, count).parallel().forEach(i -> {
             synchronized (this) {
                 slow();
                 data.add(i);
@@ -61,8 +65,12 @@ public class LockGranularityController {
      */
     @GetMapping("right")
     public int right() {
+        return right(1000);
+    }
+
+    int right(int count) {
         long begin = System.currentTimeMillis();
-        IntStream.rangeClosed(1, 1000).parallel().forEach(i -> {
+        IntStream.rangeClosed(1, count).parallel().forEach(i -> {
             slow();
             synchronized (data) {
                 data.add(i);
@@ -8,6 +8,9 @@ public class CommonMistakesApplication {
 
     public static void main(String[] args) {
         System.setProperty("logging.config", "classpath:org/geekbang/time/commonmistakes/logging/async/asyncwrong.xml");
+        //System.setProperty("logging.config", "classpath:org/geekbang/time/commonmistakes/logging/async/ringbuffer.xml");
+        //System.setProperty("logging.config", "classpath:org/geekbang/time/commonmistakes/logging/async/performance_ringbuffer.xml");
+        //System.setProperty("logging.config", "classpath:org/geekbang/time/commonmistakes/logging/async/performance_mmap.xml");
         SpringApplication.run(CommonMistakesApplication.class, args);
     }
 }
@@ -1,6 +1,14 @@
 package org.geekbang.time.commonmistakes.logging.async;
 
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.LazyLogger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -8,7 +16,9 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.lang.management.ManagementFactory;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -17,6 +27,8 @@ import java.util.stream.IntStream;
 @RestController
 public class LoggingController {
 
+    private static final LazyLogger loopLogger = LazyLogger.getLogger(LoggingController.class).atMostPerSecond(100);
+
     @GetMapping("log")
     public void log() {
         log.debug("debug");
@@ -28,8 +40,23 @@ public class LoggingController {
     @GetMapping("manylog")
     public void manylog(@RequestParam(name = "count", defaultValue = "1000") int count) {
         long begin = System.currentTimeMillis();
-        IntStream.rangeClosed(1, count).forEach(i -> log.info("log-{}", i));
+        Timer timer = newLatencyTimer();
+        IntStream.rangeClosed(1, count).forEach(i -> timer.record(() -> log.info("log-{}", i)));
         System.out.println("took " + (System.currentTimeMillis() - begin) + " ms");
+        printLatency(timer, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 和manylog一样的循环，但每秒最多输出100条，其余的只计数
+     */
+    @GetMapping("manylogsampled")
+    public void manylogSampled(@RequestParam(name = "count", defaultValue = "1000") int count) {
+        long begin = System.currentTimeMillis();
+        long suppressedBefore = loopLogger.getSuppressed();
+        Timer timer = newLatencyTimer();
+        IntStream.rangeClosed(1, count).forEach(i -> timer.record(() -> loopLogger.info("log-{}", i)));
+        System.out.println("took " + (System.currentTimeMillis() - begin) + " ms, suppressed " + (loopLogger.getSuppressed() - suppressedBefore));
+        printLatency(timer, System.currentTimeMillis() - begin);
     }
 
     @GetMapping("performance")
@@ -38,8 +65,52 @@ public class LoggingController {
         String payload = IntStream.rangeClosed(1, 1000000)
                 .mapToObj(__ -> "a")
                 .collect(Collectors.joining("")) + UUID.randomUUID().toString();
-        IntStream.rangeClosed(1, count).forEach(i -> log.info("{} {}", i, payload));
+        Timer timer = newLatencyTimer();
+        long logBegin = System.currentTimeMillis();
+        long cpuBegin = processCpuTime();
+        IntStream.rangeClosed(1, count).forEach(i -> timer.record(() -> log.info("{} {}", i, payload)));
+        long logTook = System.currentTimeMillis() - logBegin;
         Marker timeMarker = MarkerFactory.getMarker("time");
         log.info(timeMarker, "took {} ms", System.currentTimeMillis() - begin);
+        //对比performance_sync、performance_async、performance_ringbuffer和performance_mmap的写入速度和CPU消耗
+        System.out.println(String.format("write: %.1f MB/s, process cpu: %d ms",
+                (double) count * payload.length() / 1024 / 1024 * 1000 / Math.max(1, logTook),
+                TimeUnit.NANOSECONDS.toMillis(processCpuTime() - cpuBegin)));
+        printLatency(timer, System.currentTimeMillis() - begin);
+    }
+
+    private long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystemMXBean instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) operatingSystemMXBean).getProcessCpuTime();
+        return 0;
+    }
+
+    private Timer newLatencyTimer() {
+        return Timer.builder("log.call").publishPercentiles(0.5, 0.99).register(new SimpleMeterRegistry());
+    }
+
+    /**
+     * 输出吞吐量、单次打日志调用耗时的分位数，以及RingBufferAsyncAppender的丢弃、等待和溢出次数
+     */
+    private void printLatency(Timer timer, long tookMs) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("throughput: %d/s, mean: %.3fms, max: %.3fms",
+                snapshot.count() * 1000 / Math.max(1, tookMs),
+                snapshot.mean(TimeUnit.MILLISECONDS), snapshot.max(TimeUnit.MILLISECONDS)));
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            sb.append(String.format(", p%d: %.3fms", Math.round(percentile.percentile() * 100), percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        Logger root = ((LoggerContext) LoggerFactory.getILoggerFactory()).getLogger(Logger.ROOT_LOGGER_NAME);
+        root.iteratorForAppenders().forEachRemaining(appender -> {
+            if (appender instanceof RingBufferAsyncAppender) {
+                RingBufferAsyncAppender ringBufferAsyncAppender = (RingBufferAsyncAppender) appender;
+                sb.append(String.format(", %s dropped: %d, blocked: %d, spilled: %d", appender.getName(),
+                        ringBufferAsyncAppender.getDroppedCount(), ringBufferAsyncAppender.getBlockedCount(),
+                        ringBufferAsyncAppender.getSpilledCount()));
+            }
+        });
+        System.out.println(sb);
     }
 }
@@ -0,0 +1,247 @@
+package org.geekbang.time.commonmistakes.logging.async;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过内存映射写文件的Appender，用来替换FileAppender：
+ *
+ * 1、日志编码后直接拷贝到映射区域（regionSize，默认32MB），写满后映射文件的下一段，写日志不再有write系统调用，
+ * 由操作系统在后台把脏页写回磁盘；
+ * 2、文件超过maxFileSize或者距离上次滚动超过rolloverPeriod时，把当前文件截断到实际长度后重命名为
+ * file.yyyyMMdd-HHmmss.序号，再打开新文件；
+ * 3、配置了syncPeriod时后台线程定期force到磁盘，不配置时依赖操作系统回写，进程崩溃不会丢日志，但机器掉电可能丢。
+ *
+ * 注意：文件在写入过程中长度是按regionSize增长的，末尾是还没写入的0，正常stop或者滚动时才会截断；
+ * 进程崩溃没来得及截断时，下次启动打开文件会先去掉末尾的0再接着写。
+ */
+public class MappedFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    @Getter
+    @Setter
+    private String file;
+    @Getter
+    @Setter
+    private Encoder<ILoggingEvent> encoder;
+    @Getter
+    @Setter
+    private FileSize regionSize = new FileSize(32 * FileSize.MB_COEFFICIENT);
+    @Getter
+    @Setter
+    private FileSize maxFileSize = new FileSize(1024 * FileSize.MB_COEFFICIENT);
+    //为空表示不按时间滚动
+    @Getter
+    @Setter
+    private Duration rolloverPeriod;
+    //为空表示不主动刷盘
+    @Getter
+    @Setter
+    private Duration syncPeriod;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    //当前映射区域在文件中的起始位置
+    private long regionStart;
+    private long fileOpenedAt;
+    private int rolloverIndex;
+    private ScheduledExecutorService syncScheduler;
+
+    @Override
+    public void start() {
+        if (encoder == null || file == null) {
+            addError("encoder and file must be set for appender " + name);
+            return;
+        }
+        try {
+            openFile();
+        } catch (IOException ex) {
+            addError("Failed to open " + file, ex);
+            return;
+        }
+        if (syncPeriod != null && syncPeriod.getMilliseconds() > 0) {
+            syncScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "MappedFileAppender-Sync-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncScheduler.scheduleAtFixedRate(this::sync, syncPeriod.getMilliseconds(), syncPeriod.getMilliseconds(), TimeUnit.MILLISECONDS);
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted())
+            return;
+        super.stop();
+        if (syncScheduler != null)
+            syncScheduler.shutdownNow();
+        lock.lock();
+        try {
+            closeFile();
+        } catch (IOException ex) {
+            addError("Failed to close " + file, ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (!isStarted())
+            return;
+        byte[] bytes = encoder.encode(event);
+        lock.lock();
+        try {
+            if (shouldRollover(bytes.length))
+                rollover();
+            if (region.remaining() < bytes.length)
+                remap(bytes.length);
+            region.put(bytes);
+        } catch (IOException ex) {
+            addError("Failed to write to " + file, ex);
+            //滚动时新文件没能打开，已经没有可写的映射区域，直接停止，而不是之后的每条日志都NPE
+            if (region == null) {
+                addError("No writable region for " + file + ", stopping appender " + name);
+                stop();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean shouldRollover(int length) {
+        long written = regionStart + region.position();
+        if (written > 0 && written + length > maxFileSize.getSize())
+            return true;
+        return rolloverPeriod != null && System.currentTimeMillis() - fileOpenedAt >= rolloverPeriod.getMilliseconds();
+    }
+
+    private void sync() {
+        lock.lock();
+        try {
+            if (region != null)
+                region.force();
+        } catch (Exception ex) {
+            addError("Failed to sync " + file, ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void openFile() throws IOException {
+        File logFile = new File(file);
+        File parent = logFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Failed to create parent directories for " + file);
+        randomAccessFile = new RandomAccessFile(logFile, "rw");
+        channel = randomAccessFile.getChannel();
+        try {
+            //追加写：从原来的日志内容之后开始映射，上次崩溃留下的末尾的0先截断掉
+            regionStart = dataLength(channel);
+            channel.truncate(regionStart);
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize.getSize());
+        } catch (IOException ex) {
+            randomAccessFile.close();
+            channel = null;
+            region = null;
+            throw ex;
+        }
+        fileOpenedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 从文件末尾往前找最后一个不是0的字节，日志内容本身不会以0结尾
+     */
+    private static long dataLength(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) != 0)
+                    return start + i + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * 映射下一段，单条日志比regionSize还大时映射一段刚好放得下的区域
+     */
+    private void remap(int length) throws IOException {
+        long position = regionStart + region.position();
+        unmap(region);
+        regionStart = position;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(regionSize.getSize(), length));
+    }
+
+    private void rollover() throws IOException {
+        closeFile();
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File target;
+        do {
+            target = new File(file + "." + suffix + "." + rolloverIndex++);
+        } while (target.exists());
+        if (!new File(file).renameTo(target))
+            addWarn("Failed to rename " + file + " to " + target);
+        openFile();
+    }
+
+    /**
+     * 截断掉映射区域中没有写入的部分
+     */
+    private void closeFile() throws IOException {
+        if (channel == null)
+            return;
+        long length = regionStart + region.position();
+        region.force();
+        unmap(region);
+        region = null;
+        channel.truncate(length);
+        channel.close();
+        randomAccessFile.close();
+        channel = null;
+    }
+
+    /**
+     * MappedByteBuffer要等GC才会解除映射，这里通过Java 8的Cleaner立即释放，失败时只能等GC
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception ex) {
+            addInfo("Unable to unmap buffer, will be released by GC: " + ex);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package org.geekbang.time.commonmistakes.logging.async;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 基于预分配环形缓冲区的异步Appender，用来替换AsyncAppender：
+ *
+ * 1、槽位在启动时一次性分配并循环使用，多个业务线程通过CAS抢占写入位置，没有锁也不会为每条日志创建队列节点；
+ * 2、后台线程每次最多取出batchSize条日志交给下游Appender，下游是OutputStreamAppender时关闭immediateFlush，
+ * 每批日志只flush一次；
+ * 3、默认不获取调用方信息（includeCallerData=false），%line等需要调用栈的转换符会输出?；
+ * 4、缓冲区满时的策略：BLOCK一直等待，DROP_DEBUG只丢弃DEBUG和TRACE日志、其它级别等待，
+ * SPILL把日志同步写入spillFile，不丢也不等后台线程。丢弃、等待和写入溢出文件的次数通过Micrometer暴露，
+ * 这些指标在start时注册、stop时删除，重新加载配置后新的Appender实例不会拿到绑定在旧实例上的指标。
+ *
+ * 注意：ILoggingEvent本身由Logback在每次打日志时创建，这个Appender只能避免自己引入的额外对象。
+ */
+public class RingBufferAsyncAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+
+    public enum OverflowPolicy {
+        BLOCK, DROP_DEBUG, SPILL
+    }
+
+    //缓冲区大小，会向上取整到2的幂
+    @Getter
+    @Setter
+    private int bufferSize = 1024;
+    @Getter
+    @Setter
+    private int batchSize = 256;
+    @Getter
+    @Setter
+    private boolean includeCallerData = false;
+    @Getter
+    @Setter
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    @Getter
+    @Setter
+    private String spillFile = "spill.log";
+    @Getter
+    @Setter
+    private String spillPattern = "[%d{yyyy-MM-dd HH:mm:ss.SSS}] [%thread] [%-5level] [%logger{40}] - %msg%n";
+    //停止时最多等待多久把缓冲区里的日志写完
+    @Getter
+    @Setter
+    private int maxFlushTime = 1000;
+
+    private final AppenderAttachableImpl<ILoggingEvent> aai = new AppenderAttachableImpl<>();
+    private Slot[] slots;
+    private int mask;
+    //下一个写入位置，由多个生产者CAS推进
+    private final AtomicLong tail = new AtomicLong();
+    //下一个读取位置，只有后台线程读写
+    private long head;
+    //UnsynchronizedAppenderBase的started不是volatile的，后台线程用自己的标记判断是否停止
+    private volatile boolean running;
+    private volatile boolean workerSleeping;
+    private Thread worker;
+    private FileAppender<ILoggingEvent> spillAppender;
+
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder blockedCount = new LongAdder();
+    private final LongAdder spilledCount = new LongAdder();
+    private final List<Meter> meters = new ArrayList<>();
+
+    @Override
+    public void start() {
+        if (isStarted())
+            return;
+        if (!aai.iteratorForAppenders().hasNext()) {
+            addError("No attached appenders found for " + name);
+            return;
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(i);
+        }
+        mask = capacity - 1;
+        tail.set(0);
+        head = 0;
+
+        Iterator<Appender<ILoggingEvent>> appenders = aai.iteratorForAppenders();
+        while (appenders.hasNext()) {
+            Appender<ILoggingEvent> appender = appenders.next();
+            if (appender instanceof OutputStreamAppender)
+                ((OutputStreamAppender<ILoggingEvent>) appender).setImmediateFlush(false);
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL)
+            startSpillAppender();
+
+        meters.add(FunctionCounter.builder("log.async.dropped", droppedCount, LongAdder::sum).tag("appender", name).register(Metrics.globalRegistry));
+        meters.add(FunctionCounter.builder("log.async.blocked", blockedCount, LongAdder::sum).tag("appender", name).register(Metrics.globalRegistry));
+        meters.add(FunctionCounter.builder("log.async.spilled", spilledCount, LongAdder::sum).tag("appender", name).register(Metrics.globalRegistry));
+
+        super.start();
+        running = true;
+        worker = new Thread(this::work, "RingBufferAsyncAppender-Worker-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted())
+            return;
+        super.stop();
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(maxFlushTime);
+            if (worker.isAlive())
+                addWarn("Max flush time exceeded, " + (tail.get() - head) + " events may be lost");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (spillAppender != null)
+            spillAppender.stop();
+        meters.forEach(Metrics.globalRegistry::remove);
+        meters.clear();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        //格式化消息、拷贝MDC，后台线程处理时不再依赖业务线程的状态
+        event.prepareForDeferredProcessing();
+        if (includeCallerData)
+            event.getCallerData();
+
+        if (tryPublish(event))
+            return;
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            spilledCount.increment();
+            spillAppender.doAppend(event);
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.DROP_DEBUG && event.getLevel().toInt() <= Level.DEBUG_INT) {
+            droppedCount.increment();
+            return;
+        }
+        //BLOCK，以及DROP_DEBUG下的其它级别，等待后台线程腾出位置
+        blockedCount.increment();
+        while (!tryPublish(event)) {
+            if (!running) {
+                droppedCount.increment();
+                return;
+            }
+            LockSupport.unpark(worker);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.sum();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    /**
+     * 和Vyukov的有界队列一样，每个槽位的sequence等于写入位置时可写，等于写入位置+1时可读
+     */
+    private boolean tryPublish(ILoggingEvent event) {
+        while (true) {
+            long position = tail.get();
+            Slot slot = slots[(int) (position & mask)];
+            long diff = slot.sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.event = event;
+                    slot.sequence = position + 1;
+                    if (workerSleeping)
+                        LockSupport.unpark(worker);
+                    return true;
+                }
+            } else if (diff < 0) {
+                //后台线程还没消费到这个槽位，缓冲区满了
+                return false;
+            }
+            //其它线程抢先写入了这个位置，重试
+        }
+    }
+
+    private void work() {
+        while (running) {
+            if (drain() == 0) {
+                workerSleeping = true;
+                //设置标记之后再检查一次，避免错过生产者的unpark
+                if (slots[(int) (head & mask)].sequence != head + 1)
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                workerSleeping = false;
+            }
+        }
+        //停止后把剩下的日志写完
+        while (drain() > 0) {
+        }
+    }
+
+    private int drain() {
+        int count = 0;
+        while (count < batchSize) {
+            Slot slot = slots[(int) (head & mask)];
+            if (slot.sequence != head + 1)
+                break;
+            ILoggingEvent event = slot.event;
+            slot.event = null;
+            slot.sequence = head + slots.length;
+            head++;
+            count++;
+            try {
+                aai.appendLoopOnAppenders(event);
+            } catch (Exception ex) {
+                addError("Failed to append event", ex);
+            }
+        }
+        if (count > 0)
+            flush();
+        return count;
+    }
+
+    private void flush() {
+        Iterator<Appender<ILoggingEvent>> appenders = aai.iteratorForAppenders();
+        while (appenders.hasNext()) {
+            Appender<ILoggingEvent> appender = appenders.next();
+            if (appender instanceof OutputStreamAppender && appender.isStarted()) {
+                try {
+                    ((OutputStreamAppender<ILoggingEvent>) appender).getOutputStream().flush();
+                } catch (IOException ex) {
+                    addError("Failed to flush " + appender.getName(), ex);
+                }
+            }
+        }
+    }
+
+    private void startSpillAppender() {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern(spillPattern);
+        encoder.start();
+        spillAppender = new FileAppender<>();
+        spillAppender.setContext(context);
+        spillAppender.setName(name + "-spill");
+        spillAppender.setFile(spillFile);
+        spillAppender.setEncoder(encoder);
+        spillAppender.start();
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> newAppender) {
+        aai.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return aai.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return aai.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return aai.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        aai.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return aai.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return aai.detachAppender(name);
+    }
+
+    private static class Slot {
+        private volatile long sequence;
+        private ILoggingEvent event;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class CommonMistakesApplication {
 
     public static void main(String[] args) {
         System.setProperty("logging.config", "classpath:org/geekbang/time/commonmistakes/logging/duplicate/multiplelevelsfilter.xml");
+        //System.setProperty("logging.config", "classpath:org/geekbang/time/commonmistakes/logging/duplicate/levelrouting.xml");
         SpringApplication.run(CommonMistakesApplication.class, args);
     }
 }
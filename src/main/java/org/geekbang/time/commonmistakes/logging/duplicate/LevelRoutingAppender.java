@@ -0,0 +1,320 @@
+package org.geekbang.time.commonmistakes.logging.duplicate;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Marker;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按规则把日志路由到不同Appender，取代在每个Appender上各挂一个MultipleLevelsFilter：
+ *
+ * <appender name="ROUTER" class="...LevelRoutingAppender">
+ *     <appender-ref ref="INFO_FILE"/>
+ *     <appender-ref ref="ERROR_FILE"/>
+ *     <rule><name>info</name><levels>INFO|WARN</levels><loggers>org.geekbang</loggers><sink>INFO_FILE</sink></rule>
+ *     <rule><name>error</name><levels>ERROR</levels><sink>ERROR_FILE</sink></rule>
+ * </appender>
+ *
+ * start时把所有规则编译好：每个级别对应一个规则位掩码，日志名前缀编译成字符Trie，节点上记录以它结尾的规则位掩码，
+ * 每条日志只需要按级别取掩码、沿Trie走一遍日志名、检查Marker，就能得到所有命中的规则，整个过程不分配对象。
+ * 每条规则的命中次数以log.route.hits{appender,rule}发布，没有命中任何规则的日志交给defaultSink（如果配置了）。
+ * 最多支持64条规则。stop时注销这些指标，重新加载配置后新的Appender会注册自己的计数器。
+ */
+public class LevelRoutingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+
+    @Getter
+    @Setter
+    public static class Rule {
+        private String name;
+        //比如INFO|WARN，为空表示所有级别
+        private String levels;
+        //逗号分隔的日志名前缀，按包名边界匹配，为空表示所有日志
+        private String loggers;
+        //为空表示不要求Marker
+        private String marker;
+        //目标Appender的名字，必须通过appender-ref引用
+        private String sink;
+    }
+
+    @Getter
+    @Setter
+    private String defaultSink;
+    //true时只路由到第一条命中的规则
+    @Getter
+    @Setter
+    private boolean firstMatchOnly = false;
+
+    private final AppenderAttachableImpl<ILoggingEvent> aai = new AppenderAttachableImpl<>();
+    private final List<Rule> rules = new ArrayList<>();
+
+    //下面是start时编译出来的结构
+    private final long[] rulesByLevel = new long[5];
+    private TrieNode loggerTrie;
+    //没有配置loggers的规则
+    private long anyLoggerRules;
+    private long markerRules;
+    private String[] ruleMarkers;
+    private Appender<ILoggingEvent>[] ruleSinks;
+    //指向同一个Appender的规则共用第一条规则的位，用来去重
+    private long[] ruleSinkBits;
+    private Appender<ILoggingEvent> defaultAppender;
+    private LongAdder[] ruleHits;
+    private final LongAdder unmatched = new LongAdder();
+    private final List<Meter> meters = new ArrayList<>();
+
+    public void addRule(Rule rule) {
+        rules.add(rule);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void start() {
+        if (rules.isEmpty() || rules.size() > 64) {
+            addError("1 to 64 rules are required for appender " + name);
+            return;
+        }
+        Arrays.fill(rulesByLevel, 0);
+        loggerTrie = new TrieNode();
+        anyLoggerRules = 0;
+        markerRules = 0;
+        ruleMarkers = new String[rules.size()];
+        ruleSinks = (Appender<ILoggingEvent>[]) new Appender<?>[rules.size()];
+        ruleSinkBits = new long[rules.size()];
+        ruleHits = new LongAdder[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            long bit = 1L << i;
+            String ruleName = StringUtils.isEmpty(rule.getName()) ? "rule" + i : rule.getName();
+            ruleSinks[i] = aai.getAppender(rule.getSink());
+            if (ruleSinks[i] == null) {
+                failStart("Rule " + ruleName + " refers to unknown appender " + rule.getSink());
+                return;
+            }
+            ruleSinkBits[i] = bit;
+            for (int j = 0; j < i; j++) {
+                if (ruleSinks[j] == ruleSinks[i]) {
+                    ruleSinkBits[i] = ruleSinkBits[j];
+                    break;
+                }
+            }
+            if (StringUtils.isEmpty(rule.getLevels())) {
+                for (int level = 0; level < rulesByLevel.length; level++)
+                    rulesByLevel[level] |= bit;
+            } else {
+                for (String levelName : rule.getLevels().split("\\|")) {
+                    //Level.valueOf会把拼错的级别当成DEBUG，ALL和OFF也不是日志事件的级别，都直接报错
+                    Level level = Level.toLevel(levelName.trim(), null);
+                    if (level == null || level == Level.ALL || level == Level.OFF) {
+                        failStart("Rule " + ruleName + " has invalid level " + levelName + ", expected TRACE, DEBUG, INFO, WARN or ERROR");
+                        return;
+                    }
+                    rulesByLevel[levelIndex(level)] |= bit;
+                }
+            }
+            if (StringUtils.isEmpty(rule.getLoggers())) {
+                anyLoggerRules |= bit;
+            } else {
+                for (String prefix : rule.getLoggers().split(","))
+                    loggerTrie.insert(prefix.trim(), bit);
+            }
+            if (!StringUtils.isEmpty(rule.getMarker())) {
+                markerRules |= bit;
+                ruleMarkers[i] = rule.getMarker();
+            }
+            ruleHits[i] = new LongAdder();
+            meters.add(FunctionCounter.builder("log.route.hits", ruleHits[i], LongAdder::sum)
+                    .tag("appender", name).tag("rule", ruleName).register(Metrics.globalRegistry));
+        }
+        if (!StringUtils.isEmpty(defaultSink)) {
+            defaultAppender = aai.getAppender(defaultSink);
+            if (defaultAppender == null) {
+                failStart("Unknown default sink " + defaultSink);
+                return;
+            }
+        }
+        meters.add(FunctionCounter.builder("log.route.unmatched", unmatched, LongAdder::sum)
+                .tag("appender", name).register(Metrics.globalRegistry));
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        removeMeters();
+    }
+
+    /**
+     * 启动失败时前面规则已经注册的计数器也要注销，否则会一直绑定在这个没有启动的实例上
+     */
+    private void failStart(String message) {
+        addError(message);
+        removeMeters();
+    }
+
+    private void removeMeters() {
+        meters.forEach(Metrics.globalRegistry::remove);
+        meters.clear();
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        long matched = rulesByLevel[levelIndex(event.getLevel())];
+        if (matched != 0)
+            matched &= anyLoggerRules | loggerTrie.match(event.getLoggerName());
+        if ((matched & markerRules) != 0)
+            matched &= ~markerRules | matchMarkers(event.getMarker(), matched & markerRules);
+        if (matched == 0) {
+            unmatched.increment();
+            if (defaultAppender != null)
+                defaultAppender.doAppend(event);
+            return;
+        }
+        //同一个Appender被多条规则命中时只写一次
+        long written = 0;
+        while (matched != 0) {
+            int rule = Long.numberOfTrailingZeros(matched);
+            matched &= matched - 1;
+            ruleHits[rule].increment();
+            long sinkBit = ruleSinkBits[rule];
+            if ((written & sinkBit) == 0) {
+                written |= sinkBit;
+                ruleSinks[rule].doAppend(event);
+            }
+            if (firstMatchOnly)
+                return;
+        }
+    }
+
+    public long getHits(String ruleName) {
+        for (int i = 0; i < rules.size(); i++) {
+            if (ruleName.equals(rules.get(i).getName()))
+                return ruleHits[i] == null ? 0 : ruleHits[i].sum();
+        }
+        return 0;
+    }
+
+    public long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    private long matchMarkers(Marker marker, long candidates) {
+        if (marker == null)
+            return 0;
+        long result = 0;
+        while (candidates != 0) {
+            int rule = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            if (marker.contains(ruleMarkers[rule]))
+                result |= 1L << rule;
+        }
+        return result;
+    }
+
+    private static int levelIndex(Level level) {
+        return Integer.numberOfTrailingZeros(MultipleLevelsFilter.levelBit(level));
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> newAppender) {
+        aai.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return aai.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return aai.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return aai.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        aai.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return aai.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return aai.detachAppender(name);
+    }
+
+    /**
+     * 日志名前缀的字符Trie，子节点用两个并行数组保存，匹配时不装箱
+     */
+    private static class TrieNode {
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        //以这个节点结尾的前缀对应的规则
+        private long rules;
+
+        void insert(String prefix, long rule) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.childOrCreate(prefix.charAt(i));
+            }
+            node.rules |= rule;
+        }
+
+        /**
+         * 返回所有能匹配这个日志名的前缀对应的规则，前缀必须在包名边界（.或者结尾）上结束
+         */
+        long match(String loggerName) {
+            long result = rules;
+            TrieNode node = this;
+            for (int i = 0; i < loggerName.length(); i++) {
+                node = node.child(loggerName.charAt(i));
+                if (node == null)
+                    break;
+                if (node.rules != 0 && (i + 1 == loggerName.length() || loggerName.charAt(i + 1) == '.'))
+                    result |= node.rules;
+            }
+            return result;
+        }
+
+        private TrieNode child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        private TrieNode childOrCreate(char c) {
+            TrieNode child = child(c);
+            if (child == null) {
+                child = new TrieNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
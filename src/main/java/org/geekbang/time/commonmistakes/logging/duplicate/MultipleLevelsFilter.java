@@ -8,31 +8,62 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.util.StringUtils;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
 public class MultipleLevelsFilter extends Filter<ILoggingEvent> {
 
     @Getter
     @Setter
     private String levels;
-    private List<Integer> levelList;
+    //start时把levels解析成位掩码，decide时不需要遍历List和装箱
+    private int levelMask;
 
     @Override
-    public FilterReply decide(ILoggingEvent event) {
-
-        if (levelList == null && !StringUtils.isEmpty(levels)) {
-            levelList = Arrays.asList(levels.split("\\|")).stream()
-                    .map(item -> Level.valueOf(item))
-                    .map(level -> level.toInt())
-                    .collect(Collectors.toList());
+    public void start() {
+        if (StringUtils.isEmpty(levels)) {
+            addError("levels must be set for filter " + getName());
+            return;
         }
+        int mask = 0;
+        for (String levelName : levels.split("\\|")) {
+            //Level.valueOf会把拼错的级别当成DEBUG，ALL和OFF也不是日志事件的级别，都直接报错
+            Level level = Level.toLevel(levelName.trim(), null);
+            if (level == null || level == Level.ALL || level == Level.OFF) {
+                addError("Filter " + getName() + " has invalid level " + levelName + ", expected TRACE, DEBUG, INFO, WARN or ERROR");
+                return;
+            }
+            mask |= levelBit(level);
+        }
+        levelMask = mask;
+        super.start();
+    }
 
-        if (levelList.contains(event.getLevel().toInt()))
+    @Override
+    public FilterReply decide(ILoggingEvent event) {
+        //没有启动成功的过滤器不参与决策，否则掩码为0会拒绝所有日志
+        if (!isStarted())
+            return FilterReply.NEUTRAL;
+        if ((levelMask & levelBit(event.getLevel())) != 0)
             return FilterReply.ACCEPT;
         else
             return FilterReply.DENY;
     }
 
-}
\ No newline at end of file
+    /**
+     * TRACE、DEBUG、INFO、WARN、ERROR分别对应第0到4位
+     */
+    static int levelBit(Level level) {
+        switch (level.toInt()) {
+            case Level.TRACE_INT:
+                return 1;
+            case Level.DEBUG_INT:
+                return 1 << 1;
+            case Level.INFO_INT:
+                return 1 << 2;
+            case Level.WARN_INT:
+                return 1 << 3;
+            case Level.ERROR_INT:
+                return 1 << 4;
+            default:
+                return 0;
+        }
+    }
+}
@@ -1,18 +1,22 @@
 package org.geekbang.time.commonmistakes.logging.placeholder;
 
 import lombok.extern.log4j.Log4j2;
+import org.geekbang.time.commonmistakes.common.LazyLogger;
 import org.springframework.util.StopWatch;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 @Log4j2
 @RequestMapping("logging")
 @RestController
 public class LoggingController {
 
+    private static final LazyLogger lazyLogger = LazyLogger.getLogger(LoggingController.class);
+
     @GetMapping
     public void index() {
         StopWatch stopWatch = new StopWatch();
@@ -29,6 +33,13 @@ public class LoggingController {
         stopWatch.start("debug4");
         log.debug("debug4:{}", () -> slowString("debug4"));
         stopWatch.stop();
+        stopWatch.start("debug5");
+        lazyLogger.debug("debug5:{}", () -> slowString("debug5"));
+        stopWatch.stop();
+        stopWatch.start("debug6");
+        //int参数不装箱
+        IntStream.rangeClosed(1, 1000).forEach(i -> lazyLogger.debug("debug6:{}", i));
+        stopWatch.stop();
         log.info(stopWatch.prettyPrint());
 
     }
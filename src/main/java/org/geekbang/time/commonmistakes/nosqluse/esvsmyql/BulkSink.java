@@ -0,0 +1,159 @@
+package org.geekbang.time.commonmistakes.nosqluse.esvsmyql;
+
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 一个写入目标（MySQL或ES）：
+ *
+ * 1、生产者把数据放入有界队列，队列满时阻塞，写得慢的一方会把读取CSV的速度压下来，内存占用固定；
+ * 2、攒批线程从队列取数据，凑满batchSize条或者第一条数据等待超过flushIntervalMs就交给写入线程池批量写入；
+ * 写入线程池也是有界的，忙不过来时由攒批线程自己写；
+ * 3、记录已经交出去但还没写完的批次，checkpoint是所有写成功的批次里连续的最大id，
+ * 某一批写失败后checkpoint不再前进，从checkpoint恢复时会重写这一批以及之后的数据。
+ */
+@Slf4j
+class BulkSink {
+
+    //结束标记，不会被写入
+    private static final News END = new News();
+
+    private final String name;
+    private final BlockingQueue<News> queue;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Consumer<List<News>> writer;
+    private final LongAdder rows;
+    private final ThreadPoolExecutor writerThreadPool;
+    private final Thread batchThread;
+    //已经交给写入线程池还没写完的批次，第一条id -> 最后一条id
+    private final ConcurrentSkipListMap<Long, Long> inflight = new ConcurrentSkipListMap<>();
+    private volatile long dispatchedUpTo;
+    private volatile Throwable failure;
+
+    BulkSink(String name, int queueCapacity, int batchSize, long flushIntervalMs, int writers,
+             LongAdder rows, long startAfterId, Consumer<List<News>> writer) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.writer = writer;
+        this.rows = rows;
+        this.dispatchedUpTo = startAfterId;
+        this.writerThreadPool = ThreadPoolRegistry.newThreadPool("bulk-" + name + "-%d", writers, writers,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(writers),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.batchThread = new Thread(this::batchLoop, "bulk-" + name + "-batch");
+        this.batchThread.start();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getRows() {
+        return rows.sum();
+    }
+
+    /**
+     * 放入一条数据，队列满时阻塞；写入已经失败时抛出异常让生产者停下来
+     */
+    void put(News news) throws InterruptedException {
+        //写入失败后攒批线程不再取数据，不能一直阻塞在满的队列上
+        while (!queue.offer(news, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    /**
+     * 通知没有更多数据，等待剩下的数据都写完
+     */
+    void finish() throws InterruptedException {
+        put(END);
+        batchThread.join();
+        writerThreadPool.shutdown();
+        writerThreadPool.awaitTermination(1, TimeUnit.HOURS);
+        checkFailure();
+    }
+
+    /**
+     * 出错时停止攒批，不再写入新的批次
+     */
+    void abort() {
+        batchThread.interrupt();
+        writerThreadPool.shutdownNow();
+    }
+
+    /**
+     * 这个id以及之前的数据都已经写入成功
+     */
+    long checkpoint() {
+        long dispatched = dispatchedUpTo;
+        //isEmpty和firstKey之间最后一批可能刚好写完被移除，firstEntry一次取到或者返回null
+        Map.Entry<Long, Long> firstInflight = inflight.firstEntry();
+        return firstInflight == null ? dispatched : Math.min(dispatched, firstInflight.getKey() - 1);
+    }
+
+    private void checkFailure() {
+        if (failure != null)
+            throw new IllegalStateException("bulk write to " + name + " failed", failure);
+    }
+
+    private void batchLoop() {
+        List<News> batch = new ArrayList<>(batchSize);
+        long deadline = 0;
+        try {
+            while (failure == null) {
+                News news = batch.isEmpty() ? queue.take()
+                        : queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (news == END) {
+                    dispatch(batch);
+                    return;
+                }
+                if (news != null) {
+                    if (batch.isEmpty())
+                        deadline = System.nanoTime() + flushIntervalNanos;
+                    batch.add(news);
+                }
+                //凑满一批或者等待超时
+                if (batch.size() >= batchSize || (!batch.isEmpty() && System.nanoTime() - deadline >= 0)) {
+                    dispatch(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch(List<News> batch) {
+        if (batch.isEmpty())
+            return;
+        long firstId = batch.get(0).getId();
+        long lastId = batch.get(batch.size() - 1).getId();
+        inflight.put(firstId, lastId);
+        dispatchedUpTo = lastId;
+        writerThreadPool.execute(() -> {
+            try {
+                writer.accept(batch);
+                rows.add(batch.size());
+                inflight.remove(firstId);
+            } catch (Throwable ex) {
+                //失败的批次留在inflight里，checkpoint不会越过它
+                log.error("bulk write to {} failed for id {} ~ {}", name, firstId, lastId, ex);
+                failure = ex;
+            }
+        });
+    }
+}
@@ -6,17 +6,20 @@ import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import lombok.extern.slf4j.Slf4j;
 import org.geekbang.time.commonmistakes.common.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.FilterType;
 import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.elasticsearch.repository.config.EnableElasticsearchRepositories;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 
 import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
 import java.util.Arrays;
 import java.util.List;
@@ -38,6 +41,12 @@ public class CommonMistakesApplication {
     private NewsESRepository newsESRepository;
     @Autowired
     private NewsMySQLRepository newsMySQLRepository;
+    @Autowired
+    private NewsBulkLoader newsBulkLoader;
+    @Value("${esvsmysql.load.repeat:100}")
+    private int repeat;
+    @Value("${esvsmysql.load.resume:false}")
+    private boolean resume;
 
     public static void main(String[] args) {
         Utils.loadPropertySource(CommonMistakesApplication.class, "es.properties");
@@ -45,30 +54,37 @@ public class CommonMistakesApplication {
     }
 
     @PostConstruct
-    public void init() {
+    public void init() throws IOException, InterruptedException {
         //使用-Dspring.profiles.active=init启动程序进行初始化
         if (Arrays.stream(standardEnvironment.getActiveProfiles()).anyMatch(s -> s.equalsIgnoreCase("init"))) {
-            //csv中的原始数据只有4000条
-            List<News> news = loadData();
-            AtomicLong atomicLong = new AtomicLong();
-            news.forEach(item -> item.setTitle("%%" + item.getTitle()));
-            //我们模拟100倍的数据量，也就是40万条
-            IntStream.rangeClosed(1, 100).forEach(repeat -> {
-                news.forEach(item -> {
-                    //重新设置主键ID
-                    item.setId(atomicLong.incrementAndGet());
-                    //每次复制数据稍微改一下title字段，在前面加上一个数字，代表这是第几次复制
-                    item.setTitle(item.getTitle().replaceFirst("%%", String.valueOf(repeat)));
-                });
-                initMySQL(news, repeat == 1);
-                log.info("init MySQL finished for {}", repeat);
-                initES(news, repeat == 1);
-                log.info("init ES finished for {}", repeat);
-            });
-
+            //initSequentially();
+            //流式读取CSV，MySQL和ES并行批量写入，-Desvsmysql.load.repeat=2500可以导入1000万条，
+            //中途失败后加上-Desvsmysql.load.resume=true从checkpoint继续
+            newsBulkLoader.load(new ClassPathResource("news.csv"), repeat, resume);
         }
     }
 
+    //原来的做法：每复制一份数据，先整批写MySQL再整批写ES，两边串行
+    private void initSequentially() {
+        //csv中的原始数据只有4000条
+        List<News> news = loadData();
+        AtomicLong atomicLong = new AtomicLong();
+        news.forEach(item -> item.setTitle("%%" + item.getTitle()));
+        //我们模拟100倍的数据量，也就是40万条
+        IntStream.rangeClosed(1, 100).forEach(repeat -> {
+            news.forEach(item -> {
+                //重新设置主键ID
+                item.setId(atomicLong.incrementAndGet());
+                //每次复制数据稍微改一下title字段，在前面加上一个数字，代表这是第几次复制
+                item.setTitle(item.getTitle().replaceFirst("%%", String.valueOf(repeat)));
+            });
+            initMySQL(news, repeat == 1);
+            log.info("init MySQL finished for {}", repeat);
+            initES(news, repeat == 1);
+            log.info("init ES finished for {}", repeat);
+        });
+    }
+
     //从news.csv中解析得到原始数据
     private List<News> loadData() {
         //使用jackson-dataformat-csv实现csv到POJO的转换
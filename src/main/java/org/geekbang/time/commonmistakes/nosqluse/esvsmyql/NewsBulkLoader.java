@@ -0,0 +1,260 @@
+package org.geekbang.time.commonmistakes.nosqluse.esvsmyql;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.settings.Settings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.query.IndexQuery;
+import org.springframework.data.elasticsearch.core.query.IndexQueryBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * 把news.csv复制多份导入MySQL和ES，替代init里每复制一份就先saveAll到MySQL再saveAll到ES的做法：
+ *
+ * 1、逐行流式读取CSV，每一份重新读一遍文件，每一行都是新的News对象，内存里不保存整份数据；
+ * 2、每一行同时放入MySQL和ES两个BulkSink的有界队列，两边各自攒批、并行写入，慢的一方通过队列反压读取；
+ * MySQL用JdbcTemplate.batchUpdate，依赖连接串里的rewriteBatchedStatements=true合并成多值INSERT，
+ * 用ON DUPLICATE KEY UPDATE保证重复写入是幂等的；ES用bulk请求，导入期间关闭refresh，完成后恢复并刷新；
+ * 3、每5秒输出两边的rows/sec，并把两边checkpoint的较小值保存到文件（先写临时文件再原子替换）；
+ * 4、resume=true时从checkpoint之后继续导入，适合上千万条数据中途失败或者重启的情况；
+ * 否则清空表和索引从头开始。
+ */
+@Component
+@Slf4j
+public class NewsBulkLoader {
+
+    private static final String INSERT_SQL = "INSERT INTO `news` (id, category, cateid, title, content) VALUES (?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE category = VALUES(category), cateid = VALUES(cateid), title = VALUES(title), content = VALUES(content)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private ElasticsearchRestTemplate elasticsearchTemplate;
+
+    @Value("${esvsmysql.load.queueCapacity:10000}")
+    private int queueCapacity;
+    @Value("${esvsmysql.load.flushIntervalMs:1000}")
+    private long flushIntervalMs;
+    @Value("${esvsmysql.load.mysql.batchSize:1000}")
+    private int mysqlBatchSize;
+    @Value("${esvsmysql.load.mysql.writers:4}")
+    private int mysqlWriters;
+    @Value("${esvsmysql.load.es.batchSize:1000}")
+    private int esBatchSize;
+    @Value("${esvsmysql.load.es.writers:2}")
+    private int esWriters;
+    @Value("${esvsmysql.load.checkpoint:esvsmysql.checkpoint}")
+    private String checkpointFile;
+
+    private final LongAdder mysqlRows = new LongAdder();
+    private final LongAdder esRows = new LongAdder();
+
+    public NewsBulkLoader() {
+        FunctionCounter.builder("esvsmysql.load.rows", mysqlRows, LongAdder::sum).tag("sink", "mysql").register(Metrics.globalRegistry);
+        FunctionCounter.builder("esvsmysql.load.rows", esRows, LongAdder::sum).tag("sink", "es").register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 导入repeat份数据，第n份的title前面加上n，id从1开始连续递增；返回每个写入目标的行数和rows/sec
+     */
+    public Map<String, Object> load(Resource csv, int repeat, boolean resume) throws IOException, InterruptedException {
+        Path checkpointPath = Paths.get(checkpointFile);
+        long rowCount = countRows(csv);
+        long startAfterId = resume ? readCheckpoint(checkpointPath) : 0;
+        long total = rowCount * repeat;
+        if (startAfterId == 0)
+            clear(checkpointPath);
+        log.info("bulk load {} rows x {} = {} rows, starting after id {}", rowCount, repeat, total, startAfterId);
+        disableRefresh(true);
+        try {
+            return load(csv, rowCount, repeat, startAfterId, checkpointPath);
+        } finally {
+            //失败时也要恢复refresh，否则索引一直不可搜索
+            disableRefresh(false);
+        }
+    }
+
+    private Map<String, Object> load(Resource csv, long rowCount, int repeat, long startAfterId, Path checkpointPath)
+            throws IOException, InterruptedException {
+        long total = rowCount * repeat;
+        BulkSink mysql = new BulkSink("mysql", queueCapacity, mysqlBatchSize, flushIntervalMs, mysqlWriters,
+                mysqlRows, startAfterId, this::writeMySQL);
+        BulkSink es = new BulkSink("es", queueCapacity, esBatchSize, flushIntervalMs, esWriters,
+                esRows, startAfterId, this::writeES);
+        List<BulkSink> sinks = Arrays.asList(mysql, es);
+        Map<String, Long> rowsBefore = sinks.stream().collect(Collectors.toMap(BulkSink::getName, BulkSink::getRows));
+        long begin = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleWithFixedDelay(() -> {
+            report(sinks, rowsBefore, begin, total - startAfterId);
+            saveCheckpoint(checkpointPath, sinks);
+        }, 5, 5, TimeUnit.SECONDS);
+        try {
+            produce(csv, rowCount, repeat, startAfterId, sinks);
+            for (BulkSink sink : sinks) {
+                sink.finish();
+            }
+        } catch (Exception ex) {
+            //读取CSV的IOException也要停掉攒批线程，否则它们会一直阻塞在队列上
+            sinks.forEach(BulkSink::abort);
+            throw ex;
+        } finally {
+            reporter.shutdownNow();
+            saveCheckpoint(checkpointPath, sinks);
+        }
+        elasticsearchTemplate.refresh(News.class);
+        Map<String, Object> result = report(sinks, rowsBefore, begin, total - startAfterId);
+        log.info("bulk load finished: {}", result);
+        return result;
+    }
+
+    //从CSV里按顺序产生数据，跳过id不大于startAfterId的行
+    private void produce(Resource csv, long rowCount, int repeat, long startAfterId, List<BulkSink> sinks)
+            throws IOException, InterruptedException {
+        int startRepeat = (int) (startAfterId / rowCount) + 1;
+        for (int copy = startRepeat; copy <= repeat; copy++) {
+            long id = (copy - 1) * rowCount;
+            try (MappingIterator<News> rows = readCsv(csv)) {
+                while (rows.hasNext()) {
+                    News news = rows.next();
+                    if (++id <= startAfterId)
+                        continue;
+                    news.setId(id);
+                    //每一份数据的title前面加上一个数字，代表这是第几次复制
+                    news.setTitle(copy + news.getTitle());
+                    for (BulkSink sink : sinks) {
+                        sink.put(news);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeMySQL(List<News> batch) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, batch, batch.size(), (ps, news) -> {
+            ps.setLong(1, news.getId());
+            ps.setString(2, news.getCategory());
+            ps.setInt(3, news.getCateid());
+            ps.setString(4, news.getTitle());
+            ps.setString(5, news.getContent());
+        });
+    }
+
+    private void writeES(List<News> batch) {
+        List<IndexQuery> queries = batch.stream()
+                .map(news -> new IndexQueryBuilder().withId(String.valueOf(news.getId())).withObject(news).build())
+                .collect(Collectors.toList());
+        elasticsearchTemplate.bulkIndex(queries);
+    }
+
+    private void clear(Path checkpointPath) throws IOException {
+        Files.deleteIfExists(checkpointPath);
+        jdbcTemplate.execute("TRUNCATE TABLE `news`");
+        //删除重建索引比deleteAll逐条删除快得多
+        elasticsearchTemplate.deleteIndex(News.class);
+        elasticsearchTemplate.createIndex(News.class);
+        elasticsearchTemplate.putMapping(News.class);
+    }
+
+    //导入期间不需要搜索，关闭定期refresh减少段合并
+    private void disableRefresh(boolean disable) throws IOException {
+        UpdateSettingsRequest request = new UpdateSettingsRequest(elasticsearchTemplate.getPersistentEntityFor(News.class).getIndexName())
+                .settings(Settings.builder().put("index.refresh_interval", disable ? "-1" : "1s"));
+        elasticsearchTemplate.getClient().indices().putSettings(request, RequestOptions.DEFAULT);
+    }
+
+    private Map<String, Object> report(List<BulkSink> sinks, Map<String, Long> rowsBefore, long begin, long expected) {
+        double seconds = Math.max(1, System.nanoTime() - begin) / 1_000_000_000.0;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("seconds", Math.round(seconds * 10) / 10.0);
+        result.put("expected", expected);
+        for (BulkSink sink : sinks) {
+            long rows = sink.getRows() - rowsBefore.get(sink.getName());
+            result.put(sink.getName() + "Rows", rows);
+            result.put(sink.getName() + "RowsPerSecond", (long) (rows / seconds));
+        }
+        result.put("checkpoint", sinks.stream().mapToLong(BulkSink::checkpoint).min().orElse(0));
+        log.info("bulk load progress: {}", result);
+        return result;
+    }
+
+    private static MappingIterator<News> readCsv(Resource csv) throws IOException {
+        //使用jackson-dataformat-csv实现csv到POJO的转换
+        CsvMapper csvMapper = new CsvMapper();
+        CsvSchema schema = CsvSchema.emptySchema().withHeader();
+        ObjectReader objectReader = csvMapper.readerFor(News.class).with(schema);
+        Reader reader = new InputStreamReader(csv.getInputStream(), StandardCharsets.UTF_8);
+        return objectReader.readValues(reader);
+    }
+
+    private static long countRows(Resource csv) throws IOException {
+        long count = 0;
+        try (MappingIterator<News> rows = readCsv(csv)) {
+            while (rows.hasNext()) {
+                rows.next();
+                count++;
+            }
+        }
+        if (count == 0)
+            throw new IllegalArgumentException(csv + " has no rows");
+        return count;
+    }
+
+    private static long readCheckpoint(Path checkpointPath) throws IOException {
+        if (!Files.exists(checkpointPath))
+            return 0;
+        return Long.parseLong(new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8).trim());
+    }
+
+    private static void saveCheckpoint(Path checkpointPath, List<BulkSink> sinks) {
+        long checkpoint = sinks.stream().mapToLong(BulkSink::checkpoint).min().orElse(0);
+        Path temp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(String.valueOf(checkpoint).getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(temp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            //保存失败只是恢复时多重写一些数据
+            log.warn("save checkpoint {} to {} failed", checkpoint, checkpointPath, ex);
+        }
+    }
+}
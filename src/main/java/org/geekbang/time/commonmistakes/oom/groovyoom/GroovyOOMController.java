@@ -7,6 +7,8 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.LongStream;
 
@@ -21,6 +23,8 @@ public class GroovyOOMController {
     public static final String SCRIPT_METHOD = "add";
     public static final String SCRIPT_PERFECT = "def add(a,b){def c=a+b; return c;}";
     GroovyShell shell = new GroovyShell();
+    //最多缓存1000个编译后的脚本，分8段
+    GroovyScriptService scriptService = new GroovyScriptService("groovyoom", 1000, 8);
 
     @GetMapping("wrong")
     public Object wrong() {
@@ -47,6 +51,28 @@ public class GroovyOOMController {
         return rightGroovy(SCRIPT_PERFECT, SCRIPT_METHOD, 1, 1);
     }
 
+    //和wrong一样执行1万个不同的脚本，但缓存有上限，被淘汰的脚本类可以卸载，Metaspace不会一直增长
+    @GetMapping("cached")
+    public Map<String, Object> cached() {
+        LongStream.rangeClosed(1, 10000).forEach(i -> {
+            scriptService.run(String.format(SCRIPT_TEMPLATE, i, i), Collections.emptyMap());
+        });
+        System.gc();
+        Map<String, Object> stats = scriptService.stats();
+        log.info("groovy script cache stats: {}", stats);
+        return stats;
+    }
+
+    //和right一样反复调用同一个脚本的方法，但每次都是新的Script实例，并发调用也安全
+    @GetMapping("right2")
+    public Object right2() {
+        LongStream.rangeClosed(1, 100000).parallel().forEach(i -> {
+            scriptService.invokeMethod(SCRIPT_PERFECT, SCRIPT_METHOD, i, i);
+        });
+        log.info("groovy script cache stats: {}", scriptService.stats());
+        return scriptService.invokeMethod(SCRIPT_PERFECT, SCRIPT_METHOD, 1, 1);
+    }
+
     private Object wrongGroovy(String script) {
         return shell.evaluate(script);
     }
@@ -0,0 +1,170 @@
+package org.geekbang.time.commonmistakes.oom.groovyoom;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 编译后的Groovy脚本缓存，用来替换GroovyOOMController里无上限的SCRIPT_CACHE：
+ *
+ * 1、以脚本内容的SHA-256作为Key，缓存的是编译出来的Class而不是Script实例，
+ * 每次执行都创建新的Script和Binding，多个线程同时执行同一个脚本也不会互相覆盖变量；
+ * 2、按Key的hash分成多个段，每段是一个有大小上限的Guava Cache（按最近访问淘汰），
+ * 同一个脚本同时只会编译一次，其它线程等待编译结果；
+ * 3、每段有自己的GroovyClassLoader，并且不在ClassLoader里缓存编译出的Class，脚本被淘汰时再清掉MetaClass，
+ * 没有其它引用后Class和它的InnerLoader就可以被GC卸载，Metaspace不会一直增长；
+ * 4、命中率、编译耗时、Metaspace使用量和已卸载的类数量以groovy.script.*发布到Metrics.globalRegistry。
+ */
+public class GroovyScriptService {
+
+    private final String name;
+    private final Segment[] segments;
+    private final Timer compileTimer;
+    private final LongAdder evictions = new LongAdder();
+
+    public GroovyScriptService(String name, int maximumSize, int segmentCount) {
+        if (maximumSize < segmentCount || segmentCount <= 0)
+            throw new IllegalArgumentException("maximumSize must not be less than segmentCount");
+        this.name = name;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(maximumSize / segmentCount);
+        }
+        this.compileTimer = Timer.builder("groovy.script.compile").tag("name", name)
+                .publishPercentiles(0.5, 0.99).register(Metrics.globalRegistry);
+        Gauge.builder("groovy.script.cache.size", this, GroovyScriptService::size).tag("name", name).register(Metrics.globalRegistry);
+        Gauge.builder("groovy.script.cache.hit.ratio", this, s -> s.cacheStats().hitRate()).tag("name", name).register(Metrics.globalRegistry);
+        FunctionCounter.builder("groovy.script.cache.evictions", evictions, LongAdder::sum).tag("name", name).register(Metrics.globalRegistry);
+        Gauge.builder("groovy.script.metaspace.used", this, s -> metaspaceUsed()).tag("name", name)
+                .baseUnit("bytes").register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 执行脚本，variables放到这次执行专用的Binding里
+     */
+    public Object run(String script, Map<String, Object> variables) {
+        Binding binding = new Binding();
+        variables.forEach(binding::setVariable);
+        return InvokerHelper.createScript(compile(script), binding).run();
+    }
+
+    /**
+     * 调用脚本中定义的方法
+     */
+    public Object invokeMethod(String script, String method, Object... args) {
+        return InvokerHelper.createScript(compile(script), new Binding()).invokeMethod(method, args);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.cache.size();
+        }
+        return size;
+    }
+
+    public CacheStats cacheStats() {
+        CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+        for (Segment segment : segments) {
+            stats = stats.plus(segment.cache.stats());
+        }
+        return stats;
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats cacheStats = cacheStats();
+        ClassLoadingMXBean classLoadingMXBean = ManagementFactory.getClassLoadingMXBean();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size());
+        stats.put("hitRate", cacheStats.hitRate());
+        stats.put("compiled", cacheStats.loadCount());
+        stats.put("evictions", evictions.sum());
+        stats.put("compileAvgMs", cacheStats.averageLoadPenalty() / 1_000_000);
+        stats.put("metaspaceUsedMB", metaspaceUsed() / 1024 / 1024);
+        stats.put("loadedClasses", classLoadingMXBean.getLoadedClassCount());
+        stats.put("unloadedClasses", classLoadingMXBean.getUnloadedClassCount());
+        return stats;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends Script> compile(String script) {
+        String key = Hashing.sha256().hashString(script, StandardCharsets.UTF_8).toString();
+        Segment segment = segments[Math.floorMod(key.hashCode(), segments.length)];
+        try {
+            //Cache.get保证同一个Key同时只有一个线程执行编译
+            return segment.cache.get(key, () -> {
+                long begin = System.nanoTime();
+                try {
+                    return (Class<? extends Script>) segment.classLoader.parseClass(script, "Script_" + key.substring(0, 16) + ".groovy");
+                } finally {
+                    compileTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw new IllegalArgumentException("Failed to compile script in " + name, ex.getCause());
+        }
+    }
+
+    private static long metaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName()))
+                return pool.getUsage().getUsed();
+        }
+        return -1;
+    }
+
+    private class Segment {
+        private final ScriptClassLoader classLoader = new ScriptClassLoader();
+        private final Cache<String, Class<? extends Script>> cache;
+
+        Segment(int maximumSize) {
+            RemovalListener<String, Class<? extends Script>> listener = notification -> {
+                if (notification.wasEvicted()) {
+                    evictions.increment();
+                    //MetaClass注册表和ClassInfo都引用着这个类，不清掉的话类卸载不了
+                    InvokerHelper.removeClass(notification.getValue());
+                }
+            };
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumSize(maximumSize)
+                    .recordStats()
+                    .removalListener(listener)
+                    .build();
+        }
+    }
+
+    /**
+     * GroovyClassLoader默认会在classCache里强引用所有编译出来的类，这里不缓存，由外面的Guava Cache决定类的生命周期
+     */
+    private static class ScriptClassLoader extends GroovyClassLoader {
+        ScriptClassLoader() {
+            super(GroovyScriptService.class.getClassLoader());
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected void setClassCacheEntry(Class cls) {
+        }
+    }
+}
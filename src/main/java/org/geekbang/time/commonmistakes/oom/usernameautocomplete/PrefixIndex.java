@@ -0,0 +1,352 @@
+package org.geekbang.time.commonmistakes.oom.usernameautocomplete;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 用户名自动补全的前缀索引，替换UsernameAutoCompleteService里"每个前缀一个List"的做法：
+ *
+ * 1、用户名只保存一份，按名字分配int id，同名用户只增加计数，索引里只有id没有重复的字符串和DTO，
+ * 名字到id的映射就是Trie的终结节点，不再额外维护一个HashMap；
+ * 2、索引是压缩前缀树（Radix Trie），一条没有分叉的路径合并成一个节点，节点数和用户名数量同一个量级；
+ * 3、每个节点预先算好子树里排名最高的topN个id（按同名用户数倒序、名字正序），查询只需要沿前缀走到节点再取结果，
+ * 耗时只和前缀长度有关，和命中的用户数无关；
+ * 4、支持增量insert/delete，只需要沿路径自底向上重新计算topN，批量初始化用insertAll，最后统一计算一次。
+ *
+ * 读写通过ReadWriteLock隔离，适合读多写少的场景。前缀按原样匹配，区分大小写。
+ */
+public class PrefixIndex {
+
+    private static final char[] EMPTY_LABEL = new char[0];
+    private static final char[] EMPTY_KEYS = new char[0];
+    private static final int[] EMPTY_IDS = new int[0];
+    private static final Node[] EMPTY_CHILDREN = new Node[0];
+
+    private final int topN;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private String[] names = new String[1024];
+    private int[] counts = new int[1024];
+    //被删除的名字释放出来的id，分配时优先复用
+    private int[] freeIds = new int[16];
+    private int freeIdCount;
+    private int nextId;
+    private int size;
+    private int nodeCount = 1;
+    private final Node root = new Node(EMPTY_LABEL);
+
+    public PrefixIndex(int topN) {
+        if (topN <= 0)
+            throw new IllegalArgumentException("topN must be positive");
+        this.topN = topN;
+    }
+
+    /**
+     * 增加一个叫name的用户
+     */
+    public void insert(String name) {
+        lock.writeLock().lock();
+        try {
+            recomputeTop(insertInternal(name));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 批量增加用户，全部插入后再统一计算一次topN，用于初始化
+     */
+    public void insertAll(Iterable<String> names) {
+        lock.writeLock().lock();
+        try {
+            names.forEach(this::insertInternal);
+            recomputeAll(root);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除一个叫name的用户，同名用户都删除后名字才会从索引中移除
+     */
+    public boolean delete(String name) {
+        lock.writeLock().lock();
+        try {
+            List<Node> path = findPath(name);
+            if (path == null)
+                return false;
+            int id = path.get(path.size() - 1).id;
+            if (--counts[id] == 0) {
+                size--;
+                names[id] = null;
+                releaseId(id);
+                removeTerminal(path);
+            }
+            recomputeTop(path);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 返回以prefix开头、排名最高的最多limit个用户名，limit超过topN时按topN计算
+     */
+    public List<String> query(String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            int i = 0;
+            while (i < prefix.length()) {
+                Node child = node.child(prefix.charAt(i));
+                if (child == null)
+                    return new ArrayList<>();
+                int common = commonPrefix(child.label, prefix, i);
+                //前缀在节点中间结束也算命中这个节点
+                if (common < child.label.length && i + common < prefix.length())
+                    return new ArrayList<>();
+                i += common;
+                node = child;
+            }
+            int size = Math.min(limit, node.top.length);
+            List<String> result = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                result.add(names[node.top[j]]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int nodeCount() {
+        lock.readLock().lock();
+        try {
+            return nodeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 插入名字并返回从根到终结节点的路径，不计算topN
+     */
+    private List<Node> insertInternal(String name) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int i = 0;
+        while (i < name.length()) {
+            int index = node.childIndex(name.charAt(i));
+            if (index < 0) {
+                Node leaf = new Node(name.substring(i).toCharArray());
+                node.addChild(-index - 1, leaf);
+                nodeCount++;
+                node = leaf;
+                path.add(node);
+                break;
+            }
+            Node child = node.children[index];
+            int common = commonPrefix(child.label, name, i);
+            if (common < child.label.length) {
+                //名字在这个节点的中间分叉，把节点拆成两段
+                Node middle = new Node(Arrays.copyOf(child.label, common));
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                middle.children = new Node[]{child};
+                middle.keys = new char[]{child.label[0]};
+                middle.top = child.top;
+                node.children[index] = middle;
+                nodeCount++;
+                child = middle;
+            }
+            i += common;
+            node = child;
+            path.add(node);
+        }
+        if (node.id < 0) {
+            node.id = allocateId();
+            names[node.id] = name;
+            counts[node.id] = 0;
+            size++;
+        }
+        counts[node.id]++;
+        return path;
+    }
+
+    /**
+     * 返回从根到name终结节点的路径，name不在索引中时返回null
+     */
+    private List<Node> findPath(String name) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int i = 0;
+        while (i < name.length()) {
+            node = node.child(name.charAt(i));
+            if (node == null || commonPrefix(node.label, name, i) < node.label.length)
+                return null;
+            i += node.label.length;
+            path.add(node);
+        }
+        return node.id < 0 ? null : path;
+    }
+
+    /**
+     * 名字移除后清理终结节点：没有子节点就从父节点删除，只剩一个子节点就和子节点合并，保持路径压缩
+     */
+    private void removeTerminal(List<Node> path) {
+        Node terminal = path.get(path.size() - 1);
+        terminal.id = -1;
+        if (terminal == root)
+            return;
+        Node parent = path.get(path.size() - 2);
+        if (terminal.children.length == 0) {
+            parent.removeChild(terminal);
+            nodeCount--;
+            path.remove(path.size() - 1);
+            if (parent != root && parent.id < 0 && parent.children.length == 1)
+                mergeWithOnlyChild(parent);
+        } else if (terminal.children.length == 1) {
+            mergeWithOnlyChild(terminal);
+        }
+    }
+
+    private void mergeWithOnlyChild(Node node) {
+        Node child = node.children[0];
+        char[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+        node.label = label;
+        node.children = child.children;
+        node.keys = child.keys;
+        node.id = child.id;
+        node.top = child.top;
+        nodeCount--;
+    }
+
+    private void recomputeTop(List<Node> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            computeTop(path.get(i));
+        }
+    }
+
+    private void recomputeAll(Node node) {
+        for (Node child : node.children) {
+            recomputeAll(child);
+        }
+        computeTop(node);
+    }
+
+    /**
+     * 节点的topN = 自己的id和所有子节点topN合并后的前N个，结果按排名有序
+     */
+    private void computeTop(Node node) {
+        int[] top = new int[topN];
+        int size = 0;
+        if (node.id >= 0)
+            top[size++] = node.id;
+        for (Node child : node.children) {
+            for (int id : child.top) {
+                //子节点的topN是有序的，一旦放不进去后面的也不用看了
+                if (size == topN && !before(id, top[size - 1]))
+                    break;
+                int pos = size == topN ? size - 1 : size++;
+                while (pos > 0 && before(id, top[pos - 1])) {
+                    top[pos] = top[pos - 1];
+                    pos--;
+                }
+                top[pos] = id;
+            }
+        }
+        node.top = size == topN ? top : Arrays.copyOf(top, size);
+    }
+
+    private boolean before(int a, int b) {
+        if (counts[a] != counts[b])
+            return counts[a] > counts[b];
+        return names[a].compareTo(names[b]) < 0;
+    }
+
+    private int allocateId() {
+        if (freeIdCount > 0)
+            return freeIds[--freeIdCount];
+        if (nextId == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+        return nextId++;
+    }
+
+    private void releaseId(int id) {
+        if (freeIdCount == freeIds.length)
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        freeIds[freeIdCount++] = id;
+    }
+
+    private static int commonPrefix(char[] label, String key, int offset) {
+        int max = Math.min(label.length, key.length() - offset);
+        int i = 0;
+        while (i < max && label[i] == key.charAt(offset + i))
+            i++;
+        return i;
+    }
+
+    /**
+     * 子节点按label首字母排序保存在数组里，首字母单独存一份char数组，二分查找时不用访问子节点对象
+     */
+    private static class Node {
+        private char[] label;
+        private char[] keys = EMPTY_KEYS;
+        private Node[] children = EMPTY_CHILDREN;
+        //以这个节点结尾的名字id，-1表示没有
+        private int id = -1;
+        private int[] top = EMPTY_IDS;
+
+        Node(char[] label) {
+            this.label = label;
+        }
+
+        Node child(char c) {
+            int index = childIndex(c);
+            return index < 0 ? null : children[index];
+        }
+
+        int childIndex(char c) {
+            return Arrays.binarySearch(keys, c);
+        }
+
+        void addChild(int index, Node child) {
+            Node[] newChildren = new Node[children.length + 1];
+            char[] newKeys = new char[keys.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            newChildren[index] = child;
+            newKeys[index] = child.label[0];
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            children = newChildren;
+            keys = newKeys;
+        }
+
+        void removeChild(Node child) {
+            int index = childIndex(child.label[0]);
+            Node[] newChildren = new Node[children.length - 1];
+            char[] newKeys = new char[keys.length - 1];
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            children = newChildren;
+            keys = newKeys;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.geekbang.time.commonmistakes.oom.usernameautocomplete;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@RestController
+@RequestMapping("usernameautocomplete")
+@Slf4j
+public class UsernameAutoCompleteController {
+
+    @Autowired
+    private UsernameAutoCompleteService usernameAutoCompleteService;
+
+    @GetMapping("autocomplete")
+    public List<String> autoComplete(@RequestParam("prefix") String prefix, @RequestParam(value = "limit", defaultValue = "10") int limit) {
+        return usernameAutoCompleteService.autoComplete(prefix, limit);
+    }
+
+    @GetMapping("adduser")
+    public void addUser(@RequestParam("name") String name) {
+        usernameAutoCompleteService.addUser(name);
+    }
+
+    @GetMapping("removeuser")
+    public boolean removeUser(@RequestParam("name") String name) {
+        return usernameAutoCompleteService.removeUser(name);
+    }
+
+    /**
+     * 用users个随机用户名分别构建"每个前缀一个List"的Map和PrefixIndex，对比占用的堆内存和不同前缀长度的查询耗时。
+     * 两种方式都只保存名字，不包含UserDTO里10KB的payload，比较的是索引结构本身。
+     */
+    @GetMapping("compare")
+    public Map<String, Object> compare(@RequestParam(value = "users", defaultValue = "1000000") int users,
+                                       @RequestParam(value = "queries", defaultValue = "100000") int queries) {
+        List<String> names = IntStream.range(0, users).mapToObj(i -> UsernameAutoCompleteService.randomName()).collect(Collectors.toList());
+        List<String> prefixes = IntStream.range(0, queries)
+                .mapToObj(i -> names.get(ThreadLocalRandom.current().nextInt(users)))
+                .collect(Collectors.toList());
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        long heapBefore = usedHeap();
+        long begin = System.currentTimeMillis();
+        Map<String, List<String>> mapIndex = new HashMap<>();
+        names.forEach(name -> {
+            for (int i = 0; i < name.length(); i++) {
+                mapIndex.computeIfAbsent(name.substring(0, i + 1), s -> new ArrayList<>()).add(name);
+            }
+        });
+        long mapBuildMs = System.currentTimeMillis() - begin;
+        long mapHeapMB = (usedHeap() - heapBefore) / 1024 / 1024;
+        Map<String, Object> mapStats = new LinkedHashMap<>();
+        mapStats.put("buildMs", mapBuildMs);
+        mapStats.put("heapMB", mapHeapMB);
+        mapStats.put("keys", mapIndex.size());
+        //原来的做法没有排名，这里只取命中List的前10个，查询开销只有一次HashMap查找
+        mapStats.put("queryNsByPrefixLength", queryLatency(prefixes, prefix -> {
+            List<String> list = mapIndex.getOrDefault(prefix, Collections.emptyList());
+            return list.subList(0, Math.min(10, list.size()));
+        }));
+        result.put("mapOfLists", mapStats);
+        mapIndex.clear();
+
+        heapBefore = usedHeap();
+        begin = System.currentTimeMillis();
+        PrefixIndex prefixIndex = new PrefixIndex(10);
+        prefixIndex.insertAll(names);
+        long trieBuildMs = System.currentTimeMillis() - begin;
+        long trieHeapMB = (usedHeap() - heapBefore) / 1024 / 1024;
+        Map<String, Object> trieStats = new LinkedHashMap<>();
+        trieStats.put("buildMs", trieBuildMs);
+        trieStats.put("heapMB", trieHeapMB);
+        trieStats.put("names", prefixIndex.size());
+        trieStats.put("nodes", prefixIndex.nodeCount());
+        trieStats.put("queryNsByPrefixLength", queryLatency(prefixes, prefix -> prefixIndex.query(prefix, 10)));
+        result.put("prefixIndex", trieStats);
+
+        log.info("autocomplete compare users:{} result:{}", users, result);
+        return result;
+    }
+
+    private Map<Integer, Long> queryLatency(List<String> prefixes, Function<String, List<String>> query) {
+        Map<Integer, Long> latency = new LinkedHashMap<>();
+        for (int length = 1; length <= 6; length++) {
+            int len = length;
+            //先跑一遍预热
+            prefixes.forEach(name -> query.apply(name.substring(0, len)));
+            long begin = System.nanoTime();
+            long hits = 0;
+            for (String name : prefixes) {
+                hits += query.apply(name.substring(0, len)).size();
+            }
+            latency.put(length, (System.nanoTime() - begin) / prefixes.size());
+            log.debug("prefix length:{} hits:{}", length, hits);
+        }
+        return latency;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
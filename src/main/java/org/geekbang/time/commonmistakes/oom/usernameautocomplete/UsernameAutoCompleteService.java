@@ -18,6 +18,8 @@ import java.util.stream.LongStream;
 public class UsernameAutoCompleteService {
 
     private ConcurrentHashMap<String, List<UserDTO>> autoCompleteIndex = new ConcurrentHashMap<>();
+    //每个前缀保留同名用户最多的10个名字
+    private PrefixIndex prefixIndex = new PrefixIndex(10);
 
     @Autowired
     private UserRepository userRepository;
@@ -58,13 +60,32 @@ public class UsernameAutoCompleteService {
                 autoCompleteIndex.entrySet().stream().map(item -> item.getValue().size()).reduce(0, Integer::sum));
     }
 
+    //@PostConstruct
+    public void right2() {
+        userRepository.saveAll(LongStream.rangeClosed(1, 10000).mapToObj(i -> new UserEntity(i, randomName())).collect(Collectors.toList()));
+
+        prefixIndex.insertAll(userRepository.findAll().stream().map(UserEntity::getName).collect(Collectors.toList()));
+        log.info("prefixIndex names:{} nodes:{}", prefixIndex.size(), prefixIndex.nodeCount());
+    }
+
+    public List<String> autoComplete(String prefix, int limit) {
+        return prefixIndex.query(prefix, limit);
+    }
+
+    public void addUser(String name) {
+        prefixIndex.insert(name);
+    }
+
+    public boolean removeUser(String name) {
+        return prefixIndex.delete(name);
+    }
 
     /**
      * 随机生成长度为6的英文名称，字母包含 abcdefghij
      *
      * @return
      */
-    private String randomName() {
+    static String randomName() {
         return String.valueOf(Character.toChars(ThreadLocalRandom.current().nextInt(10) + 'a')).toUpperCase() +
                 String.valueOf(Character.toChars(ThreadLocalRandom.current().nextInt(10) + 'a')) +
                 String.valueOf(Character.toChars(ThreadLocalRandom.current().nextInt(10) + 'a')) +
@@ -9,6 +9,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.annotation.PostConstruct;
 import java.lang.ref.WeakReference;
 import java.util.Map;
 import java.util.WeakHashMap;
@@ -23,6 +24,14 @@ public class WeakHashMapOOMController {
     private Map<User, UserProfile> cache = new WeakHashMap<>();
     private Map<User, WeakReference<UserProfile>> cache2 = new WeakHashMap<>();
     private Map<User, UserProfile> cache3 = new ConcurrentReferenceHashMap<>();
+    //按估算的字节数限制在64MB以内
+    private WeightedCache<User, UserProfile> cache4 = newProfileCache("weakhashmapoom");
+
+    @PostConstruct
+    public void init() {
+        //老年代GC后还超过80%时逐步降低cache4的有效上限，压力解除后恢复
+        cache4.enableHeapPressureShrink(0.8);
+    }
 
     @GetMapping("wrong")
     public void wrong() {
@@ -68,6 +77,32 @@ public class WeakHashMapOOMController {
         });
     }
 
+    @GetMapping("right4")
+    public void right4() {
+        String userName = "zhuye";
+        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(
+                () -> log.info("cache stats:{}", cache4.stats()), 1, 1, TimeUnit.SECONDS);
+        LongStream.rangeClosed(1, 2000000).forEach(i -> {
+            User user = new User(userName + i);
+            cache4.put(user, new UserProfile(user, "location" + i));
+        });
+    }
+
+    /**
+     * cache4的构建方式，WeightedCacheTest用同样的配置做长时间写入测试
+     */
+    static WeightedCache<User, UserProfile> newProfileCache(String name) {
+        return new WeightedCache<>(name, 64 * 1024 * 1024, 16, (user, profile) -> estimateSize(profile));
+    }
+
+    /**
+     * 按64位JVM开启压缩指针粗略估算UserProfile和缓存Entry占用的字节数
+     */
+    static int estimateSize(UserProfile profile) {
+        //UserProfile 24 + User 24 + 两个String各24、char[]各16，缓存自己的Node和HashMap.Node约80
+        return 24 + 24 + 24 * 2 + 16 * 2 + 80
+                + 2 * (profile.getUser().getName().length() + profile.getLocation().length());
+    }
 
     @Data
     @AllArgsConstructor
@@ -0,0 +1,415 @@
+package org.geekbang.time.commonmistakes.oom.weakhashmapoom;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jodd.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按权重限制大小的并发缓存，用来替代WeakHashMapOOMController里的WeakHashMap/ConcurrentReferenceHashMap：
+ *
+ * 1、内存上限是确定的：每个Entry的权重由Weigher计算（比如估算UserProfile的字节数），总权重超过有效上限（默认maxWeight）就淘汰，
+ * 不依赖GC什么时候回收弱引用；
+ * 2、按Key的hash分段加锁，每段是一个分段LRU（SLRU）：新数据先进入试用区，再次被访问才晋升到保护区（占80%权重），
+ * 淘汰时优先淘汰试用区最久没访问的数据，只访问过一次的数据不会把热点数据挤出去，兼顾了访问时间和访问频率；
+ * 3、可选开启堆内存压力感知：在老年代内存池上设置GC后使用量阈值，每秒检查一次，
+ * 上次调整之后又有GC结束时仍然超过阈值，就把缓存的有效上限再减半（最低到上限的1/16）并淘汰到新的上限，
+ * 压力解除（最近一次GC后低于阈值）后有效上限每秒翻倍，直到恢复maxWeight；
+ * 4、命中、未命中、淘汰、裁剪次数和当前权重以cache.weighted.*发布到Metrics.globalRegistry。
+ */
+@Slf4j
+public class WeightedCache<K, V> {
+
+    /**
+     * 计算一个Entry的权重，必须是正数
+     */
+    @FunctionalInterface
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final double MIN_BUDGET_RATIO = 1.0 / 16;
+    //所有缓存共用一个检查堆内存压力的线程
+    private static final ScheduledExecutorService PRESSURE_CHECKER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("weighted-cache-pressure-%d").setDaemon(true).get());
+
+    private final String name;
+    private final long maxWeight;
+    private final Weigher<K, V> weigher;
+    private final Segment<K, V>[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder shrinks = new LongAdder();
+    //当前有效上限占maxWeight的比例，只在PRESSURE_CHECKER线程里修改
+    private volatile double budgetRatio = 1.0;
+    private ScheduledFuture<?> pressureCheck;
+    private long lastExceededCount;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public WeightedCache(String name, long maxWeight, int concurrencyLevel, Weigher<K, V> weigher) {
+        if (maxWeight <= 0 || concurrencyLevel <= 0)
+            throw new IllegalArgumentException("maxWeight and concurrencyLevel must be positive");
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        //段数取不小于concurrencyLevel的2的幂，用位运算选段
+        int segmentCount = Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        this.segments = new Segment[Math.max(1, segmentCount)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>(Math.max(1, maxWeight / segments.length));
+        }
+        FunctionCounter.builder("cache.weighted.hits", hits, LongAdder::sum).tag("name", name).register(Metrics.globalRegistry);
+        FunctionCounter.builder("cache.weighted.misses", misses, LongAdder::sum).tag("name", name).register(Metrics.globalRegistry);
+        FunctionCounter.builder("cache.weighted.evictions", evictions, LongAdder::sum).tag("name", name).register(Metrics.globalRegistry);
+        FunctionCounter.builder("cache.weighted.shrinks", shrinks, LongAdder::sum).tag("name", name).register(Metrics.globalRegistry);
+        Gauge.builder("cache.weighted.weight", this, WeightedCache::weightedSize).tag("name", name).register(Metrics.globalRegistry);
+        Gauge.builder("cache.weighted.size", this, WeightedCache::size).tag("name", name).register(Metrics.globalRegistry);
+    }
+
+    public V get(K key) {
+        V value = segmentFor(key).get(key);
+        if (value == null)
+            misses.increment();
+        else
+            hits.increment();
+        return value;
+    }
+
+    /**
+     * 放入缓存，权重超过单个段上限的Entry不会被缓存
+     */
+    public void put(K key, V value) {
+        int weight = weigher.weigh(key, value);
+        if (weight <= 0)
+            throw new IllegalArgumentException("weight must be positive");
+        evictions.add(segmentFor(key).put(key, value, weight));
+    }
+
+    public V remove(K key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long weightedSize() {
+        long weight = 0;
+        for (Segment<K, V> segment : segments) {
+            weight += segment.weight;
+        }
+        return weight;
+    }
+
+    /**
+     * 把每段的权重裁剪到上限的ratio倍，只淘汰一次，不改变之后的上限
+     */
+    public void shrink(double ratio) {
+        long evicted = 0;
+        for (Segment<K, V> segment : segments) {
+            evicted += segment.evictTo((long) (segment.maxWeight * ratio));
+        }
+        evictions.add(evicted);
+        shrinks.increment();
+        log.info("cache {} shrunk to {} of max weight, evicted {} entries", name, ratio, evicted);
+    }
+
+    /**
+     * 开启堆内存压力感知：老年代在GC后使用量超过最大值的usageThreshold（比如0.8）时逐步降低缓存的有效上限，
+     * 压力解除后再逐步恢复。只在老年代上设置阈值（同时支持UsageThreshold和CollectionUsageThreshold的堆内存池，
+     * Eden和Survivor只支持后者），阈值是JVM级别的设置，会覆盖其它地方对同一个内存池设置的阈值
+     */
+    public synchronized void enableHeapPressureShrink(double usageThreshold) {
+        if (pressureCheck != null)
+            return;
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+                pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * usageThreshold));
+                pools.add(pool);
+            }
+        }
+        if (pools.isEmpty()) {
+            log.warn("no tenured memory pool supports collection usage threshold, heap pressure shrink of cache {} disabled", name);
+            return;
+        }
+        lastExceededCount = exceededCount(pools);
+        pressureCheck = PRESSURE_CHECKER.scheduleWithFixedDelay(() -> checkHeapPressure(pools), 1, 1, TimeUnit.SECONDS);
+    }
+
+    public synchronized void disableHeapPressureShrink() {
+        if (pressureCheck == null)
+            return;
+        pressureCheck.cancel(false);
+        pressureCheck = null;
+        PRESSURE_CHECKER.execute(() -> applyBudget(1.0));
+    }
+
+    private void checkHeapPressure(List<MemoryPoolMXBean> pools) {
+        try {
+            long count = exceededCount(pools);
+            if (count > lastExceededCount) {
+                //上次调整之后又有GC结束时超过阈值，说明还没腾出足够的内存，继续降低上限
+                lastExceededCount = count;
+                if (budgetRatio > MIN_BUDGET_RATIO) {
+                    applyBudget(Math.max(MIN_BUDGET_RATIO, budgetRatio / 2));
+                    shrinks.increment();
+                }
+            } else if (budgetRatio < 1.0 && pools.stream().noneMatch(MemoryPoolMXBean::isCollectionUsageThresholdExceeded)) {
+                //还没有新的GC时isCollectionUsageThresholdExceeded反映的还是上次GC的结果，不会提前恢复
+                applyBudget(Math.min(1.0, budgetRatio * 2));
+            }
+        } catch (Exception ex) {
+            log.warn("check heap pressure for cache {} failed", name, ex);
+        }
+    }
+
+    private void applyBudget(double ratio) {
+        if (ratio == budgetRatio)
+            return;
+        budgetRatio = ratio;
+        long evicted = 0;
+        for (Segment<K, V> segment : segments) {
+            evicted += segment.setLimit(Math.max(1, (long) (segment.maxWeight * ratio)));
+        }
+        evictions.add(evicted);
+        log.info("cache {} budget set to {} of max weight, evicted {} entries", name, ratio, evicted);
+    }
+
+    private static long exceededCount(List<MemoryPoolMXBean> pools) {
+        return pools.stream().mapToLong(MemoryPoolMXBean::getCollectionUsageThresholdCount).sum();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size());
+        stats.put("weight", weightedSize());
+        stats.put("maxWeight", maxWeight);
+        stats.put("budgetRatio", budgetRatio);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("shrinks", shrinks.sum());
+        return stats;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static class Node<K, V> {
+        private final K key;
+        private V value;
+        private int weight;
+        private boolean protectedZone;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 双向链表，头部是最久没访问的
+     */
+    private static class AccessList<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+        private long weight;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            weight += node.weight;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+    }
+
+    private static class Segment<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long maxWeight;
+        //堆内存压力大时降低的有效上限，不超过maxWeight
+        private volatile long limit;
+        private final HashMap<K, Node<K, V>> map = new HashMap<>();
+        private final AccessList<K, V> probation = new AccessList<>();
+        private final AccessList<K, V> protectedList = new AccessList<>();
+        //只在锁内修改，volatile保证统计时能读到最新值
+        private volatile long weight;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.limit = maxWeight;
+        }
+
+        V get(K key) {
+            lock.lock();
+            try {
+                Node<K, V> node = map.get(key);
+                if (node == null)
+                    return null;
+                onAccess(node);
+                return node.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 返回淘汰的Entry数量
+         */
+        int put(K key, V value, int weight) {
+            lock.lock();
+            try {
+                Node<K, V> node = map.get(key);
+                if (weight > limit) {
+                    if (node != null)
+                        removeNode(node);
+                    return 0;
+                }
+                if (node == null) {
+                    node = new Node<>(key, value, weight);
+                    map.put(key, node);
+                    probation.addLast(node);
+                    this.weight += weight;
+                } else {
+                    listOf(node).unlink(node);
+                    this.weight += weight - node.weight;
+                    node.value = value;
+                    node.weight = weight;
+                    listOf(node).addLast(node);
+                    onAccess(node);
+                }
+                return evictTo(limit);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        V remove(K key) {
+            lock.lock();
+            try {
+                Node<K, V> node = map.get(key);
+                if (node == null)
+                    return null;
+                removeNode(node);
+                return node.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return map.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 修改有效上限并淘汰到新的上限，返回淘汰的Entry数量
+         */
+        int setLimit(long limit) {
+            lock.lock();
+            try {
+                this.limit = limit;
+                return evictTo(limit);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int evictTo(long targetWeight) {
+            lock.lock();
+            try {
+                int evicted = 0;
+                while (weight > targetWeight) {
+                    Node<K, V> victim = probation.head != null ? probation.head : protectedList.head;
+                    removeNode(victim);
+                    evicted++;
+                }
+                return evicted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 试用区的数据再次被访问时晋升到保护区，保护区满了把最久没访问的降级回试用区
+         */
+        private void onAccess(Node<K, V> node) {
+            if (node.protectedZone) {
+                protectedList.unlink(node);
+                protectedList.addLast(node);
+                return;
+            }
+            probation.unlink(node);
+            node.protectedZone = true;
+            protectedList.addLast(node);
+            long maxProtectedWeight = (long) (limit * PROTECTED_RATIO);
+            while (protectedList.weight > maxProtectedWeight && protectedList.head != node) {
+                Node<K, V> demoted = protectedList.head;
+                protectedList.unlink(demoted);
+                demoted.protectedZone = false;
+                probation.addLast(demoted);
+            }
+        }
+
+        private void removeNode(Node<K, V> node) {
+            map.remove(node.key);
+            listOf(node).unlink(node);
+            weight -= node.weight;
+        }
+
+        private AccessList<K, V> listOf(Node<K, V> node) {
+            return node.protectedZone ? protectedList : probation;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.geekbang.time.commonmistakes.oom.weakhashmapoom;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+@Slf4j
+public class WeightedCacheTest {
+
+    /**
+     * 和WeakHashMapOOMController的wrong一样写入200万个User/UserProfile
+     */
+    @Test
+    public void soakWrongLoop() {
+        soak(2000000);
+    }
+
+    /**
+     * 和WeakHashMapOOMController的right3一样写入2000万个User/UserProfile
+     */
+    @Test
+    public void soakRight3Loop() {
+        soak(20000000);
+    }
+
+    /**
+     * 用和cache4相同的配置持续写入，每写入5%做一次GC并记录堆使用量，
+     * 缓存写满后（从25%开始）的堆使用量不应该继续增长
+     */
+    private void soak(long count) {
+        WeakHashMapOOMController controller = new WeakHashMapOOMController();
+        WeightedCache<WeakHashMapOOMController.User, WeakHashMapOOMController.UserProfile> cache =
+                WeakHashMapOOMController.newProfileCache("soak");
+        cache.enableHeapPressureShrink(0.8);
+        try {
+            long step = count / 20;
+            List<Long> heapMB = new ArrayList<>();
+            LongStream.rangeClosed(1, count).forEach(i -> {
+                WeakHashMapOOMController.User user = controller.new User("zhuye" + i);
+                cache.put(user, controller.new UserProfile(user, "location" + i));
+                if (i % step == 0) {
+                    System.gc();
+                    heapMB.add(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024 / 1024);
+                }
+            });
+            log.info("{} puts, heap used after each step(MB):{}, cache stats:{}", count, heapMB, cache.stats());
+
+            long baseline = heapMB.get(heapMB.size() / 4);
+            long peak = heapMB.subList(heapMB.size() / 4, heapMB.size()).stream().mapToLong(Long::longValue).max().orElse(0);
+            //允许10%加16MB的波动
+            Assert.assertTrue("heap keeps growing: " + heapMB, peak <= baseline * 1.1 + 16);
+            Assert.assertTrue(cache.weightedSize() <= 64 * 1024 * 1024);
+        } finally {
+            cache.disableHeapPressureShrink();
+        }
+    }
+}
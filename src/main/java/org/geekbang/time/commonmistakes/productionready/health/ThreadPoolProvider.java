@@ -1,23 +1,23 @@
 package org.geekbang.time.commonmistakes.productionready.health;
 
-import jodd.util.concurrent.ThreadFactoryBuilder;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class ThreadPoolProvider {
-    private static ThreadPoolExecutor demoThreadPool = new ThreadPoolExecutor(
-            1, 1,
+    private static ThreadPoolExecutor demoThreadPool = ThreadPoolRegistry.newThreadPool(
+            "demo-threadpool-%d", 1, 1,
             2, TimeUnit.SECONDS,
             new ArrayBlockingQueue<>(10),
-            new ThreadFactoryBuilder().setNameFormat("demo-threadpool-%d").get());
+            new ThreadPoolExecutor.AbortPolicy());
 
-    private static ThreadPoolExecutor ioThreadPool = new ThreadPoolExecutor(
-            10, 50,
+    private static ThreadPoolExecutor ioThreadPool = ThreadPoolRegistry.newThreadPool(
+            "io-threadpool-%d", 10, 50,
             2, TimeUnit.SECONDS,
             new ArrayBlockingQueue<>(100),
-            new ThreadFactoryBuilder().setNameFormat("io-threadpool-%d").get());
+            new ThreadPoolExecutor.AbortPolicy());
 
     public static ThreadPoolExecutor getDemoThreadPool() {
         return demoThreadPool;
@@ -1,12 +1,18 @@
 package org.geekbang.time.commonmistakes.productionready.metrics;
 
 import org.geekbang.time.commonmistakes.common.Utils;
+import org.geekbang.time.commonmistakes.common.embeddedbroker.EmbeddedBrokerConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.client.RestTemplate;
 
 @SpringBootApplication
+//embeddedbroker.enabled=true时使用进程内的RabbitMQ替身
+@Import(EmbeddedBrokerConfiguration.class)
+@EnableScheduling
 public class CommonMistakesApplication {
 
     public static void main(String[] args) {
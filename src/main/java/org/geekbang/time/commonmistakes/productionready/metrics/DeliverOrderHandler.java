@@ -1,18 +1,32 @@
 package org.geekbang.time.commonmistakes.productionready.metrics;
 
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.PostConstruct;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 //配送服务消息处理程序
 @RestController
@@ -20,9 +34,22 @@ import java.util.concurrent.atomic.AtomicLong;
 @RequestMapping("deliver")
 public class DeliverOrderHandler {
 
+    static final String BATCH_LISTENER_ID = "deliverOrderBatch";
+
     //配送服务运行状态
     private volatile boolean deliverStatus = true;
     private AtomicLong deliverCounter = new AtomicLong();
+    @Autowired
+    private RabbitListenerEndpointRegistry rabbitListenerEndpointRegistry;
+    @Autowired
+    private RestTemplate restTemplate;
+    @Autowired
+    private PrefetchTuner prefetchTuner;
+    //指标在启动时注册好，避免每条消息都按名字到MeterRegistry里查找
+    private Counter receivedCounter;
+    private Timer successTimer;
+    private Timer endToEndTimer;
+    private Map<String, Timer> failedTimers = new ConcurrentHashMap<>();
 
     //通过一个外部接口来改变配送状态模拟配送服务停工
     @PostMapping("status")
@@ -34,25 +61,112 @@ public class DeliverOrderHandler {
     public void init() {
         //同样注册一个gauge指标deliverOrder.totalSuccess，代表总的配送单量，只需注册一次即可
         Metrics.gauge("deliverOrder.totalSuccess", deliverCounter);
+        receivedCounter = Metrics.counter("deliverOrder.received");
+        successTimer = Metrics.timer("deliverOrder.success");
+        //从下单到配送完成的端到端耗时
+        endToEndTimer = Metrics.timer("deliverOrder.endToEnd");
     }
 
-    //监听MQ消息
-    @RabbitListener(queues = Consts.QUEUE, concurrency = "5")
+    //监听MQ消息，每次处理一个订单
+    //@RabbitListener(queues = Consts.QUEUE, concurrency = "5")
     public void deliverOrder(Order order) {
         Instant begin = Instant.now();
         //对deliverOrder.received进行递增，代表收到一次订单消息，counter类型
-        Metrics.counter("deliverOrder.received").increment();
+        receivedCounter.increment();
         try {
             if (!deliverStatus)
                 throw new RuntimeException("deliver outofservice");
             TimeUnit.MILLISECONDS.sleep(500);
             deliverCounter.incrementAndGet();
             //配送成功指标deliverOrder.success，timer类型
-            Metrics.timer("deliverOrder.success").record(Duration.between(begin, Instant.now()));
+            successTimer.record(Duration.between(begin, Instant.now()));
+            recordEndToEnd(order);
         } catch (Exception ex) {
             log.error("deliver Order {} failed", order, ex);
             //配送失败指标deliverOrder.failed，同样附加了失败原因作为tags，timer类型
-            Metrics.timer("deliverOrder.failed", "reason", ex.getMessage()).record(Duration.between(begin, Instant.now()));
+            failedTimer(ex).record(Duration.between(begin, Instant.now()));
         }
     }
+
+    //批量监听MQ消息，一批订单调用一次配送接口，整批处理完后一次确认
+    @RabbitListener(id = BATCH_LISTENER_ID, queues = Consts.QUEUE, containerFactory = "batchContainerFactory")
+    public void deliverOrders(List<Order> orders) {
+        Instant begin = Instant.now();
+        receivedCounter.increment(orders.size());
+        try {
+            if (!deliverStatus)
+                throw new RuntimeException("deliver outofservice");
+            //模拟批量配送接口，一次调用耗时500ms，和批次大小无关
+            TimeUnit.MILLISECONDS.sleep(500);
+            deliverCounter.addAndGet(orders.size());
+            Duration elapsed = Duration.between(begin, Instant.now());
+            orders.forEach(order -> {
+                successTimer.record(elapsed);
+                recordEndToEnd(order);
+            });
+            prefetchTuner.record(orders.size(), elapsed.toNanos());
+        } catch (Exception ex) {
+            log.error("deliver {} orders failed", orders.size(), ex);
+            Duration elapsed = Duration.between(begin, Instant.now());
+            Timer failedTimer = failedTimer(ex);
+            orders.forEach(order -> failedTimer.record(elapsed));
+        }
+    }
+
+    //调整批量消费者的数量，SimpleMessageListenerContainer支持运行时增减消费者
+    @PostMapping("consumers")
+    public void consumers(@RequestParam("consumers") int consumers) {
+        ((SimpleMessageListenerContainer) rabbitListenerEndpointRegistry.getListenerContainer(BATCH_LISTENER_ID))
+                .setConcurrentConsumers(consumers);
+    }
+
+    //压测：并发调用下单接口下orders单，等待全部配送完成，返回每秒配送单量和端到端耗时
+    @GetMapping("benchmark")
+    public Map<String, Object> benchmark(@RequestParam(value = "orders", defaultValue = "1000") int orders,
+                                         @RequestParam(value = "concurrency", defaultValue = "50") int concurrency,
+                                         @RequestParam(value = "consumers", defaultValue = "0") int consumers) throws InterruptedException {
+        if (consumers > 0)
+            consumers(consumers);
+        long deliveredBefore = deliverCounter.get();
+        long endToEndCountBefore = endToEndTimer.count();
+        double endToEndTotalBefore = endToEndTimer.totalTime(TimeUnit.MILLISECONDS);
+        long begin = System.nanoTime();
+        ExecutorService threadPool = Executors.newFixedThreadPool(concurrency);
+        try {
+            IntStream.range(0, orders).forEach(i -> threadPool.execute(() ->
+                    restTemplate.getForObject("http://localhost:45678/order/createOrder?userId=100&merchantId=2", Void.class)));
+        } finally {
+            threadPool.shutdown();
+        }
+        threadPool.awaitTermination(1, TimeUnit.HOURS);
+        long createdNanos = System.nanoTime() - begin;
+        //最多等10分钟，配送服务停工时不会一直等下去
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(10);
+        while (deliverCounter.get() - deliveredBefore < orders && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        long elapsedNanos = System.nanoTime() - begin;
+        long delivered = deliverCounter.get() - deliveredBefore;
+        long endToEndCount = endToEndTimer.count() - endToEndCountBefore;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("consumers", ((SimpleMessageListenerContainer) rabbitListenerEndpointRegistry.getListenerContainer(BATCH_LISTENER_ID)).getActiveConsumerCount());
+        result.put("prefetch", prefetchTuner.getPrefetch());
+        result.put("delivered", delivered);
+        result.put("createOrdersPerSecond", orders * 1_000_000_000L / Math.max(1, createdNanos));
+        result.put("deliverOrdersPerSecond", delivered * 1_000_000_000L / Math.max(1, elapsedNanos));
+        result.put("endToEndAvgMs", endToEndCount == 0 ? 0 :
+                (endToEndTimer.totalTime(TimeUnit.MILLISECONDS) - endToEndTotalBefore) / endToEndCount);
+        result.put("endToEndMaxMs", endToEndTimer.max(TimeUnit.MILLISECONDS));
+        return result;
+    }
+
+    private void recordEndToEnd(Order order) {
+        if (order.getCreateTime() != null)
+            endToEndTimer.record(System.currentTimeMillis() - order.getCreateTime(), TimeUnit.MILLISECONDS);
+    }
+
+    private Timer failedTimer(Exception ex) {
+        return failedTimers.computeIfAbsent(String.valueOf(ex.getMessage()),
+                reason -> Metrics.timer("deliverOrder.failed", "reason", reason));
+    }
 }
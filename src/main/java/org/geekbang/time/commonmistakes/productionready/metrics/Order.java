@@ -9,4 +9,6 @@ public class Order implements Serializable {
     private Long id;
     private Long userId;
     private Long merchantId;
+    //下单时间，用来计算从下单到配送完成的端到端耗时
+    private Long createTime;
 }
@@ -55,6 +55,7 @@ public class OrderController {
             order.setId(createOrderCounter.incrementAndGet()); //gauge指标可以得到自动更新
             order.setUserId(userId);
             order.setMerchantId(merchantId);
+            order.setCreateTime(System.currentTimeMillis());
             //发送MQ消息
             rabbitTemplate.convertAndSend(Consts.EXCHANGE, Consts.ROUTING_KEY, order);
             //记录一次createOrder.success指标，表示下单成功，同时提供耗时
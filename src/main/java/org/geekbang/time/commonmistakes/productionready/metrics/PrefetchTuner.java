@@ -0,0 +1,78 @@
+package org.geekbang.time.commonmistakes.productionready.metrics;
+
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 根据批量配送的处理耗时调整消费者的预取数量：
+ *
+ * 1、预取太少，消费者处理完一批要等Broker推送下一批；预取太多，消息在消费者本地排队，
+ * 端到端耗时变长，也没法分给新增加的消费者；
+ * 2、用处理耗时的指数移动平均算出每条消息的处理时间，预取数量取本地排队不超过maxBufferedLatencyMs能处理完的消息数，
+ * 限制在batchSize和maxPrefetch之间；
+ * 3、basic.qos只对新建的消费者生效，所以预取数量变化超过一倍时才重启监听容器，重启时已预取未处理的消息会退回队列。
+ */
+@Component
+@Slf4j
+public class PrefetchTuner {
+
+    @Autowired
+    private RabbitListenerEndpointRegistry rabbitListenerEndpointRegistry;
+    @Value("${deliver.batchSize:20}")
+    private int batchSize;
+    @Value("${deliver.prefetch.max:1000}")
+    private int maxPrefetch;
+    @Value("${deliver.prefetch.maxBufferedLatencyMs:2000}")
+    private long maxBufferedLatencyMs;
+
+    private final AtomicInteger prefetch = new AtomicInteger();
+    //每条消息处理耗时的指数移动平均，单位纳秒
+    private volatile double avgNanosPerMessage;
+
+    @PostConstruct
+    public void init() {
+        prefetch.set(batchSize * 2);
+        Metrics.gauge("deliverOrder.prefetch", prefetch);
+    }
+
+    public void record(int messages, long nanos) {
+        double nanosPerMessage = (double) nanos / Math.max(1, messages);
+        double avg = avgNanosPerMessage;
+        //多个消费者线程并发更新，丢掉个别样本不影响平均值
+        avgNanosPerMessage = avg == 0 ? nanosPerMessage : avg * 0.8 + nanosPerMessage * 0.2;
+    }
+
+    public int getPrefetch() {
+        return prefetch.get();
+    }
+
+    @Scheduled(initialDelay = 10_000, fixedDelay = 10_000)
+    public void tune() {
+        double avg = avgNanosPerMessage;
+        if (avg == 0)
+            return;
+        int target = (int) Math.max(batchSize, Math.min(maxPrefetch, TimeUnit.MILLISECONDS.toNanos(maxBufferedLatencyMs) / avg));
+        int current = prefetch.get();
+        if (target < current * 2 && target > current / 2)
+            return;
+        AbstractMessageListenerContainer container = (AbstractMessageListenerContainer)
+                rabbitListenerEndpointRegistry.getListenerContainer(DeliverOrderHandler.BATCH_LISTENER_ID);
+        log.info("adjust prefetch from {} to {}, avg {} ms per message", current, target, avg / 1_000_000);
+        container.setPrefetchCount(target);
+        prefetch.set(target);
+        if (container.isRunning()) {
+            container.stop();
+            container.start();
+        }
+    }
+}
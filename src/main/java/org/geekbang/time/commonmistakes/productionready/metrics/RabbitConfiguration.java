@@ -1,11 +1,23 @@
 package org.geekbang.time.commonmistakes.productionready.metrics;
 
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RabbitConfiguration {
+    //每批最多处理的订单数
+    @Value("${deliver.batchSize:20}")
+    private int batchSize;
+    //凑批时等待下一条消息的最长时间，超过就先处理已经收到的
+    @Value("${deliver.batchMaxWaitMs:100}")
+    private long batchMaxWaitMs;
+    @Value("${deliver.consumers:5}")
+    private int consumers;
+
     //队列
     @Bean
     public Queue queue() {
@@ -23,4 +35,20 @@ public class RabbitConfiguration {
     public Binding binding() {
         return BindingBuilder.bind(queue()).to(exchange()).with(Consts.ROUTING_KEY).noargs();
     }
+
+    //批量消费：消费者攒够batchSize条或者等待超时后一次性交给监听方法，处理完后以multiple方式一次确认整批消息
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchMaxWaitMs);
+        //初始预取两批，之后由PrefetchTuner根据处理耗时调整
+        factory.setPrefetchCount(batchSize * 2);
+        factory.setConcurrentConsumers(consumers);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        return factory;
+    }
 }
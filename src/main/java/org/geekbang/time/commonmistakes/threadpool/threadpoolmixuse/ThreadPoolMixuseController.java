@@ -1,7 +1,8 @@
 package org.geekbang.time.commonmistakes.threadpool.threadpoolmixuse;
 
-import jodd.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.collect.ImmutableMap;
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -13,6 +14,7 @@ import java.nio.file.Paths;
 import java.time.LocalTime;
 import java.util.Collections;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -25,31 +27,31 @@ import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 @Slf4j
 public class ThreadPoolMixuseController {
 
-    private static ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+    private static ThreadPoolExecutor threadPool = ThreadPoolRegistry.newThreadPool(
+            "batchfileprocess-threadpool-%d",
             2, 2,
             1, TimeUnit.HOURS,
             new ArrayBlockingQueue<>(100),
-            new ThreadFactoryBuilder().setNameFormat("batchfileprocess-threadpool-%d").get(),
             new ThreadPoolExecutor.CallerRunsPolicy());
 
 
-    private static ThreadPoolExecutor asyncCalcThreadPool = new ThreadPoolExecutor(
+    private static ThreadPoolExecutor asyncCalcThreadPool = ThreadPoolRegistry.newThreadPool(
+            "asynccalc-threadpool-%d",
             200, 200,
             1, TimeUnit.HOURS,
             new ArrayBlockingQueue<>(1000),
-            new ThreadFactoryBuilder().setNameFormat("asynccalc-threadpool-%d").get());
-
-    private void printStats(ThreadPoolExecutor threadPool) {
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            log.info("=========================");
-            log.info("Pool Size: {}", threadPool.getPoolSize());
-            log.info("Active Threads: {}", threadPool.getActiveCount());
-            log.info("Number of Tasks Completed: {}", threadPool.getCompletedTaskCount());
-            log.info("Number of Tasks in Queue: {}", threadPool.getQueue().size());
-
-            log.info("=========================");
-        }, 0, 1, TimeUnit.SECONDS);
-    }
+            new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 按任务类型隔离的线程池：批量文件处理走IO线程池，calcTask走LATENCY_CRITICAL线程池，
+     * CPU任务由interactive和batch两个租户按3:1的权重共享
+     */
+    private static WorkloadBulkhead bulkhead = new WorkloadBulkhead(
+            2, 100,
+            50, 200,
+            1000, ImmutableMap.of("interactive", 3, "batch", 1));
+
+    private static AtomicBoolean bulkheadFlooding = new AtomicBoolean();
 
     private Callable<Integer> calcTask() {
         return () -> {
@@ -68,10 +70,42 @@ public class ThreadPoolMixuseController {
         return asyncCalcThreadPool.submit(calcTask()).get();
     }
 
+    /**
+     * 即使batchfileprocess的任务把IO线程池塞满，calcTask也在独立的LATENCY_CRITICAL线程池中执行，
+     * 可以通过/actuator/threadpools/bulkhead-latency查看这类任务的排队耗时和执行耗时分位数
+     */
+    @GetMapping("bulkhead")
+    public int bulkhead() throws ExecutionException, InterruptedException {
+        return bulkhead.submit(WorkloadBulkhead.WorkloadType.LATENCY_CRITICAL, calcTask()).get();
+    }
+
+    /**
+     * 和init中一样不停地提交批量文件处理任务，只不过提交到舱壁的IO线程池，用来验证/bulkhead不受影响
+     */
+    @GetMapping("bulkheadflood")
+    public String bulkheadFlood() {
+        if (!bulkheadFlooding.compareAndSet(false, true))
+            return "already flooding";
+        new Thread(() -> {
+            String payload = IntStream.rangeClosed(1, 1_000_000)
+                    .mapToObj(__ -> "a")
+                    .collect(Collectors.joining(""));
+            while (true) {
+                bulkhead.submit(WorkloadBulkhead.WorkloadType.IO, () -> {
+                    try {
+                        Files.write(Paths.get("demo-bulkhead.txt"), Collections.singletonList(LocalTime.now().toString() + ":" + payload), UTF_8, CREATE, TRUNCATE_EXISTING);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    log.info("bulkhead batch file processing done");
+                });
+            }
+        }).start();
+        return "OK";
+    }
+
     @PostConstruct
     public void init() {
-        printStats(threadPool);
-
         new Thread(() -> {
             String payload = IntStream.rangeClosed(1, 1_000_000)
                     .mapToObj(__ -> "a")
@@ -0,0 +1,266 @@
+package org.geekbang.time.commonmistakes.threadpool.threadpoolmixuse;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 多个租户按权重公平共享一组固定线程的执行器，用于CPU密集型任务：
+ *
+ * 每个租户有自己的有界队列，队列满了只拒绝这个租户的任务；工作线程按平滑加权轮询（和Nginx的smooth weighted round-robin一样）
+ * 从非空的租户队列里取任务，所以一个租户积压再多任务，也只能占用按权重分到的那部分线程时间。
+ * 每个租户的排队耗时和执行耗时以name、tenant为标签发布到Metrics.globalRegistry。
+ * 执行器以name注册到ThreadPoolRegistry，终止后自动注销；工作线程是守护线程，忘记shutdown也不会阻止JVM退出。
+ */
+@Slf4j
+public class WeightedFairExecutor extends AbstractExecutorService {
+
+    private final String name;
+    private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+    private final Tenant defaultTenant;
+    //等于所有租户队列中的任务总数，先入队再release，拿到许可就一定能取到任务
+    private final Semaphore pending = new Semaphore(0);
+    private final Object pickLock = new Object();
+    private final List<Thread> workers = new ArrayList<>();
+    private final CountDownLatch terminated;
+    private final AtomicInteger liveWorkers;
+    //提交任务时持有读锁完成检查shutdown、入队和release，shutdown持有写锁设置标记，
+    //这样标记设置之后所有已经接受的任务都已经有了许可，工作线程看到没有许可就可以安全退出
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+    private volatile boolean shutdown;
+
+    /**
+     * @param weights 租户名和权重，第一个租户作为execute(Runnable)的默认租户
+     */
+    public WeightedFairExecutor(String name, int threads, Map<String, Integer> weights, int queueCapacityPerTenant) {
+        if (threads <= 0 || weights.isEmpty())
+            throw new IllegalArgumentException("threads must be positive and at least one tenant is required");
+        this.name = name;
+        weights.forEach((tenant, weight) -> {
+            if (weight <= 0)
+                throw new IllegalArgumentException("weight of " + tenant + " must be positive");
+            tenants.put(tenant, new Tenant(tenant, weight, queueCapacityPerTenant));
+        });
+        this.defaultTenant = tenants.values().iterator().next();
+        this.terminated = new CountDownLatch(threads);
+        this.liveWorkers = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        ThreadPoolRegistry.register(name, this, meters(), this::stats);
+    }
+
+    public void execute(String tenant, Runnable command) {
+        Tenant t = tenants.get(tenant);
+        if (t == null)
+            throw new IllegalArgumentException("unknown tenant " + tenant);
+        enqueue(t, command);
+    }
+
+    public <T> Future<T> submit(String tenant, Callable<T> task) {
+        RunnableFuture<T> future = newTaskFor(task);
+        execute(tenant, future);
+        return future;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        enqueue(defaultTenant, command);
+    }
+
+    public int queueSize(String tenant) {
+        return tenants.get(tenant).queue.size();
+    }
+
+    private void enqueue(Tenant tenant, Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        shutdownLock.readLock().lock();
+        try {
+            if (shutdown)
+                throw new RejectedExecutionException(name + " has been shut down");
+            if (!tenant.queue.offer(new Task(command)))
+                throw new RejectedExecutionException(name + " tenant " + tenant.name + " queue full, failed to offer " + command);
+            pending.release();
+        } finally {
+            shutdownLock.readLock().unlock();
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                if (!pending.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    if (shutdown && pending.availablePermits() == 0)
+                        return;
+                    continue;
+                }
+                Tenant tenant;
+                Task task;
+                synchronized (pickLock) {
+                    tenant = pick();
+                    //shutdownNow清空队列时可能已经有线程拿到了许可
+                    if (tenant == null)
+                        continue;
+                    task = tenant.queue.poll();
+                }
+                long start = System.nanoTime();
+                tenant.queueWait.record(start - task.submitNanos, TimeUnit.NANOSECONDS);
+                try {
+                    task.command.run();
+                } catch (Throwable ex) {
+                    log.warn("{} tenant {} task failed", name, tenant.name, ex);
+                } finally {
+                    tenant.duration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            //和ThreadPoolExecutor.terminated()一样，在awaitTermination返回之前注销
+            if (liveWorkers.decrementAndGet() == 0)
+                ThreadPoolRegistry.unregister(this);
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * 平滑加权轮询：每个非空租户的当前权重加上自身权重，选当前权重最大的，再把它减去本轮参与的总权重
+     */
+    private Tenant pick() {
+        Tenant selected = null;
+        int total = 0;
+        for (Tenant tenant : tenants.values()) {
+            if (tenant.queue.isEmpty())
+                continue;
+            tenant.currentWeight += tenant.weight;
+            total += tenant.weight;
+            if (selected == null || tenant.currentWeight > selected.currentWeight)
+                selected = tenant;
+        }
+        if (selected != null)
+            selected.currentWeight -= total;
+        return selected;
+    }
+
+    private List<Meter> meters() {
+        List<Meter> meters = new ArrayList<>();
+        meters.add(Gauge.builder("threadpool.pool.size", workers, List::size).tag("name", name).register(Metrics.globalRegistry));
+        meters.add(Gauge.builder("threadpool.queue.size", pending, Semaphore::availablePermits).tag("name", name).register(Metrics.globalRegistry));
+        for (Tenant tenant : tenants.values()) {
+            meters.add(Gauge.builder("threadpool.fair.queue.size", tenant.queue, BlockingQueue::size)
+                    .tag("name", name).tag("tenant", tenant.name).register(Metrics.globalRegistry));
+            meters.add(tenant.queueWait);
+            meters.add(tenant.duration);
+        }
+        return meters;
+    }
+
+    private Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("type", getClass().getSimpleName());
+        stats.put("poolSize", workers.size());
+        stats.put("queueSize", pending.availablePermits());
+        stats.put("shutdown", shutdown);
+        stats.put("terminated", isTerminated());
+        Map<String, Object> tenantStats = new LinkedHashMap<>();
+        tenants.values().forEach(tenant -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("weight", tenant.weight);
+            item.put("queueSize", tenant.queue.size());
+            item.put("queueWait", ThreadPoolRegistry.timerStats(tenant.queueWait));
+            item.put("taskDuration", ThreadPoolRegistry.timerStats(tenant.duration));
+            tenantStats.put(tenant.name, item);
+        });
+        stats.put("tenants", tenantStats);
+        return stats;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdownLock.writeLock().lock();
+        try {
+            shutdown = true;
+        } finally {
+            shutdownLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        List<Runnable> remaining = new ArrayList<>();
+        synchronized (pickLock) {
+            for (Tenant tenant : tenants.values()) {
+                Task task;
+                while ((task = tenant.queue.poll()) != null) {
+                    pending.tryAcquire();
+                    remaining.add(task.command);
+                }
+            }
+        }
+        workers.forEach(Thread::interrupt);
+        return remaining;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private class Tenant {
+        private final String name;
+        private final int weight;
+        private final BlockingQueue<Task> queue;
+        private final Timer queueWait;
+        private final Timer duration;
+        //只在pickLock内读写
+        private int currentWeight;
+
+        Tenant(String name, int weight, int queueCapacity) {
+            this.name = name;
+            this.weight = weight;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.queueWait = Timer.builder("threadpool.fair.queue.wait")
+                    .tag("name", WeightedFairExecutor.this.name).tag("tenant", name)
+                    .publishPercentiles(0.5, 0.99).register(Metrics.globalRegistry);
+            this.duration = Timer.builder("threadpool.fair.task.duration")
+                    .tag("name", WeightedFairExecutor.this.name).tag("tenant", name)
+                    .publishPercentiles(0.5, 0.99).register(Metrics.globalRegistry);
+        }
+    }
+
+    private static class Task {
+        private final Runnable command;
+        private final long submitNanos = System.nanoTime();
+
+        Task(Runnable command) {
+            this.command = command;
+        }
+    }
+}
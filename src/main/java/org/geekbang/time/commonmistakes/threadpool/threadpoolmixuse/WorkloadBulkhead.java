@@ -0,0 +1,101 @@
+package org.geekbang.time.commonmistakes.threadpool.threadpoolmixuse;
+
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 按任务类型隔离线程池（舱壁模式），避免批量IO任务和对延迟敏感的计算任务抢同一个线程池：
+ *
+ * IO：线程数可以远大于CPU核数，队列满了由提交线程自己执行（CallerRunsPolicy），让批量任务的生产者慢下来；
+ * CPU：线程数等于CPU核数，配置了租户权重时使用WeightedFairExecutor让多个租户按权重共享这些线程；
+ * LATENCY_CRITICAL：独立的小队列，队列满了直接拒绝，宁可快速失败也不排队。
+ *
+ * 每一类线程池都注册到ThreadPoolRegistry（bulkhead-io、bulkhead-cpu、bulkhead-latency），排队耗时和执行耗时分位数按类分开统计。
+ */
+public class WorkloadBulkhead {
+
+    public enum WorkloadType {
+        IO, CPU, LATENCY_CRITICAL
+    }
+
+    /**
+     * 任务可以实现这个接口声明自己的类型，没有声明的按CPU任务处理
+     */
+    public interface Classified {
+        WorkloadType workloadType();
+    }
+
+    private final Map<WorkloadType, ExecutorService> executors = new EnumMap<>(WorkloadType.class);
+    private final WeightedFairExecutor fairCpuExecutor;
+
+    public WorkloadBulkhead(int ioThreads, int ioQueueCapacity, int latencyThreads, int latencyQueueCapacity, int cpuQueueCapacity) {
+        this(ioThreads, ioQueueCapacity, latencyThreads, latencyQueueCapacity, cpuQueueCapacity, Collections.emptyMap());
+    }
+
+    /**
+     * @param cpuTenantWeights CPU任务的租户权重，为空时CPU任务使用普通的固定大小线程池
+     */
+    public WorkloadBulkhead(int ioThreads, int ioQueueCapacity, int latencyThreads, int latencyQueueCapacity,
+                            int cpuQueueCapacity, Map<String, Integer> cpuTenantWeights) {
+        int cpuThreads = Runtime.getRuntime().availableProcessors();
+        executors.put(WorkloadType.IO, ThreadPoolRegistry.newThreadPool("bulkhead-io-%d",
+                ioThreads, ioThreads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(ioQueueCapacity),
+                new ThreadPoolExecutor.CallerRunsPolicy()));
+        executors.put(WorkloadType.LATENCY_CRITICAL, ThreadPoolRegistry.newThreadPool("bulkhead-latency-%d",
+                latencyThreads, latencyThreads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(latencyQueueCapacity),
+                new ThreadPoolExecutor.AbortPolicy()));
+        if (cpuTenantWeights.isEmpty()) {
+            fairCpuExecutor = null;
+            executors.put(WorkloadType.CPU, ThreadPoolRegistry.newThreadPool("bulkhead-cpu-%d",
+                    cpuThreads, cpuThreads, 1, TimeUnit.MINUTES,
+                    new ArrayBlockingQueue<>(cpuQueueCapacity),
+                    new ThreadPoolExecutor.AbortPolicy()));
+        } else {
+            fairCpuExecutor = new WeightedFairExecutor("bulkhead-cpu", cpuThreads, cpuTenantWeights, cpuQueueCapacity);
+            executors.put(WorkloadType.CPU, fairCpuExecutor);
+        }
+    }
+
+    public <T> Future<T> submit(WorkloadType type, Callable<T> task) {
+        return executors.get(type).submit(task);
+    }
+
+    public Future<?> submit(WorkloadType type, Runnable task) {
+        return executors.get(type).submit(task);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return submit(classify(task), task);
+    }
+
+    public Future<?> submit(Runnable task) {
+        return submit(classify(task), task);
+    }
+
+    /**
+     * 提交CPU任务到指定租户，只有配置了租户权重时可用
+     */
+    public <T> Future<T> submitCpu(String tenant, Callable<T> task) {
+        if (fairCpuExecutor == null)
+            throw new IllegalStateException("cpu tenants are not configured");
+        return fairCpuExecutor.submit(tenant, task);
+    }
+
+    public ExecutorService executor(WorkloadType type) {
+        return executors.get(type);
+    }
+
+    public void shutdown() {
+        executors.values().forEach(ExecutorService::shutdown);
+    }
+
+    private static WorkloadType classify(Object task) {
+        return task instanceof Classified ? ((Classified) task).workloadType() : WorkloadType.CPU;
+    }
+}
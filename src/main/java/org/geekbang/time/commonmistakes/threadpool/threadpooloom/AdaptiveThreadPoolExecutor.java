@@ -0,0 +1,177 @@
+package org.geekbang.time.commonmistakes.threadpool.threadpooloom;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jodd.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.MonitoredThreadPoolExecutor;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 根据任务排队时间自动调整线程数的线程池，可以直接替换手动new出来的ThreadPoolExecutor：
+ *
+ * 1、提交任务时记录入队时间，任务开始执行时得到排队耗时，执行完成后得到执行耗时；
+ * 2、每个调整周期内，如果平均排队耗时超过目标值，就按照利特尔法则（线程数≈到达速率×平均执行耗时）扩大核心线程数，
+ * 排队耗时远小于目标值并且有空闲线程时，逐步缩小核心线程数，核心线程数始终在[minThreads, maxThreads]范围内；
+ * 3、线程数已经到上限时，如果按照当前队列长度和平均执行耗时预估的排队耗时超过maxQueueDelay，提交时直接拒绝，
+ * 而不是让任务在队列里等到超时；
+ * 4、扩缩容次数和因为预估排队超时而拒绝的次数通过Micrometer暴露，带上name标签，线程池终止时删除；
+ * 排队耗时、执行耗时、线程数、队列长度等通用指标注册到ThreadPoolRegistry后统一发布。
+ */
+@Slf4j
+public class AdaptiveThreadPoolExecutor extends MonitoredThreadPoolExecutor {
+
+    //所有自适应线程池共用一个调整线程，避免每个线程池都起一个定时器
+    private static final ScheduledExecutorService TUNER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("adaptive-threadpool-tuner-%d").setDaemon(true).get());
+
+    private final String name;
+    private final int minThreads;
+    private final int maxThreads;
+    private final long targetQueueDelayNanos;
+    private final long maxQueueDelayNanos;
+    private final ScheduledFuture<?> tuning;
+    private final MeterRegistry meterRegistry;
+
+    //当前调整周期内的统计，调整时清零
+    private final LongAdder windowSubmitted = new LongAdder();
+    private final LongAdder windowStarted = new LongAdder();
+    private final LongAdder windowCompleted = new LongAdder();
+    private final LongAdder windowQueueNanos = new LongAdder();
+    private final LongAdder windowExecuteNanos = new LongAdder();
+    //平滑后的平均执行耗时，用于预估排队耗时
+    private volatile long avgExecuteNanos;
+
+    private final Counter growCounter;
+    private final Counter shrinkCounter;
+    private final Counter sloRejectedCounter;
+
+    public AdaptiveThreadPoolExecutor(String name, int minThreads, int maxThreads, int queueCapacity,
+                                      Duration targetQueueDelay, Duration maxQueueDelay, MeterRegistry meterRegistry) {
+        this(name, minThreads, maxThreads, queueCapacity, targetQueueDelay, maxQueueDelay, Duration.ofSeconds(1), meterRegistry);
+    }
+
+    public AdaptiveThreadPoolExecutor(String name, int minThreads, int maxThreads, int queueCapacity,
+                                      Duration targetQueueDelay, Duration maxQueueDelay, Duration tuneInterval,
+                                      MeterRegistry meterRegistry) {
+        super(minThreads, maxThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").get(),
+                new AbortPolicy());
+        if (minThreads <= 0 || maxThreads < minThreads)
+            throw new IllegalArgumentException("invalid thread bounds");
+        if (maxQueueDelay.compareTo(targetQueueDelay) < 0)
+            throw new IllegalArgumentException("maxQueueDelay must not be less than targetQueueDelay");
+        this.name = name;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetQueueDelayNanos = targetQueueDelay.toNanos();
+        this.maxQueueDelayNanos = maxQueueDelay.toNanos();
+
+        this.meterRegistry = meterRegistry;
+        this.growCounter = meterRegistry.counter("threadpool.adaptive.resize", "name", name, "direction", "grow");
+        this.shrinkCounter = meterRegistry.counter("threadpool.adaptive.resize", "name", name, "direction", "shrink");
+        this.sloRejectedCounter = meterRegistry.counter("threadpool.adaptive.rejected", "name", name, "reason", "slo");
+
+        long intervalNanos = tuneInterval.toNanos();
+        this.tuning = TUNER.scheduleAtFixedRate(() -> tune(intervalNanos), intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        if (getCorePoolSize() >= maxThreads && predictQueueDelayNanos() > maxQueueDelayNanos) {
+            sloRejectedCounter.increment();
+            log.debug("ThreadPool {} predicted queue delay exceeds {}ms, rejecting {}",
+                    name, TimeUnit.NANOSECONDS.toMillis(maxQueueDelayNanos), command);
+            getRejectedExecutionHandler().rejectedExecution(command, this);
+            return;
+        }
+        windowSubmitted.increment();
+        super.execute(command);
+    }
+
+    @Override
+    protected void onTaskStart(long queueWaitNanos) {
+        super.onTaskStart(queueWaitNanos);
+        windowQueueNanos.add(queueWaitNanos);
+        windowStarted.increment();
+    }
+
+    @Override
+    protected void onTaskComplete(long durationNanos) {
+        super.onTaskComplete(durationNanos);
+        windowExecuteNanos.add(durationNanos);
+        windowCompleted.increment();
+    }
+
+    @Override
+    protected void terminated() {
+        tuning.cancel(false);
+        //同名线程池重新创建时会拿到新的Counter，而不是还绑定在这个线程池上的旧Counter
+        meterRegistry.remove(growCounter);
+        meterRegistry.remove(shrinkCounter);
+        meterRegistry.remove(sloRejectedCounter);
+        super.terminated();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 按队列长度和平均执行耗时预估新任务需要排队多久
+     */
+    long predictQueueDelayNanos() {
+        int threads = Math.max(1, getPoolSize());
+        return getQueue().size() * avgExecuteNanos / threads;
+    }
+
+    private void tune(long intervalNanos) {
+        try {
+            long submitted = windowSubmitted.sumThenReset();
+            long started = windowStarted.sumThenReset();
+            long completed = windowCompleted.sumThenReset();
+            long queueNanos = windowQueueNanos.sumThenReset();
+            long executeNanos = windowExecuteNanos.sumThenReset();
+            if (completed > 0) {
+                long windowAvg = executeNanos / completed;
+                avgExecuteNanos = avgExecuteNanos == 0 ? windowAvg : (avgExecuteNanos * 7 + windowAvg * 3) / 10;
+            }
+            //线程全部被长任务占住时本周期可能没有任务开始执行，所以同时参考队头任务已经等待的时间
+            long avgQueueNanos = Math.max(started > 0 ? queueNanos / started : 0, headWaitNanos());
+
+            int core = getCorePoolSize();
+            //利特尔法则：需要的线程数 = 到达速率 × 平均执行耗时
+            double arrivalPerNano = (double) submitted / intervalNanos;
+            int desired = (int) Math.ceil(arrivalPerNano * avgExecuteNanos);
+
+            int newCore = core;
+            if (avgQueueNanos > targetQueueDelayNanos) {
+                newCore = Math.min(maxThreads, Math.max(core + 1, desired));
+            } else if (avgQueueNanos < targetQueueDelayNanos / 2 && getActiveCount() < core) {
+                //收缩最多减到desired，不能反过来把核心线程数调大（更不能超过maxThreads）
+                newCore = Math.min(core, Math.max(minThreads, Math.max(desired, core - 1)));
+            }
+            if (newCore != core) {
+                setCorePoolSize(newCore);
+                if (newCore > core) {
+                    growCounter.increment();
+                    //核心线程只有在提交任务时才会创建，队列里已经积压的任务需要预先启动线程来消化
+                    prestartAllCoreThreads();
+                } else {
+                    shrinkCounter.increment();
+                }
+                log.info("ThreadPool {} core {} -> {}, avgQueueDelay:{}ms, avgExecute:{}ms, queue:{}",
+                        name, core, newCore, TimeUnit.NANOSECONDS.toMillis(avgQueueNanos),
+                        TimeUnit.NANOSECONDS.toMillis(avgExecuteNanos), getQueue().size());
+            }
+        } catch (Exception ex) {
+            log.warn("ThreadPool {} tune failed", name, ex);
+        }
+    }
+}
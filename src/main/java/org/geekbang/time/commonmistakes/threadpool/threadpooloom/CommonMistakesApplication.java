@@ -1,10 +1,13 @@
 package org.geekbang.time.commonmistakes.threadpool.threadpooloom;
 
+import org.geekbang.time.commonmistakes.common.ThreadPoolsEndpoint;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Import;
 
 
 @SpringBootApplication
+@Import(ThreadPoolsEndpoint.class)
 public class CommonMistakesApplication {
 
     public static void main(String[] args) {
@@ -1,11 +1,13 @@
 package org.geekbang.time.commonmistakes.threadpool.threadpooloom;
 
-import jodd.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.time.Duration;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -18,23 +20,10 @@ import java.util.stream.IntStream;
 /**
  * 我们需要根据自己的场景，并发情况来评估线程池的几个核心参数，包括核心线程数、最大线程数、线程回收策略、工作队列的类型、以及拒绝策略等等。
  * 要起一个有意义的线程名称
- * 通过加监控来观察线程池的状态。
+ * 通过加监控来观察线程池的状态：线程池统一注册到ThreadPoolRegistry，通过Micrometer指标和/actuator/threadpools查看。
  */
 public class ThreadPoolOOMController {
 
-    private void printStats(ThreadPoolExecutor threadPool) {
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            log.info("=========================");
-            log.info("Pool Size: {}", threadPool.getPoolSize());
-            log.info("Active Threads: {}", threadPool.getActiveCount());
-            log.info("Number of Tasks Completed: {}", threadPool.getCompletedTaskCount());
-            log.info("Number of Tasks in Queue: {}", threadPool.getQueue().size());
-
-            log.info("=========================");
-        }, 0, 1, TimeUnit.SECONDS);
-    }
-
-
     /**
      * newFixedThreadPool,线程池的工作队列是直接new了一个LinkedBlockingQueue,
      * 默认构造方法的LinkedBlockingQueue是一个Integer.MAX_VALUE长度的队列，可以认为是无界的
@@ -43,8 +32,7 @@ public class ThreadPoolOOMController {
     @GetMapping("oom1")
     public void oom1() throws InterruptedException {
 
-        ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-        printStats(threadPool);
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.register("oom1-threadpool", (ThreadPoolExecutor) Executors.newFixedThreadPool(1));
         for (int i = 0; i < 100000000; i++) {
             threadPool.execute(() -> {
                 String payload = IntStream.rangeClosed(1, 1000000)
@@ -60,6 +48,7 @@ public class ThreadPoolOOMController {
 
         threadPool.shutdown();
         threadPool.awaitTermination(1, TimeUnit.HOURS);
+        ThreadPoolRegistry.unregister(threadPool);
     }
 
     /**
@@ -70,8 +59,7 @@ public class ThreadPoolOOMController {
     @GetMapping("oom2")
     public void oom2() throws InterruptedException {
 
-        ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-        printStats(threadPool);
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.register("oom2-threadpool", (ThreadPoolExecutor) Executors.newCachedThreadPool());
         for (int i = 0; i < 100000000; i++) {
             threadPool.execute(() -> {
                 String payload = UUID.randomUUID().toString();
@@ -84,19 +72,19 @@ public class ThreadPoolOOMController {
         }
         threadPool.shutdown();
         threadPool.awaitTermination(1, TimeUnit.HOURS);
+        ThreadPoolRegistry.unregister(threadPool);
     }
 
     @GetMapping("right")
     public int right() throws InterruptedException {
         AtomicInteger atomicInteger = new AtomicInteger();
-        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.newThreadPool(
+                "demo-threadpool-%d",
                 2, 5,
                 5, TimeUnit.SECONDS,
                 new ArrayBlockingQueue<>(10),
-                new ThreadFactoryBuilder().setNameFormat("demo-threadpool-%d").get(),
                 new ThreadPoolExecutor.AbortPolicy());
         //threadPool.allowCoreThreadTimeOut(true);
-        printStats(threadPool);
         IntStream.rangeClosed(1, 20).forEach(i -> {
             try {
                 TimeUnit.SECONDS.sleep(1);
@@ -120,6 +108,8 @@ public class ThreadPoolOOMController {
         });
 
         TimeUnit.SECONDS.sleep(60);
+        //每次请求都会创建新的线程池，用完关闭，终止后自动从ThreadPoolRegistry注销
+        threadPool.shutdown();
         return atomicInteger.intValue();
     }
 
@@ -134,10 +124,11 @@ public class ThreadPoolOOMController {
             }
         };
 
-        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+        ThreadPoolExecutor threadPool = ThreadPoolRegistry.newThreadPool(
+                "demo-threadpool-%d",
                 2, 5,
                 5, TimeUnit.SECONDS,
-                queue, new ThreadFactoryBuilder().setNameFormat("demo-threadpool-%d").get(), (r, executor) -> {
+                queue, (r, executor) -> {
             try {
                 //等出现拒绝后再加入队列
                 //如果希望队列满了阻塞线程而不是抛出异常，那么可以注释掉下面三行代码，修改为executor.getQueue().put(r);
@@ -150,7 +141,6 @@ public class ThreadPoolOOMController {
         });
         //激进线程池实现结束
 
-        printStats(threadPool);
         //每秒提交一个任务，每个任务耗时10秒执行完成，一共提交20个任务
 
         //任务编号计数器
@@ -178,6 +168,50 @@ public class ThreadPoolOOMController {
             }
         });
 
+        TimeUnit.SECONDS.sleep(60);
+        //每次请求都会创建新的线程池，用完关闭，终止后自动从ThreadPoolRegistry注销
+        threadPool.shutdown();
+        return atomicInteger.intValue();
+    }
+
+    //自适应线程池只创建一次，多次调用adaptive复用同一个线程池和同一组指标
+    private final AdaptiveThreadPoolExecutor adaptiveThreadPool = ThreadPoolRegistry.register("adaptive-threadpool",
+            new AdaptiveThreadPoolExecutor("adaptive-threadpool",
+                    2, 5, 10,
+                    Duration.ofSeconds(1), Duration.ofSeconds(5),
+                    Metrics.globalRegistry));
+
+    /**
+     * 和better一样每秒提交一个耗时10秒的任务，但是不再写死核心线程数：
+     * AdaptiveThreadPoolExecutor根据排队耗时在2~5个线程之间自动扩缩容，预估排队超过5秒的任务直接拒绝
+     */
+    @GetMapping("adaptive")
+    public int adaptive() throws InterruptedException {
+        AdaptiveThreadPoolExecutor threadPool = adaptiveThreadPool;
+        AtomicInteger atomicInteger = new AtomicInteger();
+
+        IntStream.rangeClosed(1, 20).forEach(i -> {
+            try {
+                TimeUnit.SECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            int id = atomicInteger.incrementAndGet();
+            try {
+                threadPool.submit(() -> {
+                    log.info("{} started", id);
+                    try {
+                        TimeUnit.SECONDS.sleep(10);
+                    } catch (InterruptedException e) {
+                    }
+                    log.info("{} finished", id);
+                });
+            } catch (Exception ex) {
+                log.error("error submitting task {}", id, ex);
+                atomicInteger.decrementAndGet();
+            }
+        });
+
         TimeUnit.SECONDS.sleep(60);
         return atomicInteger.intValue();
     }
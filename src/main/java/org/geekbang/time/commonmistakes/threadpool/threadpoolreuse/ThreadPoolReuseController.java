@@ -1,7 +1,7 @@
 package org.geekbang.time.commonmistakes.threadpool.threadpoolreuse;
 
-import jodd.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ThreadPoolRegistry;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -38,11 +38,11 @@ public class ThreadPoolReuseController {
     }
 
     static class ThreadPoolHelper {
-        private static ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
-                10, 50,
+        private static ThreadPoolExecutor threadPoolExecutor = ThreadPoolRegistry.newThreadPool(
+                "demo-threadpool-%d", 10, 50,
                 2, TimeUnit.SECONDS,
                 new ArrayBlockingQueue<>(1000),
-                new ThreadFactoryBuilder().setNameFormat("demo-threadpool-%d").get());
+                new ThreadPoolExecutor.AbortPolicy());
 
         public static ThreadPoolExecutor getThreadPool() {
             return (ThreadPoolExecutor) Executors.newCachedThreadPool();